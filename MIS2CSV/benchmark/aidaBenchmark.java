@@ -0,0 +1,485 @@
+/*
+ *    Copyright 2010 Schools Data Services Limited
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/**
+ * Automated IRIS Data Transfer Agent (AIDA)
+ * Benchmarks of the paths every run spends its time in: reading reports, diffing them against the previous run,
+ * hashing them, joining split reports and writing query results
+ * Synthetic reports of each size are generated in a work folder, each benchmark is warmed up and then timed,
+ * and the results are written as CSV so they can be compared with the committed baseline
+ * @package AIDA
+ */
+
+import java.util.LinkedList;
+import java.util.Random;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.OutputStreamWriter;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+
+class aidaBenchmark
+{
+	/**
+	 * the report sizes benchmarked unless others are given, in rows
+	 */
+	protected static final int[] defaultSizes = {10000, 100000, 1000000};
+
+	/**
+	 * the number of untimed runs of each benchmark, so the JIT has compiled the code being timed
+	 */
+	protected static final int warmupRuns = 5;
+
+	/**
+	 * the number of timed runs of each benchmark, enough for the standard deviation to say how far a change in the mean can be trusted
+	 */
+	protected static final int timedRuns = 20;
+
+	/**
+	 * the share of rows changed between the previous and current reports, as the diff sees on a typical night
+	 */
+	protected static final double changedRows = 0.01;
+
+	/**
+	 * the number of parts split reports are written in
+	 */
+	protected static final int reportParts = 4;
+
+	/**
+	 * the columns of the generated reports
+	 */
+	protected static final String[] columns = {"UPN", "Surname", "Forename", "DOB", "Year", "Form", "Address", "Notes"};
+
+	/**
+	 * the work folder reports are generated in
+	 */
+	protected File workDir;
+
+	/**
+	 * the agent whose diff and hash code is benchmarked
+	 */
+	protected aida agent;
+
+	/**
+	 * the results
+	 */
+	protected csvWriter results;
+
+	/**
+	 * a value every benchmark adds to, so the work it does cannot be optimised away
+	 */
+	protected long sink = 0;
+
+	/**
+	 * Run the benchmarks
+	 * @param args the work folder, and optionally the report sizes to benchmark separated by commas
+	 */
+	public static void main(String[] args)
+	{
+		if(args.length < 1)
+		{
+			System.out.println("Usage: java aidaBenchmark <work folder> [rows,rows,...]");
+			System.exit(1);
+		}
+
+		int[] sizes = defaultSizes;
+
+		if(args.length > 1)
+		{
+			String[] parts = args[1].split(",");
+			sizes = new int[parts.length];
+
+			for(int i=0; i<parts.length; i++)
+			{
+				sizes[i] = Integer.parseInt(parts[i].trim());
+			}
+		}
+
+		try
+		{
+			aidaBenchmark bench = new aidaBenchmark(new File(args[0]));
+
+			for(int i=0; i<sizes.length; i++)
+			{
+				bench.runAll(sizes[i]);
+			}
+
+			bench.results.close();
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Constructor
+	 * The work folder is set up as the IRIS folder of an agent, so the agent logs there rather than to a real IRIS folder
+	 * @param workDir the work folder
+	 */
+	public aidaBenchmark(File workDir) throws IOException
+	{
+		this.workDir = workDir;
+
+		File irisDir = new File(workDir, "iris");
+		irisDir.mkdirs();
+
+		File configFile = new File(workDir, "aida.ini");
+		FileWriter configOut = new FileWriter(configFile);
+		configOut.write("aida_dir = "+irisDir.getAbsolutePath()+"\r\n");
+		configOut.close();
+
+		aida.configFile = configFile.getPath();
+		agent = new aida();
+
+		new File(irisDir, agent.getCurrentDir()).mkdirs();
+		new File(irisDir, agent.getPreviousDir()).mkdirs();
+		new File(irisDir, agent.getTransmitDir()).mkdirs();
+
+		results = new csvWriter(new OutputStreamWriter(System.out));
+		results.writeRow(new String[] {"benchmark", "rows", "mean_ms", "stddev_ms", "min_ms", "max_ms", "mb_per_s"});
+		results.flush();
+	}
+
+	/**
+	 * Run every benchmark on reports of one size
+	 * @param rows the number of rows in the reports
+	 */
+	protected void runAll(int rows) throws Exception
+	{
+		File irisDir = new File(workDir, "iris");
+		final File currFile = new File(irisDir, agent.getCurrentDir()+File.separator+"report.csv");
+		final File prevFile = new File(irisDir, agent.getPreviousDir()+File.separator+"report.csv");
+		final File diffFile = new File(irisDir, agent.getTransmitDir()+File.separator+"report.csv");
+
+		//the same seed gives the same reports, so runs on different machines do the same work
+		writeReport(prevFile, rows, new Random(rows), 0);
+		writeReport(currFile, rows, new Random(rows), changedRows);
+
+		final long bytes = currFile.length();
+
+		measure("CSVReader.readNext", rows, bytes, new benchmark()
+		{
+			long run() throws IOException
+			{
+				CSVReader reader = new CSVReader(new BufferedReader(new FileReader(currFile)));
+				String[] row;
+				long fields = 0;
+
+				while((row = reader.readNext()) != null)
+				{
+					fields += row.length;
+				}
+
+				reader.close();
+
+				return fields;
+			}
+		});
+
+		measure("CSVReader.readNextAsString", rows, bytes, new benchmark()
+		{
+			long run() throws IOException
+			{
+				CSVReader reader = new CSVReader(new BufferedReader(new FileReader(currFile)));
+				String row;
+				long chars = 0;
+
+				while((row = reader.readNextAsString()) != null)
+				{
+					chars += row.length();
+				}
+
+				reader.close();
+
+				return chars;
+			}
+		});
+
+		measure("aida.diffReports", rows, bytes+prevFile.length(), new benchmark()
+		{
+			void setUp()
+			{
+				diffFile.delete();
+			}
+
+			long run()
+			{
+				return agent.diffReports(currFile) ? diffFile.length() : 0;
+			}
+		});
+
+		measure("aida.getMD5Hash", rows, bytes, new benchmark()
+		{
+			int runs = 0;
+
+			void setUp()
+			{
+				//a new modification time makes the hash cache read the file again
+				currFile.setLastModified(currFile.lastModified()+1000*(++runs % 2 == 0 ? -1 : 1));
+			}
+
+			long run()
+			{
+				return agent.getMD5Hash(currFile).length();
+			}
+		});
+
+		final File[] parts = new File[reportParts];
+
+		for(int i=0; i<reportParts; i++)
+		{
+			parts[i] = new File(workDir, "part"+i+".csv");
+			writeReport(parts[i], rows/reportParts, new Random(rows+i), 0);
+		}
+
+		final File joinedFile = new File(workDir, "joined.csv");
+		final misReport reporter = new cmisReport();
+
+		measure("misReport.concatenate", rows, bytes, new benchmark()
+		{
+			void setUp() throws IOException
+			{
+				joinedFile.delete();
+				joinedFile.createNewFile();
+
+				LinkedList<File> pending = new LinkedList<File>();
+
+				for(int i=0; i<parts.length; i++)
+				{
+					pending.add(parts[i]);
+				}
+
+				reporter.duplicates.put(joinedFile, pending);
+			}
+
+			long run()
+			{
+				reporter.concatenate(joinedFile);
+
+				return joinedFile.length();
+			}
+		});
+
+		final String[][] table = generateRows(rows, new Random(rows), 0);
+		final File exportFile = new File(workDir, "export.csv");
+
+		measure("csvWriter.writeRows", rows, bytes, new benchmark()
+		{
+			long run() throws Exception
+			{
+				csvWriter fileOut = new csvWriter(exportFile);
+				long written = fileOut.writeRows(memoryResultSet(table));
+				fileOut.close();
+
+				return written;
+			}
+		});
+
+		currFile.delete();
+		prevFile.delete();
+		diffFile.delete();
+		joinedFile.delete();
+		exportFile.delete();
+
+		for(int i=0; i<reportParts; i++)
+		{
+			parts[i].delete();
+		}
+	}
+
+	/**
+	 * Time a benchmark and write its result
+	 * @param name the benchmark name
+	 * @param rows the number of rows in the report
+	 * @param bytes the number of bytes of report read or written by each run
+	 * @param bench the benchmark
+	 */
+	protected void measure(String name, int rows, long bytes, benchmark bench) throws Exception
+	{
+		for(int i=0; i<warmupRuns; i++)
+		{
+			bench.setUp();
+			sink += bench.run();
+		}
+
+		double[] times = new double[timedRuns];
+		double total = 0;
+		double min = Double.MAX_VALUE;
+		double max = 0;
+
+		for(int i=0; i<timedRuns; i++)
+		{
+			bench.setUp();
+
+			long start = System.nanoTime();
+			sink += bench.run();
+			times[i] = (System.nanoTime()-start)/1000000.0;
+
+			total += times[i];
+			min = Math.min(min, times[i]);
+			max = Math.max(max, times[i]);
+		}
+
+		double meanMs = total/timedRuns;
+		double squares = 0;
+
+		for(int i=0; i<timedRuns; i++)
+		{
+			squares += (times[i]-meanMs)*(times[i]-meanMs);
+		}
+
+		//sample standard deviation, as the runs are a sample of the times the code could take
+		double stddevMs = Math.sqrt(squares/(timedRuns-1));
+		double mbPerSec = meanMs > 0 ? bytes/1048576.0/(meanMs/1000) : 0;
+
+		results.writeRow(new String[] {name, String.valueOf(rows), format(meanMs), format(stddevMs), format(min), format(max), format(mbPerSec)});
+		results.flush();
+	}
+
+	/**
+	 * Format a result to one decimal place
+	 * @param value the value
+	 * @return the formatted value
+	 */
+	protected static String format(double value)
+	{
+		return String.valueOf(Math.round(value*10)/10.0);
+	}
+
+	/**
+	 * Write a synthetic report
+	 * @param file the report file
+	 * @param rows the number of rows
+	 * @param random the source of the values
+	 * @param changed the share of rows given a different value
+	 */
+	protected static void writeReport(File file, int rows, Random random, double changed) throws IOException
+	{
+		String[][] table = generateRows(rows, random, changed);
+		csvWriter fileOut = new csvWriter(file);
+
+		for(int i=0; i<table.length; i++)
+		{
+			fileOut.writeRow(table[i]);
+		}
+
+		fileOut.close();
+	}
+
+	/**
+	 * Generate the rows of a synthetic pupil report
+	 * The values are drawn from the random source in the same order whatever share of rows is changed,
+	 * so two reports made from the same seed only differ in the changed rows
+	 * @param rows the number of rows
+	 * @param random the source of the values
+	 * @param changed the share of rows given a different value
+	 * @return the rows
+	 */
+	protected static String[][] generateRows(int rows, Random random, double changed)
+	{
+		String[] surnames = {"Smith", "Jones", "Taylor", "Brown", "Williams", "O'Neill", "Evans", "Thomas"};
+		String[] forenames = {"Amelia", "Oliver", "Isla", "Jack", "Ava", "Harry", "Mia", "Noah"};
+		String[][] table = new String[rows][];
+
+		for(int i=0; i<rows; i++)
+		{
+			String[] row = new String[columns.length];
+
+			row[0] = "A"+(100000000000L+i);
+			row[1] = surnames[random.nextInt(surnames.length)];
+			row[2] = forenames[random.nextInt(forenames.length)];
+			row[3] = (2000+random.nextInt(15))+"-0"+(1+random.nextInt(9))+"-1"+random.nextInt(10);
+			row[4] = String.valueOf(random.nextInt(14));
+			row[5] = row[4]+(char)('A'+random.nextInt(6));
+			row[6] = random.nextInt(1000)+" High Street, Anytown";
+
+			int note = random.nextInt(10);
+			row[7] = note == 0 ? null : note == 1 ? "Said \"hello\"" : "";
+
+			if(random.nextDouble() < changed) row[4] = String.valueOf(Integer.parseInt(row[4])+1);
+
+			table[i] = row;
+		}
+
+		return table;
+	}
+
+	/**
+	 * Make an in-memory stand-in for a JDBC result set, so the export loop is timed without a database
+	 * Only the methods the export loop calls are answered
+	 * @param table the rows of the result set
+	 * @return the result set
+	 */
+	protected static ResultSet memoryResultSet(final String[][] table)
+	{
+		final ResultSetMetaData meta = (ResultSetMetaData)Proxy.newProxyInstance(aidaBenchmark.class.getClassLoader(), new Class[] {ResultSetMetaData.class}, new InvocationHandler()
+		{
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				if(method.getName().equals("getColumnCount")) return Integer.valueOf(columns.length);
+				if(method.getName().equals("getColumnLabel") || method.getName().equals("getColumnName")) return columns[((Integer)args[0]).intValue()-1];
+
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+
+		return (ResultSet)Proxy.newProxyInstance(aidaBenchmark.class.getClassLoader(), new Class[] {ResultSet.class}, new InvocationHandler()
+		{
+			int row = -1;
+
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				String name = method.getName();
+
+				if(name.equals("next")) return Boolean.valueOf(++row < table.length);
+				if(name.equals("getString")) return table[row][((Integer)args[0]).intValue()-1];
+				if(name.equals("getMetaData")) return meta;
+				if(name.equals("close")) return null;
+
+				throw new UnsupportedOperationException(name);
+			}
+		});
+	}
+
+	/**
+	 * A benchmarked operation
+	 */
+	abstract static class benchmark
+	{
+		/**
+		 * Prepare for a run, outside the timing
+		 */
+		void setUp() throws Exception
+		{
+		}
+
+		/**
+		 * The timed operation
+		 * @return a value depending on the work done
+		 */
+		abstract long run() throws Exception;
+	}
+}
@@ -17,6 +17,8 @@ Patched by John Main <john@iris.ac>
 Changes:
 Ignores leading whitespace on tokens
 Ignores lines commented with #
+Joins tokens back into a CSV string
+Cursor mode reading rows into reusable field buffers
  */
 
 import java.io.BufferedReader;
@@ -59,6 +61,39 @@ public class CSVReader {
 	*/
 	public static final int DEFAULT_SKIP_LINES = 0;
 	
+	/** The initial size of the buffer rows are scanned from in cursor mode. */
+	private static final int ROW_BUFFER_SIZE = 65536;
+	
+	/** The characters read from the source in cursor mode. */
+	private char[] buf;
+	
+	/** The start of the unread characters in buf. */
+	private int bufPos;
+	
+	/** The end of the characters read into buf. */
+	private int bufEnd;
+	
+	/** If the end of the source has been read into buf. */
+	private boolean eof;
+	
+	/** The bounds of the physical line last found in buf. */
+	private int lineStart, lineEnd;
+	
+	/** The unquoted characters of the fields of the current row. */
+	private char[] fieldChars = new char[1024];
+	
+	/** The start and end of each field of the current row in fieldChars. */
+	private int[] fieldStart = new int[32], fieldEnd = new int[32];
+	
+	/** The number of fields in the current row. */
+	private int fieldCount;
+	
+	/** The number of characters used in fieldChars. */
+	private int fieldPos;
+	
+	/** The buffer rows are joined back into CSV strings in. */
+	private StringBuilder rowString = new StringBuilder(256);
+	
 	/**
 	* Constructs CSVReader using a comma for the separator.
 	* 
@@ -174,26 +209,558 @@ public class CSVReader {
 
 		if(hasNext)
 		{
-			String[] parsedLine = parseLine(nextLine);
+			return toCSVString(parseLine(nextLine));
+		}
+		else
+		{
+			return null;
+		}
+	}
+
+	/**
+	* Joins tokens into a CSV string in the format returned by readNextAsString.
+	* Quotes in a token are doubled so the string can be parsed again.
+	* 
+	* @param tokens
+	*            the tokens to join
+	* @return a CSV string 
+	*/
+	public static String toCSVString(String[] tokens)
+	{
+		StringBuilder line = new StringBuilder();
+
+		for(int i=0; i<tokens.length; i++)
+		{
+			String token = tokens[i];
 
-			String line = "";
+			line.append('"');
 
-			for(int i=0; i<parsedLine.length; i++)
+			if(token.indexOf(DEFAULT_QUOTE_CHARACTER) < 0)
 			{
-				line += "\""+parsedLine[i]+"\"";
-
-				if(i != parsedLine.length-1)
+				line.append(token);
+			}
+			else
+			{
+				for(int j=0; j<token.length(); j++)
 				{
-					line += ", ";
+					char c = token.charAt(j);
+					line.append(c);
+
+					if(c == DEFAULT_QUOTE_CHARACTER) line.append(c);
 				}
 			}
 
-			return line;
+			line.append('"');
+
+			if(i != tokens.length-1)
+			{
+				line.append(", ");
+			}
+		}
+
+		return line.toString();
+	}
+	
+	/**
+	* Moves to the next row in cursor mode.
+	* 
+	* The source is scanned in large blocks and the fields of the row are
+	* unquoted into a single reusable buffer, so no String is created per
+	* token. Rows are split and tokenized exactly as readNext() does, and
+	* commented rows are skipped. Cursor mode must not be mixed with the
+	* line based methods on the same reader.
+	* 
+	* @return if there was another row
+	* 
+	* @throws IOException
+	*             if bad things happen during the read
+	*/
+	public boolean nextRow() throws IOException
+	{
+		if (buf == null)
+		{
+			buf = new char[ROW_BUFFER_SIZE];
+		}
+	
+		if (!linesSkiped)
+		{
+			for (int i = 0; i < skipLines && readPhysicalLine(); i++);
+			linesSkiped = true;
+		}
+	
+		fieldCount = 0;
+		fieldPos = 0;
+	
+		do
+		{
+			if (!readNonBlankLine())
+			{
+				hasNext = false;
+				return false;
+			}
+		}
+		while (buf[lineStart] == '#');
+	
+		tokenizeRow();
+	
+		return true;
+	}
+	
+	/**
+	* Gets the number of fields in the current row.
+	* 
+	* @return the number of fields
+	*/
+	public int getFieldCount()
+	{
+		return fieldCount;
+	}
+	
+	/**
+	* Gets the buffer holding the fields of the current row. The contents
+	* are only valid until the next call to nextRow().
+	* 
+	* @return the field buffer
+	*/
+	public char[] getFieldBuffer()
+	{
+		return fieldChars;
+	}
+	
+	/**
+	* Gets the offset of a field in the field buffer.
+	* 
+	* @param i
+	*            the field index
+	* @return the offset of the first character of the field
+	*/
+	public int getFieldStart(int i)
+	{
+		return fieldStart[i];
+	}
+	
+	/**
+	* Gets the length of a field in the field buffer.
+	* 
+	* @param i
+	*            the field index
+	* @return the number of characters in the field
+	*/
+	public int getFieldLength(int i)
+	{
+		return fieldEnd[i] - fieldStart[i];
+	}
+	
+	/**
+	* Gets a field of the current row as a string.
+	* 
+	* @param i
+	*            the field index
+	* @return the field
+	*/
+	public String getField(int i)
+	{
+		return new String(fieldChars, fieldStart[i], fieldEnd[i] - fieldStart[i]);
+	}
+	
+	/**
+	* Gets the fields of the current row, as readNext() would return them.
+	* 
+	* @return the fields
+	*/
+	public String[] getFields()
+	{
+		String[] fields = new String[fieldCount];
+	
+		for (int i = 0; i < fieldCount; i++)
+		{
+			fields[i] = getField(i);
+		}
+	
+		return fields;
+	}
+	
+	/**
+	* Checks if a field of the current row equals a string.
+	* 
+	* @param i
+	*            the field index
+	* @param value
+	*            the string to compare with
+	* @return if the field and the string are equal
+	*/
+	public boolean fieldEquals(int i, String value)
+	{
+		int length = fieldEnd[i] - fieldStart[i];
+	
+		if (value.length() != length)
+		{
+			return false;
+		}
+	
+		for (int j = 0; j < length; j++)
+		{
+			if (fieldChars[fieldStart[i] + j] != value.charAt(j))
+			{
+				return false;
+			}
+		}
+	
+		return true;
+	}
+	
+	/**
+	* Checks if the current row has the same fields as a parsed row.
+	* 
+	* @param fields
+	*            the parsed row
+	* @return if the rows are equal
+	*/
+	public boolean rowEquals(String[] fields)
+	{
+		if (fields.length != fieldCount)
+		{
+			return false;
+		}
+	
+		for (int i = 0; i < fieldCount; i++)
+		{
+			if (!fieldEquals(i, fields[i]))
+			{
+				return false;
+			}
+		}
+	
+		return true;
+	}
+	
+	/**
+	* Joins the current row into a CSV string in the format returned by
+	* readNextAsString.
+	* 
+	* @return a CSV string
+	*/
+	public String getRowAsString()
+	{
+		rowString.setLength(0);
+	
+		for (int i = 0; i < fieldCount; i++)
+		{
+			if (i > 0)
+			{
+				rowString.append(", ");
+			}
+	
+			appendField(rowString, i);
+		}
+	
+		return rowString.toString();
+	}
+	
+	/**
+	* Joins the given fields of the current row into a CSV string. Indexes
+	* past the end of the row are joined as empty fields.
+	* 
+	* @param columns
+	*            the field indexes
+	* @return a CSV string
+	*/
+	public String getColumnsAsString(int[] columns)
+	{
+		rowString.setLength(0);
+	
+		for (int i = 0; i < columns.length; i++)
+		{
+			if (i > 0)
+			{
+				rowString.append(", ");
+			}
+	
+			if (columns[i] < fieldCount)
+			{
+				appendField(rowString, columns[i]);
+			}
+			else
+			{
+				rowString.append("\"\"");
+			}
+		}
+	
+		return rowString.toString();
+	}
+	
+	/**
+	* Appends a quoted field of the current row, doubling any quotes.
+	* 
+	* @param line
+	*            the string being built
+	* @param i
+	*            the field index
+	*/
+	private void appendField(StringBuilder line, int i)
+	{
+		line.append('"');
+	
+		for (int j = fieldStart[i]; j < fieldEnd[i]; j++)
+		{
+			char c = fieldChars[j];
+			line.append(c);
+	
+			if (c == DEFAULT_QUOTE_CHARACTER)
+			{
+				line.append(c);
+			}
+		}
+	
+		line.append('"');
+	}
+	
+	/**
+	* Tokenizes the row starting at the current line into the field buffer,
+	* following the same rules as parseLine().
+	* 
+	* @throws IOException
+	*             if bad things happen during the read
+	*/
+	private void tokenizeRow() throws IOException
+	{
+		int tokenStart = 0;
+		boolean inQuotes = false;
+	
+		do
+		{
+			if (inQuotes)
+			{
+				// continuing a quoted section, reappend newline
+				appendChar('\r');
+				appendChar('\n');
+				if (!readNonBlankLine())
+				{
+					hasNext = false;
+					break;
+				}
+			}
+	
+			for (int i = lineStart; i < lineEnd; i++)
+			{
+				char c = buf[i];
+	
+				//Trim leading whitespace
+				if (fieldPos == tokenStart && c == ' ')
+				{
+					continue;
+				}
+	
+				if (c == quotechar)
+				{
+					if (inQuotes && i + 1 < lineEnd && buf[i + 1] == quotechar)
+					{
+						// two quote chars in a row == one quote char
+						appendChar(c);
+						i++;
+					}
+					else
+					{
+						inQuotes = !inQuotes;
+						// the tricky case of an embedded quote in the middle: a,bc"d"ef,g
+						if (i - lineStart > 2
+							&& buf[i - 1] != separator
+							&& i + 1 < lineEnd
+							&& buf[i + 1] != separator
+							&& fieldPos != tokenStart)
+						{
+							appendChar(c);
+						}
+					}
+				}
+				else if (c == separator && !inQuotes)
+				{
+					endField(tokenStart);
+					tokenStart = fieldPos;
+				}
+				else
+				{
+					appendChar(c);
+				}
+			}
+		} while (inQuotes);
+	
+		endField(tokenStart);
+	}
+	
+	/**
+	* Ends the current field, trimming it as String.trim() would.
+	* 
+	* @param tokenStart
+	*            the offset the field started at
+	*/
+	private void endField(int tokenStart)
+	{
+		int start = tokenStart;
+		int end = fieldPos;
+	
+		while (start < end && fieldChars[start] <= ' ')
+		{
+			start++;
+		}
+	
+		while (end > start && fieldChars[end - 1] <= ' ')
+		{
+			end--;
+		}
+	
+		if (fieldCount == fieldStart.length)
+		{
+			int[] grownStart = new int[fieldCount * 2];
+			int[] grownEnd = new int[fieldCount * 2];
+			System.arraycopy(fieldStart, 0, grownStart, 0, fieldCount);
+			System.arraycopy(fieldEnd, 0, grownEnd, 0, fieldCount);
+			fieldStart = grownStart;
+			fieldEnd = grownEnd;
+		}
+	
+		fieldStart[fieldCount] = start;
+		fieldEnd[fieldCount] = end;
+		fieldCount++;
+	}
+	
+	/**
+	* Appends a character to the current field.
+	* 
+	* @param c
+	*            the character
+	*/
+	private void appendChar(char c)
+	{
+		if (fieldPos == fieldChars.length)
+		{
+			char[] grown = new char[fieldChars.length * 2];
+			System.arraycopy(fieldChars, 0, grown, 0, fieldPos);
+			fieldChars = grown;
+		}
+	
+		fieldChars[fieldPos++] = c;
+	}
+	
+	/**
+	* Finds the next line in the buffer that is not blank.
+	* 
+	* @return if there was another line
+	* @throws IOException
+	*             if bad things happen during the read
+	*/
+	private boolean readNonBlankLine() throws IOException
+	{
+		while (readPhysicalLine())
+		{
+			if (lineEnd > lineStart)
+			{
+				return true;
+			}
+		}
+	
+		return false;
+	}
+	
+	/**
+	* Finds the next line in the buffer, ending at \n, \r or \r\n as
+	* BufferedReader.readLine() does. The line is only valid until the
+	* buffer is next filled.
+	* 
+	* @return if there was another line
+	* @throws IOException
+	*             if bad things happen during the read
+	*/
+	private boolean readPhysicalLine() throws IOException
+	{
+		int scan = bufPos;
+	
+		while (true)
+		{
+			while (scan < bufEnd && buf[scan] != '\n' && buf[scan] != '\r')
+			{
+				scan++;
+			}
+	
+			if (scan < bufEnd)
+			{
+				// a \r at the end of the buffer may be the start of \r\n
+				if (buf[scan] == '\r' && scan + 1 == bufEnd && !eof)
+				{
+					scan = fillBuffer(scan);
+					continue;
+				}
+	
+				lineStart = bufPos;
+				lineEnd = scan;
+				bufPos = scan + 1;
+	
+				if (buf[scan] == '\r' && bufPos < bufEnd && buf[bufPos] == '\n')
+				{
+					bufPos++;
+				}
+	
+				return true;
+			}
+	
+			if (eof)
+			{
+				if (bufPos < bufEnd)
+				{
+					lineStart = bufPos;
+					lineEnd = bufEnd;
+					bufPos = bufEnd;
+					return true;
+				}
+	
+				return false;
+			}
+	
+			scan = fillBuffer(scan);
+		}
+	}
+	
+	/**
+	* Moves the unread characters to the start of the buffer, growing it if
+	* a line does not fit, and reads more from the source.
+	* 
+	* @param scan
+	*            an offset in the buffer to adjust
+	* @return the adjusted offset
+	* @throws IOException
+	*             if bad things happen during the read
+	*/
+	private int fillBuffer(int scan) throws IOException
+	{
+		int unread = bufEnd - bufPos;
+	
+		if (bufPos > 0)
+		{
+			System.arraycopy(buf, bufPos, buf, 0, unread);
+			scan -= bufPos;
+			bufPos = 0;
+			bufEnd = unread;
+		}
+	
+		if (bufEnd == buf.length)
+		{
+			char[] grown = new char[buf.length * 2];
+			System.arraycopy(buf, 0, grown, 0, bufEnd);
+			buf = grown;
+		}
+	
+		int read = br.read(buf, bufEnd, buf.length - bufEnd);
+	
+		if (read < 0)
+		{
+			eof = true;
 		}
 		else
 		{
-			return null;
+			bufEnd += read;
 		}
+	
+		return scan;
 	}
 	
 	/**
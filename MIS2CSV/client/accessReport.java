@@ -58,124 +58,62 @@ public class accessReport extends misReport
 
 			String slash = File.separator;
 
-			//make the database connection
-			Connection conn = openConnection();
-	
-			if(conn != null)
+			LinkedList<reportQuery> queries = new LinkedList<reportQuery>();
+
+			//go through the lines of the report definition
+			while(!reportDef.isEmpty())
 			{
-				aida.logAdd("Connected to database");
+				String[] reportArray = reportDef.removeFirst();
 
-				//go through the lines of the report definition
-				while(!reportDef.isEmpty())
+				//valid report definitions should have a file name and an SQL query, followed by any options
+				if(reportArray.length >= 2)
 				{
-					try
+					String fileName = reportArray[0];
+					String dest = aida.getConfigValue("aida_dir")+slash+currentDir+slash+fileName;
+					String query = reportArray[1];
+
+					int run = 1;
+
+					//replace query and run status with override parameters if applicable
+					if(overrideParameters.containsKey(fileName))
 					{
-						String[] reportArray = reportDef.removeFirst();
+						query = overrideParameters.get(fileName)[0];
+						run = Integer.parseInt(overrideParameters.get(fileName)[1]);
+					}
 
-						//valid report definitions should have only a file name and an SQL query
-						if(reportArray.length == 2)
+					//if the server has no run inhibit flag set
+					if(run == 1)
+					{
+						//check that queries are valid and non-malicious
+						if(query.toLowerCase().startsWith("select") && !(query.indexOf(";") >= 0))
 						{
-							String fileName = reportArray[0];
-							String dest = aida.getConfigValue("aida_dir")+slash+currentDir+slash+fileName;
-							String query = reportArray[1];
-
-							int run = 1;
-	
-							//replace query and run status with override parameters if applicable
-							if(overrideParameters.containsKey(fileName))
-							{
-								query = overrideParameters.get(fileName)[0];
-								run = Integer.parseInt(overrideParameters.get(fileName)[1]);
-							}
-	
-							//if the server has no run inhibit flag set
-							if(run == 1)
-							{
-								//check that queries are valid and non-malicious
-								if(query.toLowerCase().startsWith("select") && !(query.indexOf(";") >= 0))
-								{
-									//check if this file name has already been used (files will be concatenated later) and create file
-									File destFile = new File(checkDuplicates(dest));
-		
-									aida.logAdd("Creating "+dest);
-		
-									if(!destFile.exists()) destFile.createNewFile();
-	
-									destFile.setWritable(true, false);
-						
-									FileWriter fileOut = new FileWriter(destFile);
-
-									//run the query
-									Statement stmt = conn.createStatement();
-									ResultSet rs = stmt.executeQuery(query);
-				
-									ResultSetMetaData rsmd = rs.getMetaData();
-									int numCols = rsmd.getColumnCount();
-				
-									String[] cols = new String[numCols];
-								
-									// Get the column names; column indices start from 1
-									for (int i=0; i<numCols; i++)
-									{
-										cols[i] = rsmd.getColumnName(i+1);
-									}
-				
-									//write the data to the file
-									while(rs.next())
-									{
-										String line = "";
-
-										for (int i=0; i<numCols; i++)
-										{
-											if(i > 0) line += ", ";
-											line += "\""+rs.getString(cols[i])+"\"";
-										}
-				
-										fileOut.write(line+"\r\n");
-									}
-				
-									fileOut.flush();
-									fileOut.close();
-								}
-								else
-								{
-									aida.logAdd("Ignoring illegal query");
-									aida.logAdd(query);
-								}
-							}
-							else
-							{
-								aida.logAdd("Running of "+fileName+" disabled by server");
-							}
+							//check if this file name has already been used (files will be concatenated later)
+							queries.add(new reportQuery(new File(dest), new File(checkDuplicates(dest)), query));
 						}
 						else
 						{
-							aida.logAdd("Incorrect number of arguments to create report");
+							aida.logAdd("Ignoring illegal query");
+							aida.logAdd(query);
 						}
 					}
-					catch(SQLException e)
-					{
-						aida.logAdd("!Report could not be run");
-						aida.logAdd("!"+e.getMessage());
-
-						closeConnection(conn);
-						return false;
-					}
-					catch(IOException e)
+					else
 					{
-						aida.logAdd("!Could not write report file");
-						aida.logAdd("!"+e.getMessage());
-
-						closeConnection(conn);
-						return false;
+						aida.logAdd("Running of "+fileName+" disabled by server");
 					}
 				}
+				else
+				{
+					aida.logAdd("Incorrect number of arguments to create report");
+				}
+			}
 
-				closeConnection(conn);
-
+			//run the queries, each worker making its own database connection
+			if(runQueries(queries))
+			{
 				//concatenate any split reports into one file
 				concatenate();
-				
+				finishReports();
+
 				return true;
 			}
 		}
@@ -191,10 +129,12 @@ public class accessReport extends misReport
 	{
 		try
 		{
-			DriverManager.registerDriver(new net.sourceforge.jtds.jdbc.Driver());
+			registerDriver();
 
 			Connection conn = java.sql.DriverManager.getConnection("jdbc:odbc:Driver={Microsoft Access Driver (*.mdb)};DBQ="+aida.getConfigValue("access_database")+";DriverID=22;READONLY=true");
 
+			aida.logAdd("Connected to database");
+
 			return conn;
 		}
 		catch(SQLException e)
@@ -24,22 +24,27 @@
 
 import java.io.*;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Random;
 import java.util.Properties;
 import java.text.SimpleDateFormat;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.net.InetAddress;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
 import java.net.HttpURLConnection;
 import java.security.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.math.BigInteger;
 import com.luigidragone.net.ntlm.*;
 import HTTPClient.HTTPResponse;
 import HTTPClient.HTTPConnection;
@@ -60,13 +65,53 @@ public class aida
 	/**
 	 * the previous reports folder
 	 */
-	protected final String previousDir = "previous";
+	protected static final String previousDir = "previous";
 
 	/**
 	 * the transmit folder
 	 */
 	protected final String transmitDir = "transmit";
 
+	/**
+	 * the scratch folder used to sort large reports
+	 */
+	protected final String sortDir = "sort";
+
+	/**
+	 * the file hashes are cached in
+	 */
+	protected final String hashCacheFile = "hashes.cache";
+
+	/**
+	 * the file the progress of chunked uploads is kept in, in the IRIS folder
+	 */
+	protected final String uploadJournalFile = "uploads.journal";
+
+	/**
+	 * the default size the log file is rotated at, in kilobytes
+	 */
+	protected static final long defaultLogSize = 50;
+
+	/**
+	 * the default memory budget for diffing a single report, in megabytes
+	 */
+	protected static final long defaultDiffMemory = 64;
+
+	/**
+	 * rough memory used per row when diffing against a fingerprint index, in bytes
+	 */
+	protected static final int indexMemoryPerRow = 32;
+
+	/**
+	 * rough ratio of the memory a report takes when held in memory to its size on disk
+	 */
+	protected static final int diffMemoryFactor = 4;
+
+	/**
+	 * the column of a report definition that options start at
+	 */
+	protected static final int reportOptionStart = 2;
+
 	/**
 	 * the default IRIS folder
 	 */
@@ -83,7 +128,7 @@ public class aida
 	protected static final String slash = File.separator;
 
 	/**
-	 * this os's path seperator
+	 * the IRIS server, unless server_url is set in the config file
 	 */
 	protected static final String serverUrl = "https://portal.iris.ac";
 
@@ -117,9 +162,100 @@ public class aida
 	 */
 	protected boolean incremental = true;
 
+	/**
+	 * gzip report uploads, if the server has said it accepts them
+	 */
+	protected boolean compressUploads = false;
+
+	/**
+	 * upload large reports in chunks that can be resumed, if the server has said it accepts them
+	 */
+	protected boolean chunkedUploads = false;
+
+	/**
+	 * the size of upload chunks in KB unless upload_chunk_size is set
+	 */
+	protected static final int defaultUploadChunkSize = 1024;
+
+	/**
+	 * the number of times a chunk is sent before the upload is left for the next run unless upload_retries is set
+	 */
+	protected static final int defaultUploadRetries = 3;
+
+	/**
+	 * how long to wait before sending a chunk again, multiplied by the number of attempts, in milliseconds
+	 */
+	protected static final long uploadRetryDelay = 2000;
+
+	/**
+	 * the progress of chunked uploads
+	 */
+	protected uploadJournal uploads;
+
+	/**
+	 * the connection to the IRIS server, shared by all requests
+	 */
+	protected HTTPClient.HTTPConnection connection;
+
+	/**
+	 * the upload encoding offered to the server in the handshake
+	 */
+	protected static final String uploadEncoding = "gzip";
+
+	/**
+	 * the number of report definitions downloaded at once unless download_parallelism is set
+	 */
+	protected static final int defaultDownloadParallelism = 4;
+
+	/**
+	 * the suffix of a report definition while it is being downloaded
+	 */
+	protected static final String downloadSuffix = ".part";
+
+	/**
+	 * the suffix of a file while it is being copied to another drive
+	 */
+	protected static final String copySuffix = ".part";
+
+	/**
+	 * the key column indexes of reports that declare them, by report file name
+	 */
+	protected HashMap<String, int[]> reportKeys = new HashMap<String, int[]>();
+
+	/**
+	 * the reports whose index was found to be too large to diff within diff_memory, which are not indexed again
+	 */
+	protected HashSet<String> oversizedIndexes = new HashSet<String>();
+
+	/**
+	 * the cached hashes of report and definition files
+	 */
+	protected hashCache hashes;
+
+	/**
+	 * the background log writer, once the log has been prepared
+	 */
+	protected static logWriter logger;
+
+	/**
+	 * the timings and counters of the current run
+	 */
+	protected static runMetrics metrics;
+
+	/**
+	 * the number of metrics files kept unless metrics_keep is set
+	 */
+	protected static final int defaultMetricsKeep = 30;
+
+	/**
+	 * the folder metrics files are written to, in the IRIS folder
+	 */
+	protected final String metricsDir = "metrics";
+
 	/**
 	 * Main function
-	 * @param args config file location
+	 * A second argument of run, status or stop is sent to the AIDA service through its control port
+	 * @param args config file location and optional service command
 	 */
 	public static void main(String args[])
 	{
@@ -131,6 +267,12 @@ public class aida
 
 		aida ai = new aida();
 
+		if(args.length > 1)
+		{
+			sendServiceCommand(args[1]);
+			return;
+		}
+
 		//Ensure we have a directory for the report files
 		if(getConfigValue("aida_dir").equals(""))
 		{
@@ -139,7 +281,7 @@ public class aida
 
 		try
 		{
-			//Lock file prevents multiple instances from being run
+			//Lock file prevents multiple instances from being run. The service holds it for as long as it is running
 			File lockFile = new File(appDir+slash+"aida.lck");
 	
 			if(!lockFile.exists())
@@ -151,87 +293,13 @@ public class aida
 		
 				if(ai.checkDir(getConfigValue("aida_dir")))
 				{
-					//create necessary directories
-					ai.checkDir(getConfigValue("aida_dir")+slash+ai.getCurrentDir());
-					ai.checkDir(getConfigValue("aida_dir")+slash+ai.getPreviousDir());
-					ai.checkDir(getConfigValue("aida_dir")+slash+ai.getTransmitDir());
-			
-					if(validateConfig(new String[]{"mis"}))
+					if(!getConfigValue("schedule").equals(""))
 					{
-						String mis = getConfigValue("mis").toLowerCase();
-			
-						//Instantiate adapter for specified MIS
-						try
-						{
-							ai.setReporter((reportAdapter)Class.forName(mis+"Report").newInstance());
-						}
-						catch (ClassNotFoundException e)
-						{
-							logAdd("!MIS adapter not found for "+mis);
-							ai.exit();
-						}
-						catch (InstantiationException e)
-						{
-							logAdd("!Could not instantiate "+mis+" Report");
-							ai.exit();
-						}
-						catch (IllegalAccessException e)
-						{
-							logAdd("!Could not access "+mis+" Report");
-							ai.exit();
-						}
-
-						//Check if required connection parameters are set
-						if(ai.canConnect())
-						{
-							if(ai.handshake())
-							{
-								ai.getReportDefinitions();
-								LinkedList<String[]> reportDef = ai.parseReportCSV();
-								HashMap<String, String[]> overrideParameters = ai.getOverrideParameters();
-				
-								if(reportDef != null)
-								{
-									if(ai.runReport(reportDef, overrideParameters))
-									{
-										LinkedList<String> diffFiles = ai.compareReports();
-				
-										if(!diffFiles.isEmpty())
-										{
-											ai.sendReport(diffFiles);
-										}
-
-										//Cleanup
-										ai.moveFiles(getConfigValue("aida_dir")+slash+ai.getCurrentDir(), getConfigValue("aida_dir")+slash+ai.getPreviousDir());
-										ai.emptyDir(ai.getConfigValue("aida_dir")+slash+ai.getTransmitDir());
-									}
-								}
-								else logAdd("!No report definitions exist");
-		
-								if(ai.syncPasswords())
-								{
-									ai.finishConnection();
-								}
-							}
-							else logAdd("!Server handshake failed");
-						}
-						else
-						{
-							logAdd("!Server connection information is not set. Running locally");
-		
-							LinkedList<String[]> reportDef = ai.parseReportCSV();
-			
-							if(reportDef != null)
-							{
-								if(ai.runReport(reportDef, new HashMap<String, String[]>()))
-								{
-									LinkedList<String> diffFiles = ai.compareReports();
-		
-									ai.moveFiles(getConfigValue("aida_dir")+slash+ai.getCurrentDir(), getConfigValue("aida_dir")+slash+ai.getPreviousDir());
-								}
-							}
-							else logAdd("!No report definitions exist");
-						}
+						ai.runService();
+					}
+					else
+					{
+						ai.runOnce();
 					}
 		
 					ai.exit();
@@ -252,6 +320,236 @@ public class aida
 		}
 	}
 
+	/**
+	 * Run the reports once: fetch the report definitions, run and compare the reports and send the changes to the server,
+	 * or only run and compare them if the server connection is not set up
+	 */
+	public void runOnce()
+	{
+		resetRun();
+
+		long runStart = System.nanoTime();
+
+		//create necessary directories
+		checkDir(getConfigValue("aida_dir")+slash+getCurrentDir());
+		checkDir(getConfigValue("aida_dir")+slash+getPreviousDir());
+		checkDir(getConfigValue("aida_dir")+slash+getTransmitDir());
+
+		if(validateConfig(new String[]{"mis"}) && createReporter())
+		{
+			//Check if required connection parameters are set
+			if(canConnect())
+			{
+				long start = System.nanoTime();
+				boolean connected = handshake();
+				addMetric(runMetrics.scopePhase, "handshake", "ms", runMetrics.since(start));
+
+				if(connected)
+				{
+					start = System.nanoTime();
+					getReportDefinitions();
+					LinkedList<String[]> reportDef = parseReportCSV();
+					addMetric(runMetrics.scopePhase, "definitions", "ms", runMetrics.since(start));
+
+					start = System.nanoTime();
+					HashMap<String, String[]> overrideParameters = getOverrideParameters();
+					addMetric(runMetrics.scopePhase, "overrides", "ms", runMetrics.since(start));
+
+					if(reportDef != null)
+					{
+						start = System.nanoTime();
+						runPipeline(reportDef, overrideParameters, true);
+						addMetric(runMetrics.scopePhase, "reports", "ms", runMetrics.since(start));
+					}
+					else logAdd("!No report definitions exist");
+
+					start = System.nanoTime();
+					boolean synced = syncPasswords();
+					addMetric(runMetrics.scopePhase, "passwords", "ms", runMetrics.since(start));
+
+					if(synced)
+					{
+						addMetric(runMetrics.scopeRun, "run", "ms", runMetrics.since(runStart));
+						finishConnection();
+					}
+				}
+				else logAdd("!Server handshake failed");
+			}
+			else
+			{
+				logAdd("!Server connection information is not set. Running locally");
+
+				LinkedList<String[]> reportDef = parseReportCSV();
+
+				if(reportDef != null)
+				{
+					long start = System.nanoTime();
+					runPipeline(reportDef, new HashMap<String, String[]>(), false);
+					addMetric(runMetrics.scopePhase, "reports", "ms", runMetrics.since(start));
+				}
+				else logAdd("!No report definitions exist");
+			}
+		}
+
+		if(hashes != null) hashes.save();
+
+		metrics.set(runMetrics.scopeRun, "run", "ms", runMetrics.since(runStart));
+		saveMetrics();
+	}
+
+	/**
+	 * Add to a timing or counter of the current run
+	 * @param scope run, phase or report
+	 * @param name the name within the scope, such as the report file name
+	 * @param metric the metric
+	 * @param value the amount to add
+	 */
+	public static void addMetric(String scope, String name, String metric, long value)
+	{
+		runMetrics current = metrics;
+
+		if(current != null) current.add(scope, name, metric, value);
+	}
+
+	/**
+	 * Write the metrics of the run to the metrics folder
+	 * The newest metrics_keep files are kept, 30 by default, and metrics_keep = 0 turns metrics files off
+	 */
+	protected void saveMetrics()
+	{
+		int keep = defaultMetricsKeep;
+
+		if(!getConfigValue("metrics_keep").equals(""))
+		{
+			try
+			{
+				keep = Integer.parseInt(getConfigValue("metrics_keep"));
+			}
+			catch(NumberFormatException e)
+			{
+				logAdd("!Invalid metrics_keep setting - keeping "+defaultMetricsKeep);
+			}
+		}
+
+		if(keep <= 0) return;
+
+		try
+		{
+			File file = metrics.save(new File(getConfigValue("aida_dir")+slash+metricsDir), keep);
+			logDebug("Metrics written to "+file.getPath());
+		}
+		catch(IOException e)
+		{
+			logAdd("!Could not write metrics file");
+			logAdd("!"+e.getMessage());
+		}
+	}
+
+	/**
+	 * Instantiate the adapter for the MIS set in the config file
+	 * A new adapter is made for each run so nothing is left over from the last one
+	 * @return if the adapter was created
+	 */
+	protected boolean createReporter()
+	{
+		String mis = getConfigValue("mis").toLowerCase();
+
+		try
+		{
+			setReporter((reportAdapter)Class.forName(mis+"Report").newInstance());
+			return true;
+		}
+		catch (ClassNotFoundException e)
+		{
+			logAdd("!MIS adapter not found for "+mis);
+		}
+		catch (InstantiationException e)
+		{
+			logAdd("!Could not instantiate "+mis+" Report");
+		}
+		catch (IllegalAccessException e)
+		{
+			logAdd("!Could not access "+mis+" Report");
+		}
+
+		return false;
+	}
+
+	/**
+	 * Reset the state kept for a single run, keeping the server connection and caches
+	 */
+	protected void resetRun()
+	{
+		//Create revision date
+		SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmss");
+		revision = sdf.format(new Date());
+
+		metrics = new runMetrics(revision);
+
+		incremental = true;
+		compressUploads = false;
+		chunkedUploads = false;
+		reportKeys.clear();
+	}
+
+	/**
+	 * Stay running, running the reports at the times set by schedule in the config file until stopped through the control port
+	 */
+	protected void runService()
+	{
+		cronSchedule schedule;
+
+		try
+		{
+			schedule = new cronSchedule(getConfigValue("schedule"));
+		}
+		catch(IllegalArgumentException e)
+		{
+			logAdd("!Invalid schedule setting - "+e.getMessage());
+			return;
+		}
+
+		new aidaService(this, schedule, getControlPort()).serve();
+	}
+
+	/**
+	 * Get the port the AIDA service accepts commands on
+	 * @return control_port from the config file or 0 if it is not set
+	 */
+	protected static int getControlPort()
+	{
+		try
+		{
+			if(!getConfigValue("control_port").equals("")) return Integer.parseInt(getConfigValue("control_port"));
+		}
+		catch(NumberFormatException e)
+		{
+			System.out.println("!Invalid control_port setting");
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Send a command to the running AIDA service and print its reply
+	 * @param command run, status or stop
+	 */
+	protected static void sendServiceCommand(String command)
+	{
+		int port = getControlPort();
+
+		if(port <= 0)
+		{
+			System.out.println("!control_port is not set");
+			return;
+		}
+
+		String reply = aidaService.sendCommand(port, command);
+
+		if(reply == null) System.out.println("!The AIDA service is not running");
+		else System.out.println(reply);
+	}
+
 	/**
 	 * Constructor
 	 * Read the config file, parse it and add key/value pairs to the hashmap
@@ -259,10 +557,7 @@ public class aida
 	 */
 	public aida()
 	{
-		//Create revision date
-		Calendar cal = Calendar.getInstance();
-		SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmss");
-		revision = sdf.format(new Date());
+		resetRun();
 
 		//Parse the config file
 		try
@@ -324,7 +619,25 @@ public class aida
 
 			//Create connection, send request and receive response
 			HTTPClient.HTTPConnection conn = makeConnection();
-			HTTPClient.NVPair[] parameters = getNVParameters("handshake");
+			LinkedList<HTTPClient.NVPair> extraParams = new LinkedList<HTTPClient.NVPair>();
+
+			//offer compressed uploads unless they have been turned off
+			boolean offerEncoding = !getConfigValue("compress_uploads").equals("false");
+
+			if(offerEncoding)
+			{
+				extraParams.add(new HTTPClient.NVPair("upload_encoding", uploadEncoding));
+			}
+
+			//offer chunked uploads unless they have been turned off
+			boolean offerChunks = !getConfigValue("chunked_uploads").equals("false");
+
+			if(offerChunks)
+			{
+				extraParams.add(new HTTPClient.NVPair("upload_chunks", "1"));
+			}
+
+			HTTPClient.NVPair[] parameters = getNVParameters("handshake", extraParams.toArray(new HTTPClient.NVPair[0]));
 			HTTPClient.HTTPResponse rsp = conn.Post(reportUpdateLocation, parameters);
 
 			if(testConnection(rsp))
@@ -343,6 +656,19 @@ public class aida
 									incremental = false;
 								}
 
+								//servers that accept compressed uploads say so, older ones send nothing
+								if(offerEncoding && rsp.getHeader("Upload Encoding") != null && rsp.getHeader("Upload Encoding").equals(uploadEncoding))
+								{
+									logAdd("Server accepts "+uploadEncoding+" uploads");
+									compressUploads = true;
+								}
+
+								if(offerChunks && rsp.getHeader("Upload Chunks") != null && rsp.getHeader("Upload Chunks").equals("1"))
+								{
+									logAdd("Server accepts chunked uploads");
+									chunkedUploads = true;
+								}
+
 								return true;
 							}
 							else
@@ -430,7 +756,7 @@ public class aida
 							files.add(fileName);
 							hashes.add(hash);
 
-							logAdd("Found " + fileName + " " +hash);
+							logDebug("Found " + fileName + " " +hash);
 						}
 					}
 
@@ -440,19 +766,7 @@ public class aida
 				bufRead.close();
 				inRead.close();
 
-				while(!files.isEmpty())
-				{
-					fileName = files.removeFirst();
-					hash = hashes.removeFirst();
-
-					File file = new File(getConfigValue("aida_dir")+slash+fileName);
-
-					//If we don't already have that file, download it
-					if(!file.exists() || !getMD5Hash(file).equals(hash))
-					{
-						retrieveFile(fileName);
-					}
-				}
+				retrieveFiles(files, hashes);
 			}
 		}
 		catch(HTTPClient.ModuleException e)
@@ -467,12 +781,139 @@ public class aida
 		}
 	}
 
+	/**
+	 * Download the listed files that are missing or have changed, across a pool of workers
+	 * The workers share the server connection, which pipelines their requests over the keep-alive socket
+	 * @param files the names of the files on the server
+	 * @param hashes the MD5 hashes of the files on the server, in the same order
+	 */
+	protected void retrieveFiles(LinkedList<String> files, LinkedList<String> hashes)
+	{
+		LinkedList<String[]> pending = new LinkedList<String[]>();
+
+		Iterator<String> fileIt = files.iterator();
+		Iterator<String> hashIt = hashes.iterator();
+
+		while(fileIt.hasNext())
+		{
+			pending.add(new String[] {fileIt.next(), hashIt.next()});
+		}
+
+		int parallelism = getDownloadParallelism(pending.size());
+
+		if(parallelism <= 1)
+		{
+			new downloadWorker(pending).run();
+			return;
+		}
+
+		downloadWorker[] workers = new downloadWorker[parallelism];
+
+		for(int i=0; i<parallelism; i++)
+		{
+			workers[i] = new downloadWorker(pending);
+			workers[i].setName("download-worker-"+(i+1));
+			workers[i].start();
+		}
+
+		try
+		{
+			for(int i=0; i<parallelism; i++)
+			{
+				workers[i].join();
+			}
+		}
+		catch(InterruptedException e)
+		{
+			logAdd("!Report definition downloads were interrupted");
+		}
+	}
+
+	/**
+	 * Get the number of download workers to run
+	 * @param files the number of files listed by the server
+	 * @return the number of workers, set by download_parallelism in the config file
+	 */
+	protected int getDownloadParallelism(int files)
+	{
+		int parallelism = defaultDownloadParallelism;
+
+		if(!getConfigValue("download_parallelism").equals(""))
+		{
+			try
+			{
+				parallelism = Integer.parseInt(getConfigValue("download_parallelism"));
+			}
+			catch(NumberFormatException e)
+			{
+				logAdd("!Invalid download_parallelism setting - using "+defaultDownloadParallelism);
+			}
+		}
+
+		return Math.max(1, Math.min(parallelism, files));
+	}
+
+	/**
+	 * Checks files from a shared list against the local copies and downloads those that are missing or have changed
+	 */
+	class downloadWorker extends Thread
+	{
+		/**
+		 * the file names and hashes still to be checked, shared by all workers
+		 */
+		protected LinkedList<String[]> pending;
+
+		/**
+		 * Constructor
+		 * @param pending the file names and hashes still to be checked
+		 */
+		downloadWorker(LinkedList<String[]> pending)
+		{
+			this.pending = pending;
+		}
+
+		/**
+		 * Take the next file to check
+		 * @return the file name and hash or null if there are none left
+		 */
+		protected String[] nextFile()
+		{
+			synchronized(pending)
+			{
+				if(pending.isEmpty()) return null;
+
+				return pending.removeFirst();
+			}
+		}
+
+		public void run()
+		{
+			String[] next;
+
+			while((next = nextFile()) != null)
+			{
+				File file = new File(getConfigValue("aida_dir")+slash+next[0]);
+
+				//If we don't already have that file, download it
+				if(!file.exists() || !getMD5Hash(file).equals(next[1]))
+				{
+					retrieveFile(next[0]);
+				}
+			}
+		}
+	}
+
 	/**
 	 * Retreive a file from the IRIS server and place it in the relevant MIS folder
+	 * The file is downloaded to a temporary file first and only replaces the current one once it is complete
 	 * @param fileName
+	 * @return if the file was downloaded
 	 */
-	protected void retrieveFile(String fileName)
+	protected boolean retrieveFile(String fileName)
 	{
+		File saveFile = new File(getConfigValue("aida_dir")+slash+fileName);
+		File tempFile = new File(saveFile.getPath()+downloadSuffix);
+
 		try
 		{
 			logAdd("Retrieving "+fileName);
@@ -484,28 +925,48 @@ public class aida
 	
 			if(testConnection(rsp))
 			{
-				//Stream the response data into a file
+				//Stream the response data into a temporary file
 				InputStream is = rsp.getInputStream();
 
-				File saveFile = new File(getConfigValue("aida_dir")+slash+fileName);
+				if(tempFile.exists()) tempFile.delete();
 
-				//Delete previous version of this file
-				if(saveFile.exists()) saveFile.delete();
+				OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(tempFile));
 
-				saveFile.createNewFile();
-	
-				OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(saveFile));
-	
-				byte[] buffer = new byte[1024];
-				int dataIn;
-	
-				while ((dataIn = is.read(buffer)) != -1)
+				try
+				{
+					byte[] buffer = new byte[8192];
+					int dataIn;
+
+					while ((dataIn = is.read(buffer)) != -1)
+					{
+						fileOut.write(buffer, 0, dataIn);
+					}
+
+					fileOut.flush();
+				}
+				finally
 				{
-					fileOut.write(buffer, 0, dataIn);
+					fileOut.close();
+					is.close();
 				}
-	
-				fileOut.flush();
-				fileOut.close();
+
+				//Replace the previous version of this file in one step, so the definition is never missing if the run is stopped here
+				try
+				{
+					Files.move(tempFile.toPath(), saveFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				}
+				catch(IOException e)
+				{
+					logAdd("!Could not replace "+fileName);
+					logAdd("!"+e.getMessage());
+					tempFile.delete();
+					return false;
+				}
+
+				addMetric(runMetrics.scopeRun, "definitions", "downloaded", 1);
+				addMetric(runMetrics.scopeRun, "definitions", "bytes", saveFile.length());
+
+				return true;
 			}
 		}
 		catch(HTTPClient.ModuleException e)
@@ -518,6 +979,11 @@ public class aida
 			logAdd("!Server connection error - could not download "+fileName);
 			logAdd("!"+e.getMessage());
 		}
+
+		//A partial download is thrown away and the previous version of the file is kept
+		tempFile.delete();
+
+		return false;
 	}
 
 	/**
@@ -598,31 +1064,68 @@ public class aida
 	/**
 	 * Transmit a report file to the server
 	 * @param fileName the name of the file to be sent
+	 * @return if the server confirmed it had received the whole file
 	 */
-	public void transmitFile(String fileName)
+	public boolean transmitFile(String fileName)
 	{
 		try
 		{
 			logAdd("Transmitting "+fileName);
 
+			File file = new File(getConfigValue("aida_dir")+slash+transmitDir+slash+fileName);
+
+			if(chunkedUploads && file.length() > getUploadChunkSize())
+			{
+				return transmitChunks(file);
+			}
+
 			HTTPClient.HTTPConnection conn = makeConnection();
 			
-			// create the NVPair's for the form data to be submitted and do the encoding
-			HTTPClient.NVPair[] headers  = new HTTPClient.NVPair[1];
-			HTTPClient.NVPair[] files = { new HTTPClient.NVPair("file_upload", getConfigValue("aida_dir")+slash+transmitDir+slash+fileName) };
+			// create the NVPair's for the form data to be submitted
 			HTTPClient.NVPair[] parameters = getNVParameters("receiveFile");
-			
-			byte[] form_data = HTTPClient.Codecs.mpFormDataEncode(parameters, files, headers);
-			
-			// POST the form data, as indicated by the method attribute
-			HTTPClient.HTTPResponse rsp = conn.Post(reportUpdateLocation, form_data, headers);
 
-			testConnection(rsp);
+			// the file is streamed from disk so memory use does not grow with the size of the report
+			multipartForm form = new multipartForm(parameters, "file_upload", file, compressUploads);
+			HTTPClient.NVPair[] headers = { new HTTPClient.NVPair("Content-Type", form.getContentType()) };
+
+			long length;
+			long start;
+			HTTPClient.HTTPResponse rsp;
+
+			try
+			{
+				length = form.getLength();
+
+				if(compressUploads)
+				{
+					logAdd("Compressed "+file.length()+" bytes to "+form.getBodyLength());
+				}
+				HTTPClient.HttpOutputStream out = length <= Integer.MAX_VALUE ? new HTTPClient.HttpOutputStream((int)length) : new HTTPClient.HttpOutputStream();
+
+				start = System.nanoTime();
+
+				// POST the form data, as indicated by the method attribute
+				rsp = conn.Post(reportUpdateLocation, out, headers);
+
+				form.writeTo(out);
+				out.close();
+			}
+			finally
+			{
+				//the gzipped copy of the file is only kept while it is sent
+				form.close();
+			}
+
+			if(!testConnection(rsp)) return false;
+
+			addUploadMetrics(fileName, file.length(), length, runMetrics.since(start));
 
 			if(rsp.getHeader("Upload Status") != null)
 			{
 				logAdd(rsp.getHeader("Upload Status"));
 			}
+
+			return true;
 		}
 		catch(HTTPClient.ModuleException e)
 		{
@@ -634,6 +1137,234 @@ public class aida
 			logAdd("!Could not transmit file");
 			logAdd("!"+e.getMessage());
 		}
+
+		return false;
+	}
+
+	/**
+	 * Transmit a report file to the server in chunks, carrying on from the last chunk the server acknowledged
+	 * Each chunk is sent with its offset and MD5 hash, and the server replies with the offset it expects next.
+	 * Progress is kept in the upload journal, so an upload that is still interrupted after retrying resumes
+	 * on the next run, as long as the report is the same
+	 * @param file the file to be sent
+	 * @return if the server acknowledged the whole file
+	 */
+	protected boolean transmitChunks(File file) throws HTTPClient.ModuleException, IOException
+	{
+		String fileName = file.getName();
+		String uploadId = getMD5Hash(file);
+		long length = file.length();
+		long chunkSize = getUploadChunkSize();
+		int retries = getUploadRetries();
+
+		long offset = getUploadJournal().getOffset(fileName, uploadId, length);
+
+		if(offset > 0) logAdd("Resuming upload of "+fileName+" from "+offset+" of "+length+" bytes");
+
+		int attempt = 0;
+		long sent = 0;
+		long start = System.nanoTime();
+
+		while(offset < length)
+		{
+			long chunkLength = Math.min(chunkSize, length-offset);
+			long nextOffset = -1;
+
+			try
+			{
+				nextOffset = transmitChunk(file, uploadId, offset, chunkLength);
+				sent += chunkLength;
+			}
+			catch(IOException e)
+			{
+				logAdd("!Could not transmit chunk at "+offset+" of "+fileName);
+				logAdd("!"+e.getMessage());
+			}
+
+			if(nextOffset > offset && nextOffset <= length)
+			{
+				offset = nextOffset;
+				attempt = 0;
+
+				if(offset < length) getUploadJournal().acknowledged(fileName, uploadId, length, offset);
+
+				continue;
+			}
+
+			//the server may already have more, or less, of the file than the journal says
+			if(nextOffset >= 0 && nextOffset < offset)
+			{
+				logAdd("Server expects "+fileName+" from "+nextOffset);
+				offset = nextOffset;
+				getUploadJournal().acknowledged(fileName, uploadId, length, offset);
+			}
+
+			if(++attempt >= retries)
+			{
+				logAdd("!Upload of "+fileName+" stopped at "+offset+" of "+length+" bytes - it will be resumed on the next run");
+				addUploadMetrics(fileName, length, sent, runMetrics.since(start));
+				return false;
+			}
+
+			try
+			{
+				Thread.sleep(uploadRetryDelay*attempt);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		getUploadJournal().finished(fileName);
+
+		addUploadMetrics(fileName, length, sent, runMetrics.since(start));
+
+		return true;
+	}
+
+	/**
+	 * Record the size and speed of a report upload
+	 * @param fileName the name of the report file
+	 * @param reportBytes the size of the report file
+	 * @param sentBytes the number of bytes of the report sent, before any compression
+	 * @param ms the time taken, in milliseconds
+	 */
+	protected void addUploadMetrics(String fileName, long reportBytes, long sentBytes, long ms)
+	{
+		addMetric(runMetrics.scopeReport, fileName, "file_bytes", reportBytes);
+		addMetric(runMetrics.scopeReport, fileName, "upload_bytes", sentBytes);
+		addMetric(runMetrics.scopeReport, fileName, "upload_ms", ms);
+
+		if(ms > 0 && metrics != null)
+		{
+			metrics.set(runMetrics.scopeReport, fileName, "upload_kb_per_s", sentBytes*1000/1024/ms);
+		}
+	}
+
+	/**
+	 * Transmit one chunk of a report file
+	 * @param file the file being sent
+	 * @param uploadId the hash of the whole file, which identifies the upload to the server
+	 * @param offset the position of the chunk in the file
+	 * @param chunkLength the length of the chunk
+	 * @return the offset the server expects next, or -1 if the chunk was not acknowledged
+	 */
+	protected long transmitChunk(File file, String uploadId, long offset, long chunkLength) throws HTTPClient.ModuleException, IOException
+	{
+		HTTPClient.HTTPConnection conn = makeConnection();
+
+		HTTPClient.NVPair[] extraParams = {
+			new HTTPClient.NVPair("file_name", file.getName()),
+			new HTTPClient.NVPair("upload_id", uploadId),
+			new HTTPClient.NVPair("offset", String.valueOf(offset)),
+			new HTTPClient.NVPair("total_length", String.valueOf(file.length())),
+			new HTTPClient.NVPair("chunk_hash", hashCache.md5(file, offset, chunkLength))
+		};
+
+		HTTPClient.NVPair[] parameters = getNVParameters("receiveChunk", extraParams);
+
+		multipartForm form = new multipartForm(parameters, "file_upload", file, compressUploads, offset, chunkLength);
+		HTTPClient.NVPair[] headers = { new HTTPClient.NVPair("Content-Type", form.getContentType()) };
+
+		HTTPClient.HTTPResponse rsp;
+
+		try
+		{
+			HTTPClient.HttpOutputStream out = new HTTPClient.HttpOutputStream((int)form.getLength());
+			rsp = conn.Post(reportUpdateLocation, out, headers);
+
+			form.writeTo(out);
+			out.close();
+		}
+		finally
+		{
+			form.close();
+		}
+
+		if(!testConnection(rsp)) return -1;
+
+		if(rsp.getHeader("Upload Status") != null)
+		{
+			logAdd(rsp.getHeader("Upload Status"));
+		}
+
+		if(rsp.getHeader("Chunk Offset") == null)
+		{
+			logAdd("!Chunk at "+offset+" of "+file.getName()+" was not acknowledged");
+			return -1;
+		}
+
+		try
+		{
+			return Long.parseLong(rsp.getHeader("Chunk Offset").trim());
+		}
+		catch(NumberFormatException e)
+		{
+			logAdd("!Invalid chunk offset from server - "+rsp.getHeader("Chunk Offset"));
+			return -1;
+		}
+	}
+
+	/**
+	 * Get the size of upload chunks
+	 * @return the size in bytes, set in KB by upload_chunk_size in the config file
+	 */
+	protected long getUploadChunkSize()
+	{
+		long chunkSize = defaultUploadChunkSize;
+
+		if(!getConfigValue("upload_chunk_size").equals(""))
+		{
+			try
+			{
+				chunkSize = Long.parseLong(getConfigValue("upload_chunk_size"));
+			}
+			catch(NumberFormatException e)
+			{
+				logAdd("!Invalid upload_chunk_size setting - using "+defaultUploadChunkSize+"KB");
+			}
+		}
+
+		return Math.max(1, chunkSize)*1024;
+	}
+
+	/**
+	 * Get the number of times a chunk is sent before an upload is left for the next run
+	 * @return the number of attempts, set by upload_retries in the config file
+	 */
+	protected int getUploadRetries()
+	{
+		int retries = defaultUploadRetries;
+
+		if(!getConfigValue("upload_retries").equals(""))
+		{
+			try
+			{
+				retries = Integer.parseInt(getConfigValue("upload_retries"));
+			}
+			catch(NumberFormatException e)
+			{
+				logAdd("!Invalid upload_retries setting - using "+defaultUploadRetries);
+			}
+		}
+
+		return Math.max(1, retries);
+	}
+
+	/**
+	 * Get the upload journal, loading it from the IRIS folder the first time
+	 * @return the upload journal
+	 */
+	protected synchronized uploadJournal getUploadJournal()
+	{
+		if(uploads == null)
+		{
+			uploads = new uploadJournal(new File(getConfigValue("aida_dir")+slash+uploadJournalFile));
+		}
+
+		return uploads;
 	}
 
 	/**
@@ -701,7 +1432,15 @@ public class aida
 		try
 		{
 			HTTPClient.HTTPConnection conn = makeConnection();
-			HTTPClient.NVPair[] parameters = getNVParameters("finishConnection");
+			HTTPClient.NVPair[] extraParams = {};
+
+			//the run's metrics can be collected by the server to compare sites
+			if(getConfigValue("send_metrics").equals("true") && metrics != null)
+			{
+				extraParams = new HTTPClient.NVPair[]{new HTTPClient.NVPair("metrics", metrics.toCSV())};
+			}
+
+			HTTPClient.NVPair[] parameters = getNVParameters("finishConnection", extraParams);
 			HTTPClient.HTTPResponse rsp = conn.Post(reportUpdateLocation, parameters);
 
 			if(testConnection(rsp))
@@ -728,14 +1467,51 @@ public class aida
 		}
 	}
 
+	/**
+	 * Get the connection to the IRIS server
+	 * The connection is made the first time it is needed and shared by every request of the run,
+	 * so the keep-alive socket, TLS session and proxy/NTLM authorisation are reused
+	 * @return the connection object
+	 */
+	protected synchronized HTTPClient.HTTPConnection makeConnection() throws IOException
+	{
+		if(connection == null)
+		{
+			connection = createConnection();
+		}
+
+		return connection;
+	}
+
+	/**
+	 * Close the connection to the IRIS server, if one has been made
+	 */
+	protected synchronized void closeConnection()
+	{
+		if(connection != null)
+		{
+			connection.stop();
+			connection = null;
+		}
+	}
+
+	/**
+	 * Get the address of the IRIS server
+	 * @return server_url from the config file, or the IRIS portal if it is not set
+	 */
+	protected String getServerUrl()
+	{
+		return getConfigValue("server_url").equals("") ? serverUrl : getConfigValue("server_url");
+	}
+
 	/**
 	 * Make a connection to the IRIS server
 	 * @return the connection object
 	 */
-	protected HTTPClient.HTTPConnection makeConnection() throws IOException
+	protected HTTPClient.HTTPConnection createConnection() throws IOException
 	{
-		logAdd("Connecting to server at " + serverUrl);
-		URL url = new URL(serverUrl);
+		logAdd("Connecting to server at " + getServerUrl());
+		URL url = new URL(getServerUrl());
 
 		int port = 80;
 
@@ -743,6 +1519,10 @@ public class aida
 		{
 			port = Integer.parseInt(getConfigValue("server_port"));
 		}
+		else if(url.getPort() != -1)
+		{
+			port = url.getPort();
+		}
 		else if(url.getProtocol().equals("https"))
 		{
 			port = 443;
@@ -928,11 +1708,188 @@ public class aida
 	 * @return whether or not the report has run successfully
 	 */
 	public boolean runReport(LinkedList<String[]> reportDef, HashMap<String, String[]> overrideParameters)
+	{
+		return runReport(reportDef, overrideParameters, null);
+	}
+
+	/**
+	 * Call the MIS adapter to run the report
+	 * @param reportDef the parsed report csv file
+	 * @param overrideParameters the override parameters for this site
+	 * @param listener told about each report file as soon as the adapter has finished writing it
+	 * @return whether or not the report has run successfully
+	 */
+	public boolean runReport(LinkedList<String[]> reportDef, HashMap<String, String[]> overrideParameters, reportListener listener)
 	{
 		logAdd("Running reports");
+		parseReportKeys(reportDef);
+		reporter.setReportListener(listener);
 		return reporter.runReport(reportDef, overrideParameters, currentDir);
 	}
 
+	/**
+	 * Run the reports, diffing and uploading each one as soon as the adapter has written it
+	 * @param reportDef the parsed report csv file
+	 * @param overrideParameters the override parameters for this site
+	 * @param upload whether changed reports are uploaded to the server
+	 */
+	public void runPipeline(LinkedList<String[]> reportDef, HashMap<String, String[]> overrideParameters, boolean upload)
+	{
+		//sorted runs left behind by a run that was stopped part way through a diff
+		File sortFolder = new File(getConfigValue("aida_dir")+slash+sortDir);
+		if(sortFolder.isDirectory()) emptyDir(sortFolder.getPath());
+
+		//changes left unsent by the last run go to the server before any new ones
+		if(upload) resumeUploads();
+
+		reportPipeline pipeline = new reportPipeline(this, upload);
+		pipeline.start();
+
+		boolean success = runReport(reportDef, overrideParameters, pipeline);
+
+		pipeline.finish();
+
+		LinkedList<File> failedUploads = pipeline.getFailedUploads();
+
+		//Cleanup
+		if(success && failedUploads.isEmpty())
+		{
+			moveFiles(getConfigValue("aida_dir")+slash+currentDir, getConfigValue("aida_dir")+slash+previousDir);
+		}
+		else
+		{
+			//reports that made it through the pipeline have been sent, so must not be sent again, while the rest
+			//are left in the current folder so the previous report they are diffed against stays the same
+			moveReports(pipeline.getCompletedReports(), getConfigValue("aida_dir")+slash+previousDir);
+		}
+
+		if(upload)
+		{
+			HashSet<String> unsent = new HashSet<String>();
+			Iterator<File> it = failedUploads.iterator();
+
+			while(it.hasNext()) unsent.add(it.next().getName());
+
+			emptyDir(getConfigValue("aida_dir")+slash+transmitDir, unsent);
+		}
+	}
+
+	/**
+	 * Send the changes a previous run could not finish uploading
+	 * A report whose upload stopped part way through is kept in the current folder along with its changes in the
+	 * transmit folder. Chunked uploads the journal has progress for are carried on from the last acknowledged chunk,
+	 * and once the server has the whole file the report is moved to the previous folder so the next diff starts from it.
+	 * Any other changes left behind are dropped, as diffing the report against the unchanged previous report finds them again
+	 */
+	protected void resumeUploads()
+	{
+		File[] files = new File(getConfigValue("aida_dir")+slash+transmitDir).listFiles();
+
+		if(files == null) return;
+
+		LinkedList<File> sent = new LinkedList<File>();
+
+		for(int i=0; i<files.length; i++)
+		{
+			if(files[i].isDirectory()) continue;
+
+			String fileName = files[i].getName();
+
+			if(getUploadJournal().isUnfinished(fileName, getMD5Hash(files[i]), files[i].length()))
+			{
+				logAdd("Resuming unfinished upload of "+fileName);
+
+				if(transmitFile(fileName))
+				{
+					File report = new File(getConfigValue("aida_dir")+slash+currentDir+slash+fileName);
+
+					if(report.exists()) sent.add(report);
+				}
+				else
+				{
+					logAdd("!"+fileName+" could not be resumed - its changes will be sent with the next diff");
+				}
+			}
+
+			if(!files[i].delete()) logAdd("!"+fileName+" could not be deleted");
+		}
+
+		moveReports(sent, getConfigValue("aida_dir")+slash+previousDir);
+	}
+
+	/**
+	 * Read the key columns declared in the report definitions
+	 * Report definitions may have 'key=' options after their standard columns giving the key column indexes separated by '|'
+	 * @param reportDef the parsed report csv file
+	 */
+	protected void parseReportKeys(LinkedList<String[]> reportDef)
+	{
+		reportKeys.clear();
+
+		Iterator<String[]> it = reportDef.iterator();
+
+		while(it.hasNext())
+		{
+			String[] reportArray = it.next();
+			String keyOption = getReportOption(reportArray, "key");
+
+			if(!keyOption.equals(""))
+			{
+				try
+				{
+					reportKeys.put(reportArray[0], parseKeyColumns(keyOption));
+				}
+				catch(NumberFormatException e)
+				{
+					logAdd("!Invalid key columns for "+reportArray[0]+" - diffing whole lines");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parse a 'key=' report option
+	 * @param keyOption the key column indexes separated by '|'
+	 * @return the key column indexes or null if the option is empty
+	 * @throws NumberFormatException if a column index is not a number
+	 */
+	public static int[] parseKeyColumns(String keyOption)
+	{
+		if(keyOption.equals("")) return null;
+
+		String[] keyCols = keyOption.split("\\|");
+		int[] keys = new int[keyCols.length];
+
+		for(int j=0; j<keyCols.length; j++)
+		{
+			keys[j] = Integer.parseInt(keyCols[j].trim());
+		}
+
+		return keys;
+	}
+
+	/**
+	 * Get an option from a report definition
+	 * Options are 'name=value' columns following the standard columns of a report definition
+	 * @param reportArray the report definition
+	 * @param name the option name
+	 * @return the option value or an empty string if it is not set
+	 */
+	public static String getReportOption(String[] reportArray, String name)
+	{
+		for(int i=reportOptionStart; i<reportArray.length; i++)
+		{
+			int splitPos = reportArray[i].indexOf("=");
+
+			if(splitPos > 0 && reportArray[i].substring(0, splitPos).trim().equals(name))
+			{
+				return reportArray[i].substring(splitPos+1).trim();
+			}
+		}
+
+		return "";
+	}
+
 	/**
 	 * Compare the current and previous reports
 	 * @return the names of files that have changed
@@ -942,216 +1899,790 @@ public class aida
 		logAdd("Comparing reports");
 
 		File[] currFiles = new File(getConfigValue("aida_dir")+slash+currentDir).listFiles();
-		File[] prevFiles = new File(getConfigValue("aida_dir")+slash+previousDir).listFiles();
 
 		LinkedList<String> diffNames = new LinkedList<String>();
+		int reports = 0;
+
+		//go through all files in the current directory (where the mis adaptors will have put the data)
+		for(int i=0; i<currFiles.length; i++)
+		{
+			if(!isReportFile(currFiles[i])) continue;
+
+			reports++;
+
+			//iff the report has changed the diff file will have been created in the transmit directory
+			if(compareReport(currFiles[i]))
+			{
+				//add it to the list of files to be transmitted
+				diffNames.add(currFiles[i].getName());
+			}
+		}
+
+		if(reports == 0)
+		{
+			logAdd("No reports generated");
+		}
+		else if(diffNames.isEmpty())
+		{
+			logAdd("Reports are identical to previous");
+		}
+
+		return diffNames;
+	}
+
+	/**
+	 * Compare a current report with the previous one
+	 * @param currFile the current report
+	 * @return if the report has changed, in which case its diff file has been created in the transmit directory
+	 */
+	public boolean compareReport(File currFile)
+	{
+		File prevFile = new File(getConfigValue("aida_dir")+slash+previousDir+slash+currFile.getName());
+		long start = System.nanoTime();
+
+		try
+		{
+			//If the server is asking for incremental reports and there is a previous report, skip the diff if the file is unchanged
+			if(incremental && prevFile.exists())
+			{
+				//compare hashes
+				if(getReportHash(currFile).equals(getReportHash(prevFile)))
+				{
+					return false;
+				}
+			}
+
+			return diffReports(currFile);
+		}
+		finally
+		{
+			addMetric(runMetrics.scopeReport, currFile.getName(), "diff_ms", runMetrics.since(start));
+		}
+	}
+
+	/**
+	 * Run a diff on the new report and the previous one
+	 * Previous reports that fit in the diff_memory budget are diffed in memory, larger ones are sorted on disk and merged
+	 * @param currFile the new file to run a diff on
+	 * @return if differences exist
+	 */
+	protected boolean diffReports(File currFile)
+	{
+		diffWriter diffOut = new diffWriter(new File(getConfigValue("aida_dir")+slash+transmitDir+slash+currFile.getName()));
 
-		//If the server is asking for incremental reports and there are previous reports in the previous directory
-		if(incremental && prevFiles.length > 0)
+		try
 		{
-			//go through all files in the current directory (where the mis adaptors will have put the data)
-			for(int i=0; i<currFiles.length; i++)
+			logAdd("Diffing "+currFile.getName());
+
+			File prevFile = new File(getConfigValue("aida_dir")+slash+previousDir+slash+currFile.getName());
+
+			//If the server is asking for incremental reports and there is a corresponding previous report
+			if(incremental && prevFile.exists())
 			{
-				File prevFile = new File(getConfigValue("aida_dir")+slash+previousDir+slash+currFiles[i].getName());
+				int[] keys = reportKeys.get(currFile.getName());
+				rowIndex prevIndex = null;
 
-				if(prevFile.exists())
+				//the fingerprint index saved with the previous report saves parsing it again
+				if(keys == null && useRowIndex())
 				{
-					//compare MD5 hashes
-					if(!(getMD5Hash(currFiles[i]).equals(getMD5Hash(prevFile))))
+					String prevHash = getMD5Hash(prevFile);
+					int indexSize = rowIndex.getSize(prevFile, prevHash);
+
+					if((long)indexSize*indexMemoryPerRow > getDiffMemory())
 					{
-						//iff the diffreports function has found differences it will have created the diff file in the transmit directory
-						if(diffReports(currFiles[i]))
-						{
-							//add it to the list of files to be transmitted
-							diffNames.add(currFiles[i].getName());
-						}
+						oversizedIndexes.add(currFile.getName());
+					}
+					else if(indexSize >= 0)
+					{
+						prevIndex = rowIndex.open(prevFile, prevHash);
+					}
+				}
+
+				if(prevIndex != null)
+				{
+					indexDiff(currFile, prevFile, prevIndex, diffOut);
+				}
+				else if(prevFile.length()*diffMemoryFactor > getDiffMemory())
+				{
+					if(keys == null || !keyedMergeDiff(currFile, prevFile, keys, diffOut))
+					{
+						mergeDiff(currFile, prevFile, diffOut);
 					}
 				}
 				else
 				{
-					if(diffReports(currFiles[i]))
+					if(keys == null || !keyedHashDiff(currFile, prevFile, keys, diffOut))
 					{
-						diffNames.add(currFiles[i].getName());
+						hashDiff(currFile, prevFile, diffOut);
 					}
 				}
 			}
+			else
+			{
+				CSVReader currRead = new CSVReader(new FileReader(currFile));
+
+				//whole file will be marked as additions/updates and transmitted
+				while(currRead.nextRow())
+				{
+					diffOut.write("1,"+currRead.getRowAsString());
+				}
+
+				currRead.close();
+			}
+
+			addMetric(runMetrics.scopeReport, currFile.getName(), "diff_rows", diffOut.rows);
+
+			//The differences file is only created once the first difference is found
+			return diffOut.close();
+		}
+		catch (FileNotFoundException e)
+		{
+			logAdd("!Files could not be found");
+		}
+		catch (IOException e)
+		{
+			logAdd("!File read error");
+			logAdd("!"+e.getMessage());
+		}
+
+		diffOut.abort();
+
+		return false;
+	}
+
+	/**
+	 * Diff a report against the previous one in memory
+	 * The previous report is loaded into a multiset (line to occurrence count) so each file is read once
+	 * @param currFile the new report
+	 * @param prevFile the previous report
+	 * @param diffOut the differences file
+	 */
+	protected void hashDiff(File currFile, File prevFile, diffWriter diffOut) throws IOException
+	{
+		//count the occurrences of each line in the previous data, keeping the order lines were first seen in
+		LinkedHashMap<String, int[]> prevLines = new LinkedHashMap<String, int[]>();
+
+		CSVReader prevRead = new CSVReader(new FileReader(prevFile));
+
+		while(prevRead.nextRow())
+		{
+			String line = prevRead.getRowAsString();
+			int[] count = prevLines.get(line);
+
+			if(count == null) prevLines.put(line, new int[]{1});
+			else count[0]++;
+		}
+
+		prevRead.close();
+
+		CSVReader currRead = new CSVReader(new FileReader(currFile));
+
+		while(currRead.nextRow())
+		{
+			String line = currRead.getRowAsString();
+			int[] count = prevLines.get(line);
+
+			//if the line is in the previous data then it can be disregarded
+			if(count != null && count[0] > 0)
+			{
+				count[0]--;
+			}
+			//if the line is not in the previous data then it must be new
+			else
+			{
+				diffOut.write("1,"+line);
+			}
+		}
+
+		currRead.close();
+
+		//any lines left in the previous data must have been deleted in the current data
+		Iterator<Map.Entry<String, int[]>> it = prevLines.entrySet().iterator();
+
+		while(it.hasNext())
+		{
+			Map.Entry<String, int[]> entry = it.next();
 
-			if(diffNames.isEmpty())
+			for(int i=0; i<entry.getValue()[0]; i++)
 			{
-				logAdd("Reports are identical to previous");
+				diffOut.write("0,"+entry.getKey());
 			}
 		}
-		else
+	}
+
+	/**
+	 * Diff a report against the fingerprint index of the previous one
+	 * Only the current report is parsed. Rows whose hash is not in the index are new, and index rows left unmatched
+	 * are read back from the previous report by offset as deletions. The index of the current report is saved as it is read.
+	 * @param currFile the new report
+	 * @param prevFile the previous report
+	 * @param prevIndex the index of the previous report
+	 * @param diffOut the differences file
+	 */
+	protected void indexDiff(File currFile, File prevFile, rowIndex prevIndex, diffWriter diffOut) throws IOException
+	{
+		rowIndex.indexBuilder currIndex = new rowIndex.indexBuilder();
+		rowIndex.rowScanner currRows = new rowIndex.rowScanner(new FileInputStream(currFile));
+
+		try
+		{
+			while(currRows.next())
+			{
+				currIndex.add(currRows.hash, currRows.offset);
+
+				//rows that are not in the previous data must be new
+				if(!prevIndex.consume(currRows.hash))
+				{
+					String line = currRows.toCSVString();
+
+					if(line != null) diffOut.write("1,"+line);
+				}
+			}
+		}
+		finally
+		{
+			currRows.close();
+		}
+
+		//rows of the previous data that were not matched must have been deleted
+		long[] deleted = prevIndex.getUnconsumedOffsets();
+
+		if(deleted.length > 0)
 		{
-			if(currFiles.length > 0)
+			rowIndex.rowScanner prevRows = new rowIndex.rowScanner(new RandomAccessFile(prevFile, "r"));
+
+			try
 			{
-				for(int i=0; i<currFiles.length; i++)
+				for(int i=0; i<deleted.length; i++)
 				{
-					if(diffReports(currFiles[i]))
+					prevRows.seek(deleted[i]);
+
+					if(prevRows.next())
 					{
-						diffNames.add(currFiles[i].getName());
+						String line = prevRows.toCSVString();
+
+						if(line != null) diffOut.write("0,"+line);
 					}
 				}
 			}
-			else
+			finally
 			{
-				logAdd("No reports generated");
+				prevRows.close();
 			}
 		}
 
-		return diffNames;
+		currIndex.write(currFile, getMD5Hash(currFile));
 	}
 
+	/**
+	 * Check if fingerprint indexes of reports are to be kept
+	 * They are kept unless row_index is set to false in the config file
+	 * @return if indexes are used
+	 */
+	protected boolean useRowIndex()
+	{
+		return !getConfigValue("row_index").equals("false");
+	}
 
 	/**
-	 * Run a diff on the new report and the previous one
-	 * @param currFile the new file to run a diff on
-	 * @return if differences exist
+	 * Diff a report against the previous one on disk
+	 * Both reports are sorted into runs in the scratch folder, then the sorted lines are merged side by side
+	 * @param currFile the new report
+	 * @param prevFile the previous report
+	 * @param diffOut the differences file
 	 */
-	protected boolean diffReports(File currFile)
+	protected void mergeDiff(File currFile, File prevFile, diffWriter diffOut) throws IOException
 	{
+		logAdd("Sorting "+currFile.getName()+" on disk");
+
+		String scratchDir = getConfigValue("aida_dir")+slash+sortDir;
+
+		if(!checkDir(scratchDir)) throw new IOException(scratchDir+" is not writable");
+
+		reportSorter sorter = new reportSorter(new File(scratchDir), getDiffMemory()/2);
+
+		reportSorter.sortedReader currRead = sorter.sort(currFile);
+		reportSorter.sortedReader prevRead = null;
+
 		try
 		{
-			logAdd("Diffing "+currFile.getName());
-
-			LinkedList<String> differences = new LinkedList<String>();
+			prevRead = sorter.sort(prevFile);
 
-			File prevFile = new File(getConfigValue("aida_dir")+slash+previousDir+slash+currFile.getName());
+			String currLine = currRead.readLine();
+			String prevLine = prevRead.readLine();
 
-			//If the server is asking for incremental reports and there is a corresponding previous report
-			if(incremental && prevFile.exists())
+			while(currLine != null || prevLine != null)
 			{
-				LinkedList<String> currLines = new LinkedList<String>();
-				LinkedList<String> prevLines = new LinkedList<String>();
-	
-				CSVReader currRead = new CSVReader(new FileReader(currFile));
-	
-				//populate linked list from data file
-				while(currRead.ready())
+				int cmp;
+
+				if(currLine == null) cmp = 1;
+				else if(prevLine == null) cmp = -1;
+				else cmp = currLine.compareTo(prevLine);
+
+				//lines in both reports can be disregarded
+				if(cmp == 0)
 				{
-					currLines.add(currRead.readNextAsString());
+					currLine = currRead.readLine();
+					prevLine = prevRead.readLine();
 				}
-	
-				CSVReader prevRead = new CSVReader(new FileReader(prevFile));
-				
-				//populate linked list from data file
-				while(prevRead.ready())
+				//lines only in the current report must be new
+				else if(cmp < 0)
 				{
-					prevLines.add(prevRead.readNextAsString());
+					diffOut.write("1,"+reportSorter.decode(currLine));
+					currLine = currRead.readLine();
 				}
-	
-				while (!currLines.isEmpty())
+				//lines only in the previous report must have been deleted
+				else
 				{
-					String currLine = currLines.removeFirst();
+					diffOut.write("0,"+reportSorter.decode(prevLine));
+					prevLine = prevRead.readLine();
+				}
+			}
+		}
+		finally
+		{
+			currRead.close();
+			if(prevRead != null) prevRead.close();
+		}
+	}
+
+	/**
+	 * Diff a report with key columns against the previous one in memory
+	 * Rows are matched by key and rows whose other columns have changed are sent as update lines
+	 * @param currFile the new report
+	 * @param prevFile the previous report
+	 * @param keys the key column indexes
+	 * @param diffOut the differences file
+	 * @return false if either report has duplicate keys and must be diffed by whole lines instead
+	 */
+	protected boolean keyedHashDiff(File currFile, File prevFile, int[] keys, diffWriter diffOut) throws IOException
+	{
+		//index the previous rows by key, keeping the order they were read in
+		LinkedHashMap<String, String[]> prevRows = new LinkedHashMap<String, String[]>();
+
+		CSVReader prevRead = new CSVReader(new FileReader(prevFile));
+
+		while(prevRead.nextRow())
+		{
+			if(prevRows.put(prevRead.getColumnsAsString(keys), prevRead.getFields()) != null)
+			{
+				prevRead.close();
+				logAdd("!Duplicate keys in "+prevFile.getName()+" - diffing whole lines");
+				return false;
+			}
+		}
+
+		prevRead.close();
+
+		HashSet<String> currKeys = new HashSet<String>();
+
+		CSVReader currRead = new CSVReader(new FileReader(currFile));
+
+		while(currRead.nextRow())
+		{
+			String key = currRead.getColumnsAsString(keys);
+
+			if(!currKeys.add(key))
+			{
+				currRead.close();
+				diffOut.discard();
+				logAdd("!Duplicate keys in "+currFile.getName()+" - diffing whole lines");
+				return false;
+			}
+
+			String[] prevFields = prevRows.remove(key);
+
+			//rows with new keys must be new
+			if(prevFields == null)
+			{
+				diffOut.write("1,"+currRead.getRowAsString());
+			}
+			//unchanged rows are compared in place without splitting them into strings
+			else if(!currRead.rowEquals(prevFields))
+			{
+				writeUpdate(prevFields, currRead.getFields(), keys, diffOut);
+			}
+		}
+
+		currRead.close();
+
+		//any rows left in the previous data must have been deleted in the current data
+		Iterator<String[]> it = prevRows.values().iterator();
+
+		while(it.hasNext())
+		{
+			diffOut.write("0,"+CSVReader.toCSVString(it.next()));
+		}
+
+		return true;
+	}
+
+	/**
+	 * Diff a report with key columns against the previous one on disk
+	 * Both reports are sorted by key in the scratch folder, then rows with the same key are matched while merging
+	 * @param currFile the new report
+	 * @param prevFile the previous report
+	 * @param keys the key column indexes
+	 * @param diffOut the differences file
+	 * @return false if either report has duplicate keys and must be diffed by whole lines instead
+	 */
+	protected boolean keyedMergeDiff(File currFile, File prevFile, int[] keys, diffWriter diffOut) throws IOException
+	{
+		logAdd("Sorting "+currFile.getName()+" by key on disk");
+
+		String scratchDir = getConfigValue("aida_dir")+slash+sortDir;
+
+		if(!checkDir(scratchDir)) throw new IOException(scratchDir+" is not writable");
+
+		reportSorter sorter = new reportSorter(new File(scratchDir), getDiffMemory()/2);
+
+		reportSorter.sortedReader currRead = sorter.sort(currFile, keys);
+		reportSorter.sortedReader prevRead = null;
+		File duplicates = null;
+
+		try
+		{
+			prevRead = sorter.sort(prevFile, keys);
+
+			String currLine = currRead.readLine();
+			String prevLine = prevRead.readLine();
+			String currKey = getSortedKey(currLine);
+			String prevKey = getSortedKey(prevLine);
+
+			while(currLine != null || prevLine != null)
+			{
+				int cmp;
+
+				if(currLine == null) cmp = 1;
+				else if(prevLine == null) cmp = -1;
+				else cmp = currKey.compareTo(prevKey);
 
-					//if the line is in the previous data then it can be disregarded
-					if(prevLines.contains(currLine))
+				//rows with the same key are unchanged or updated
+				if(cmp == 0)
+				{
+					if(!currLine.equals(prevLine))
 					{
-						prevLines.remove(currLine);
+						writeUpdate(parseSortedLine(prevLine), parseSortedLine(currLine), keys, diffOut);
 					}
-					//if the line is not in the previous data then it must be new
-					else
+				}
+				//keys only in the current report must be new
+				else if(cmp < 0)
+				{
+					diffOut.write("1,"+reportSorter.decode(currLine.substring(currLine.indexOf(reportSorter.keySeparator)+1)));
+				}
+				//keys only in the previous report must have been deleted
+				else
+				{
+					diffOut.write("0,"+reportSorter.decode(prevLine.substring(prevLine.indexOf(reportSorter.keySeparator)+1)));
+				}
+
+				//rows with the same key are next to each other once sorted, so a repeated key shows up straight away
+				if(cmp <= 0)
+				{
+					String lastKey = currKey;
+					currLine = currRead.readLine();
+					currKey = getSortedKey(currLine);
+
+					if(lastKey.equals(currKey))
 					{
-						differences.add("1,"+currLine);
+						duplicates = currFile;
+						break;
 					}
 				}
 
-				//any lines left in the previous data must have been deleted in the current data
-				while (!prevLines.isEmpty())
+				if(cmp >= 0)
 				{
-					differences.add("0,"+prevLines.removeFirst());
+					String lastKey = prevKey;
+					prevLine = prevRead.readLine();
+					prevKey = getSortedKey(prevLine);
+
+					if(lastKey.equals(prevKey))
+					{
+						duplicates = prevFile;
+						break;
+					}
 				}
 			}
-			else
+		}
+		finally
+		{
+			currRead.close();
+			if(prevRead != null) prevRead.close();
+		}
+
+		if(duplicates != null)
+		{
+			diffOut.discard();
+			logAdd("!Duplicate keys in "+duplicates.getName()+" - diffing whole lines");
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Get the key of a line read from a report sorted by key
+	 * @param line the sorted line or null
+	 * @return the encoded key or null if there is no line
+	 */
+	protected static String getSortedKey(String line)
+	{
+		if(line == null) return null;
+
+		return line.substring(0, line.indexOf(reportSorter.keySeparator));
+	}
+
+	/**
+	 * Parse the fields of a line read from a report sorted by key
+	 * @param line the sorted line
+	 * @return the fields of the line
+	 */
+	protected String[] parseSortedLine(String line) throws IOException
+	{
+		String csvLine = reportSorter.decode(line.substring(line.indexOf(reportSorter.keySeparator)+1));
+
+		CSVReader reader = new CSVReader(new StringReader(csvLine));
+		String[] fields = reader.readNext();
+		reader.close();
+
+		return fields != null ? fields : new String[0];
+	}
+
+	/**
+	 * Write the differences between two rows with the same key
+	 * Update lines are '2,' followed by the changed column indexes separated by '|', the key values and then the changed values
+	 * Rows with a different number of columns are sent as a deletion and an addition
+	 * @param prevFields the previous row
+	 * @param currFields the current row
+	 * @param keys the key column indexes
+	 * @param diffOut the differences file
+	 */
+	protected void writeUpdate(String[] prevFields, String[] currFields, int[] keys, diffWriter diffOut) throws IOException
+	{
+		if(prevFields.length != currFields.length)
+		{
+			diffOut.write("0,"+CSVReader.toCSVString(prevFields));
+			diffOut.write("1,"+CSVReader.toCSVString(currFields));
+			return;
+		}
+
+		LinkedList<String> update = new LinkedList<String>();
+		String changed = "";
+
+		for(int i=0; i<currFields.length; i++)
+		{
+			if(!currFields[i].equals(prevFields[i]))
 			{
-				CSVReader currRead = new CSVReader(new FileReader(currFile));
+				if(!changed.equals("")) changed += "|";
+				changed += i;
+				update.add(currFields[i]);
+			}
+		}
 
-				//whole file will be marked as additions/updates and transmitted
-				while(currRead.ready())
-				{
-					differences.add("1,"+currRead.readNextAsString());
-				}
+		//the rows are identical
+		if(changed.equals("")) return;
+
+		for(int i=keys.length-1; i>=0; i--)
+		{
+			update.addFirst(keys[i] < currFields.length ? currFields[keys[i]] : "");
+		}
+
+		update.addFirst(changed);
+
+		diffOut.write("2,"+CSVReader.toCSVString(update.toArray(new String[0])));
+	}
+
+	/**
+	 * Get the memory budget for diffing a single report
+	 * @return the budget in bytes
+	 */
+	protected long getDiffMemory()
+	{
+		long megabytes = defaultDiffMemory;
+
+		if(!getConfigValue("diff_memory").equals(""))
+		{
+			try
+			{
+				megabytes = Long.parseLong(getConfigValue("diff_memory"));
+			}
+			catch(NumberFormatException e)
+			{
+				logAdd("!Invalid diff_memory setting - using "+defaultDiffMemory+"MB");
 			}
+		}
 
-			//Write the differences to a file to be transmitted to the server
-			if(!differences.isEmpty())
-			{
-				logAdd("Creating "+getConfigValue("aida_dir")+slash+transmitDir+slash+currFile.getName());
+		return megabytes*1024*1024;
+	}
 
-				FileWriter fileOut = new FileWriter(getConfigValue("aida_dir")+slash+transmitDir+slash+currFile.getName(), false);
-		
-				while (!differences.isEmpty())
-				{
-					fileOut.write(differences.removeFirst()+"\r\n");
-				}
-		
-				fileOut.flush();
-				fileOut.close();
+	/**
+	 * Writes the differences file for a report
+	 * The file is only created when the first difference is written
+	 */
+	static class diffWriter
+	{
+		/**
+		 * the differences file in the transmit folder
+		 */
+		protected File diffFile;
 
-				return true;
+		/**
+		 * the open differences file or null if it has not been created yet
+		 */
+		protected BufferedWriter fileOut;
+
+		/**
+		 * the number of lines written
+		 */
+		protected long rows = 0;
+
+		/**
+		 * Constructor
+		 * @param diffFile the differences file in the transmit folder
+		 */
+		diffWriter(File diffFile)
+		{
+			this.diffFile = diffFile;
+		}
+
+		/**
+		 * Write a line to the differences file
+		 * @param line the line to write
+		 */
+		void write(String line) throws IOException
+		{
+			if(fileOut == null)
+			{
+				logAdd("Creating "+diffFile.getPath());
+				fileOut = new BufferedWriter(new FileWriter(diffFile, false));
 			}
+
+			fileOut.write(line);
+			fileOut.write("\r\n");
+			rows++;
 		}
-		catch (FileNotFoundException e)
+
+		/**
+		 * Finish the differences file
+		 * @return if any differences were written
+		 */
+		boolean close() throws IOException
 		{
-			logAdd("!Files could not be found");
-			return false;
+			if(fileOut == null) return false;
+
+			fileOut.flush();
+			fileOut.close();
+			fileOut = null;
+
+			return true;
 		}
-		catch (IOException e)
+
+		/**
+		 * Throw away the lines written so far, so the differences can be written again from the start
+		 */
+		void discard()
 		{
-			logAdd("!File read error");
-			logAdd("!"+e.getMessage());
-			return false;
+			abort();
+
+			if(diffFile.exists() && !diffFile.delete())
+			{
+				logAdd("!"+diffFile.getName()+" could not be deleted");
+			}
+
+			rows = 0;
 		}
 
-		return false;
+		/**
+		 * Close the differences file after an error
+		 */
+		void abort()
+		{
+			try
+			{
+				if(fileOut != null) fileOut.close();
+			}
+			catch(IOException e)
+			{
+			}
+
+			fileOut = null;
+		}
 	}
 
 	/**
 	 * Create an MD5 hash on a file
+	 * The raw bytes of the file are hashed and the hash is cached until the file changes
 	 * @param file the name of the file to hash
 	 * @return the MD5 hash
 	 */
 	protected String getMD5Hash(File file)
 	{
-		logAdd("Creating MD5 hash on "+file.getPath());
+		return getHash(file, hashCache.md5);
+	}
+
+	/**
+	 * Create a hash on a report to compare it with the previous one
+	 * This is MD5 unless compare_hash is set to fast in the config file, in which case a quicker non-cryptographic fingerprint is used
+	 * @param file the report
+	 * @return the hash
+	 */
+	protected String getReportHash(File file)
+	{
+		return getHash(file, getConfigValue("compare_hash").equals(hashCache.fingerprint) ? hashCache.fingerprint : hashCache.md5);
+	}
 
+	/**
+	 * Create a hash on a file
+	 * @param file the file to hash
+	 * @param algorithm the hash algorithm
+	 * @return the hash or an empty string if the file could not be read
+	 */
+	protected String getHash(File file, String algorithm)
+	{
 		String hash = "";
 
 		try
 		{
-			FileReader fileRead = new FileReader(file);
-			MessageDigest md = MessageDigest.getInstance("MD5");
-
-			char[] chars = new char[1024];
-			int charsRead = 0;
-	
-			do
+			if(getHashCache().getCached(file, algorithm) == null)
 			{
-				charsRead = fileRead.read(chars, 0, chars.length);
+				logDebug("Creating "+algorithm.toUpperCase()+" hash on "+file.getPath());
 
-				if(charsRead >= 0)
-				{
-					md.update(new String(chars, 0, charsRead).getBytes());
-				}
-			}
-			while(charsRead >= 0);
+				long start = System.nanoTime();
+				hash = getHashCache().getHash(file, algorithm);
 
-			hash = new BigInteger(1, md.digest()).toString(16);
-		}
-		catch (NoSuchAlgorithmException e)
-		{
-			logAdd("Could not create MD5 message digester");
+				addMetric(runMetrics.scopeRun, "hash", "ms", runMetrics.since(start));
+				addMetric(runMetrics.scopeRun, "hash", "bytes", file.length());
+			}
+			else
+			{
+				hash = getHashCache().getHash(file, algorithm);
+			}
 		}
 		catch (IOException e)
 		{
 			logAdd("Could not read file "+file.getName());
+			logAdd(e.getMessage());
 		}
-		
-		logAdd("MD5 hash: "+hash);
-		
+
+		logDebug(algorithm.toUpperCase()+" hash: "+hash);
+
 		return hash;
 	}
 
+	/**
+	 * Get the hash cache, loading it from the IRIS folder the first time
+	 * @return the hash cache
+	 */
+	protected synchronized hashCache getHashCache()
+	{
+		if(hashes == null)
+		{
+			hashes = new hashCache(new File(getConfigValue("aida_dir")+slash+hashCacheFile));
+		}
+
+		return hashes;
+	}
+
 	/**
 	 * Create directories if required and check write permissions
 	 * @param dir the folder to be checked/created
@@ -1159,7 +2690,7 @@ public class aida
 	 */
 	protected boolean checkDir(String dir)
 	{
-		logAdd("Checking folder "+dir);
+		logDebug("Checking folder "+dir);
 
 		File newDir = new File(dir);
 
@@ -1233,6 +2764,16 @@ public class aida
 	 * @param dir the folder to be emptied
 	 */
 	protected void emptyDir(String dir)
+	{
+		emptyDir(dir, new HashSet<String>());
+	}
+
+	/**
+	 * Empty a directory apart from some files
+	 * @param dir the folder to be emptied
+	 * @param keep the names of the files to keep
+	 */
+	protected void emptyDir(String dir, HashSet<String> keep)
 	{
 		logAdd("Emptying folder "+dir);
 
@@ -1242,7 +2783,7 @@ public class aida
 		{
 			try
 			{
-				if(!files[i].isDirectory())
+				if(!files[i].isDirectory() && !keep.contains(files[i].getName()))
 				{
 					if(!files[i].delete())
 					{
@@ -1258,51 +2799,111 @@ public class aida
 	}
 
 	/**
-	 * Copy file
+	 * Copy a file, writing it under a temporary name first so a partial copy never replaces the destination
 	 * @param inputFile the file to copy
-	 * @param destDir the source folder
+	 * @param outputFile the copy
+	 * @return if the file was copied
 	 */
-	protected void copyFile(File inputFile, String destDir)
+	protected boolean copyFile(File inputFile, File outputFile)
 	{
-		logAdd("Copying "+inputFile.getName()+" to "+destDir);
+		logDebug("Copying "+inputFile.getName()+" to "+outputFile.getParent());
 
-		if(checkDir(destDir))
+		File tempFile = new File(outputFile.getPath()+copySuffix);
+
+		try
 		{
+			FileChannel in = new FileInputStream(inputFile).getChannel();
+
 			try
 			{
-				File outputFile = new File(destDir+slash+inputFile.getName());
-				outputFile.setWritable(true, false);
+				FileChannel out = new FileOutputStream(tempFile).getChannel();
 
-				FileInputStream fis  = new FileInputStream(inputFile);
-				FileOutputStream fos = new FileOutputStream(outputFile);
-	
-				byte[] buf = new byte[1024];
-				int i = 0;
-				while ((i = fis.read(buf)) != -1)
+				try
 				{
-					fos.write(buf, 0, i);
-				}
+					long size = in.size();
+					long position = 0;
 
-				fos.flush();
-				fos.close();
-			}
-			catch (FileNotFoundException e)
-			{
-				logAdd("Could not open "+destDir);
+					while(position < size)
+					{
+						position += in.transferTo(position, size-position, out);
+					}
+
+					out.force(true);
+				}
+				finally
+				{
+					out.close();
+				}
 			}
-			catch (IOException e)
+			finally
 			{
-				logAdd("Could not read file "+inputFile.getName());
+				in.close();
 			}
+
+			//a report moved to another drive keeps its modification time, so its fingerprint index stays valid
+			tempFile.setLastModified(inputFile.lastModified());
+
+			Files.move(tempFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			outputFile.setWritable(true, false);
+
+			//the copy has the same content, so its hashes need not be worked out again
+			getHashCache().copied(inputFile, outputFile);
+
+			return true;
 		}
-		else
+		catch (IOException e)
+		{
+			logAdd("!Could not copy "+inputFile.getName()+" to "+outputFile.getParent());
+			logAdd("!"+e.getMessage());
+			tempFile.delete();
+
+			return false;
+		}
+	}
+
+	/**
+	 * Move a file, replacing any file with the same name in one step
+	 * Folders on the same drive only need the file renamed; otherwise the file is copied and then deleted
+	 * @param inputFile the file to move
+	 * @param outputFile the new location
+	 * @return if the file was moved
+	 */
+	protected boolean moveFile(File inputFile, File outputFile)
+	{
+		logDebug("Moving "+inputFile.getName()+" to "+outputFile.getParent());
+
+		try
+		{
+			Files.move(inputFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			outputFile.setWritable(true, false);
+
+			getHashCache().moved(inputFile, outputFile);
+
+			return true;
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			if(!copyFile(inputFile, outputFile)) return false;
+
+			if(!inputFile.delete()) logAdd("!"+inputFile.getName()+" could not be deleted");
+
+			return true;
+		}
+		catch (IOException e)
 		{
-			logAdd(destDir+" is not accessable");
+			logAdd("!Could not move "+inputFile.getName()+" to "+outputFile.getParent());
+			logAdd("!"+e.getMessage());
+
+			return false;
 		}
 	}
 
 	/**
 	 * Move files
+	 * Each report replaces the previous one in a single rename, so a run stopped part way through leaves every report
+	 * in the destination folder either as it was or as it is now, rather than leaving the folder empty.
+	 * Files in the destination folder that were not replaced, such as reports that are no longer run, are then deleted.
+	 * Reports without an up to date fingerprint index have one built so it is moved along with them
 	 * @param sourceDir the source folder
 	 * @param destDir the source folder
 	 */
@@ -1316,18 +2917,37 @@ public class aida
 
 				File source = new File(sourceDir);
 				File dest = new File(destDir);
-	
-				emptyDir(destDir);
 
+				if(useRowIndex()) indexReports(source.listFiles(), dest);
+
+				HashSet<String> moved = new HashSet<String>();
 				File[] files = source.listFiles();
 
 				for(int i=0; i<files.length; i++)
 				{
-					copyFile(files[i], destDir);
+					if(isReportFile(files[i])) moveReport(files[i], dest, moved);
+				}
+
+				//anything else left, such as files kept alongside reports that no longer exist
+				files = source.listFiles();
+
+				for(int i=0; i<files.length; i++)
+				{
+					if(!files[i].isDirectory() && moveFile(files[i], new File(dest, files[i].getName())))
+					{
+						moved.add(files[i].getName());
+					}
 				}
 
-				emptyDir(sourceDir);
+				files = dest.listFiles();
 
+				for(int i=0; i<files.length; i++)
+				{
+					if(!files[i].isDirectory() && !moved.contains(files[i].getName()) && !files[i].delete())
+					{
+						logAdd("!"+files[i].getName()+" could not be deleted");
+					}
+				}
 			}
 			catch (SecurityException e)
 			{
@@ -1336,6 +2956,122 @@ public class aida
 		}
 	}
 
+	/**
+	 * Check if a file is a report rather than a folder or a file kept alongside a report
+	 * @param file the file to check
+	 * @return if the file is a report
+	 */
+	protected boolean isReportFile(File file)
+	{
+		return !file.isDirectory() && !rowIndex.isIndexFile(file) && !watermark.isWatermarkFile(file);
+	}
+
+	/**
+	 * Move individual reports, along with their fingerprint indexes and watermarks
+	 * @param reports the report files
+	 * @param destDir the destination folder
+	 */
+	protected void moveReports(LinkedList<File> reports, String destDir)
+	{
+		if(reports.isEmpty() || !checkDir(destDir)) return;
+
+		logAdd("Moving "+reports.size()+" completed reports to "+destDir);
+
+		File[] files = reports.toArray(new File[0]);
+
+		if(useRowIndex()) indexReports(files, new File(destDir));
+
+		for(int i=0; i<files.length; i++)
+		{
+			moveReport(files[i], new File(destDir), new HashSet<String>());
+		}
+	}
+
+	/**
+	 * Move a report along with its fingerprint index and watermark
+	 * The report is moved first, so if the move is interrupted the watermark left with it is never newer than its rows
+	 * and the next run extracts too many changed rows rather than too few. The index of the report being replaced is
+	 * deleted before that, so an interrupted move never leaves the new report beside the old report's index
+	 * @param report the report file
+	 * @param destDir the destination folder
+	 * @param moved the names of the files moved so far, which the names of this report's files are added to
+	 */
+	protected void moveReport(File report, File destDir, HashSet<String> moved)
+	{
+		File destIndex = new File(destDir, rowIndex.getIndexFile(report).getName());
+
+		if(destIndex.exists() && !destIndex.delete())
+		{
+			logAdd("!"+destIndex.getName()+" could not be deleted");
+		}
+
+		if(!moveFile(report, new File(destDir, report.getName())))
+		{
+			//an old copy would be diffed against next time as though the changes since had not been sent
+			new File(destDir, report.getName()).delete();
+			report.delete();
+			return;
+		}
+
+		moved.add(report.getName());
+
+		File[] sideFiles = {rowIndex.getIndexFile(report), watermark.getWatermarkFile(report)};
+
+		for(int j=0; j<sideFiles.length; j++)
+		{
+			File destFile = new File(destDir, sideFiles[j].getName());
+
+			if(sideFiles[j].exists() && moveFile(sideFiles[j], destFile))
+			{
+				moved.add(destFile.getName());
+			}
+			else
+			{
+				destFile.delete();
+				sideFiles[j].delete();
+			}
+		}
+	}
+
+	/**
+	 * Build the fingerprint index of reports that do not have an up to date one
+	 * An unchanged report takes over the index of the report it replaces. Keyed reports, which are diffed by key,
+	 * and reports whose index is too large to be used are not indexed
+	 * @param files the report files
+	 * @param destDir the folder the reports are being moved to
+	 */
+	protected void indexReports(File[] files, File destDir)
+	{
+		for(int i=0; i<files.length; i++)
+		{
+			if(!isReportFile(files[i])) continue;
+
+			String name = files[i].getName();
+
+			if(reportKeys.containsKey(name) || oversizedIndexes.contains(name)) continue;
+
+			try
+			{
+				String md5 = getMD5Hash(files[i]);
+
+				if(rowIndex.isValid(files[i], md5)) continue;
+
+				File destFile = new File(destDir, name);
+
+				//an index that is valid for the replaced report and holds this report's hash shows they are identical
+				if(destFile.exists() && rowIndex.carryOver(destFile, files[i], md5)) continue;
+
+				logAdd("Indexing "+name);
+				rowIndex.build(files[i], md5);
+			}
+			catch(IOException e)
+			{
+				logAdd("!"+name+" could not be indexed");
+				logAdd("!"+e.getMessage());
+			}
+		}
+	}
+
 	/**
 	 * Return the current folder
 	 * @return the current folder
@@ -1489,9 +3225,44 @@ public class aida
 
 	/**
 	 * Insert into the log
+	 * Lines starting with '!' are logged as errors
 	 * @param text the text to be inserted
 	 */
 	public static void logAdd(String text)
+	{
+		logAdd(text.startsWith("!") ? logWriter.levelError : logWriter.levelInfo, text);
+	}
+
+	/**
+	 * Insert a detailed line into the log, which is only written if log_level is set to debug
+	 * @param text the text to be inserted
+	 */
+	public static void logDebug(String text)
+	{
+		logAdd(logWriter.levelDebug, text);
+	}
+
+	/**
+	 * Insert into the log
+	 * Until the log has been prepared, lines are appended to the log file directly
+	 * @param level the level of the line
+	 * @param text the text to be inserted
+	 */
+	protected static void logAdd(int level, String text)
+	{
+		logWriter log = logger;
+
+		if(log == null || !log.add(level, text))
+		{
+			appendLog(text);
+		}
+	}
+
+	/**
+	 * Append a line to the log file
+	 * @param text the text to be inserted
+	 */
+	protected static synchronized void appendLog(String text)
 	{
 		try
 		{
@@ -1512,6 +3283,7 @@ public class aida
 
 	/**
 	 * Prepare the log for writing
+	 * The log is written by a background thread and is rotated to iris.old once it reaches log_size kilobytes (50 by default)
 	 */
 	protected void prepareLog()
 	{
@@ -1524,42 +3296,27 @@ public class aida
 				irisDir.mkdirs();
 			}
 
-			File logFile = new File(getConfigValue("aida_dir")+slash+"iris.log");
+			long logSize = defaultLogSize;
 
-			if(!logFile.exists()) logFile.createNewFile();
-			else
+			if(!getConfigValue("log_size").equals(""))
 			{
-				//if the log is over 50k, rename it to iris.old and create a new one
-				if(logFile.length() > 50000)
+				try
+				{
+					logSize = Long.parseLong(getConfigValue("log_size"));
+				}
+				catch(NumberFormatException e)
 				{
-					File oldLog = new File(getConfigValue("aida_dir")+slash+"iris.old");
-
-					if(oldLog.exists()) oldLog.delete();
-
-					logFile.renameTo(oldLog);
-
-					logFile = new File(getConfigValue("aida_dir")+slash+"iris.log");
-					logFile.createNewFile();
 				}
 			}
 
-			FileWriter fileOut = new FileWriter(logFile, true);
-
-			//calculate the data and time and write to config file
-
-			Calendar cal = Calendar.getInstance();
-
-			String minute;
-			if(cal.get(Calendar.MINUTE) < 10) minute = "0" + cal.get(Calendar.MINUTE);
-			else minute = "" + cal.get(Calendar.MINUTE);
+			int level = logWriter.parseLevel(getConfigValue("log_level"), logWriter.levelInfo);
 
-			String timestamp = cal.get(Calendar.HOUR_OF_DAY)+":"+minute+" "+cal.get(Calendar.DATE)+"/"+(cal.get(Calendar.MONTH)+1)+"/"+cal.get(Calendar.YEAR)+"\r\n";
+			logWriter log = new logWriter(new File(getConfigValue("aida_dir")+slash+"iris.log"), new File(getConfigValue("aida_dir")+slash+"iris.old"), logSize*1000, level);
+			log.start();
+			logger = log;
 
-			fileOut.write("\r\n"+timestamp+"\r\n");
-			fileOut.write("Configuration file parsed"+"\r\n");
-
-			fileOut.flush();
-			fileOut.close();
+			logTimestamp();
+			logAdd("Configuration file parsed");
 		}
 		catch (IOException e)
 		{
@@ -1567,9 +3324,32 @@ public class aida
 		}
 	}
 
+	/**
+	 * Write the date and time to the log, at the start of each run
+	 */
+	protected void logTimestamp()
+	{
+		Calendar cal = Calendar.getInstance();
+
+		String minute;
+		if(cal.get(Calendar.MINUTE) < 10) minute = "0" + cal.get(Calendar.MINUTE);
+		else minute = "" + cal.get(Calendar.MINUTE);
+
+		String timestamp = cal.get(Calendar.HOUR_OF_DAY)+":"+minute+" "+cal.get(Calendar.DATE)+"/"+(cal.get(Calendar.MONTH)+1)+"/"+cal.get(Calendar.YEAR)+"\r\n";
+
+		logAdd("\r\n"+timestamp);
+	}
+
 	protected void exit()
 	{
+		if(hashes != null) hashes.save();
+
+		closeConnection();
+
 		logAdd("\r\n");
+
+		if(logger != null) logger.close();
+
 		System.exit(0);	
 	}
 }
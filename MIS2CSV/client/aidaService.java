@@ -0,0 +1,376 @@
+/*
+ *    Copyright 2010 Schools Data Services Limited
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/**
+ * Automated IRIS Data Transfer Agent (AIDA)
+ * Keeps AIDA running between runs, running the reports at the times in the schedule
+ * The server connection, hash cache and database driver stay loaded between runs, runs never overlap,
+ * and a run can be started, checked on or the service stopped through a control port on the local machine
+ * @package AIDA
+ */
+
+import java.util.Date;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+class aidaService implements Runnable
+{
+	/**
+	 * start a run now
+	 */
+	public static final String commandRun = "run";
+
+	/**
+	 * report if a run is in progress
+	 */
+	public static final String commandStatus = "status";
+
+	/**
+	 * stop the service once any run in progress has finished
+	 */
+	public static final String commandStop = "stop";
+
+	/**
+	 * how long a control connection may take to send its command, in milliseconds
+	 */
+	protected static final int controlTimeout = 10000;
+
+	/**
+	 * the longest the scheduler waits before checking the time again, so clock changes are noticed, in milliseconds
+	 */
+	protected static final long maxWait = 60000;
+
+	/**
+	 * the agent that runs the reports
+	 */
+	protected aida agent;
+
+	/**
+	 * the run times
+	 */
+	protected cronSchedule schedule;
+
+	/**
+	 * the local port commands are accepted on, or 0 for none
+	 */
+	protected int controlPort;
+
+	/**
+	 * the control port socket, while the service is running
+	 */
+	protected ServerSocket controlSocket;
+
+	/**
+	 * if a run is in progress, guarded by this
+	 */
+	protected boolean running = false;
+
+	/**
+	 * if a run has been asked for through the control port, guarded by this
+	 */
+	protected boolean runRequested = false;
+
+	/**
+	 * if the service has been asked to stop, guarded by this
+	 */
+	protected boolean stopped = false;
+
+	/**
+	 * Constructor
+	 * @param agent the agent that runs the reports
+	 * @param schedule the run times
+	 * @param controlPort the local port commands are accepted on, or 0 for none
+	 */
+	public aidaService(aida agent, cronSchedule schedule, int controlPort)
+	{
+		this.agent = agent;
+		this.schedule = schedule;
+		this.controlPort = controlPort;
+	}
+
+	/**
+	 * Run the reports at each scheduled time until the service is stopped
+	 * Scheduled times that pass while a run is in progress are skipped
+	 */
+	public void serve()
+	{
+		if(controlPort > 0) openControlPort();
+
+		long next = schedule.nextRun(System.currentTimeMillis());
+
+		aida.logAdd("AIDA service started");
+		logNextRun(next);
+
+		while(true)
+		{
+			String reason;
+
+			synchronized(this)
+			{
+				long now = System.currentTimeMillis();
+
+				while(!stopped && !runRequested && (next < 0 || now < next))
+				{
+					try
+					{
+						wait(next < 0 ? maxWait : Math.min(maxWait, next-now));
+					}
+					catch(InterruptedException e)
+					{
+						stopped = true;
+					}
+
+					now = System.currentTimeMillis();
+				}
+
+				if(stopped) break;
+
+				reason = runRequested ? "Run requested through the control port" : "Scheduled run";
+				runRequested = false;
+				running = true;
+			}
+
+			try
+			{
+				agent.logTimestamp();
+				aida.logAdd(reason);
+				agent.runOnce();
+			}
+			catch(RuntimeException e)
+			{
+				aida.logAdd("!Run failed - "+e);
+			}
+			finally
+			{
+				synchronized(this)
+				{
+					running = false;
+					notifyAll();
+				}
+			}
+
+			next = schedule.nextRun(System.currentTimeMillis());
+			logNextRun(next);
+		}
+
+		closeControlPort();
+
+		aida.logAdd("AIDA service stopped");
+	}
+
+	/**
+	 * Ask for a run to start now
+	 * @return if the run was started, false if one is already in progress
+	 */
+	public synchronized boolean requestRun()
+	{
+		if(running || runRequested || stopped) return false;
+
+		runRequested = true;
+		notifyAll();
+
+		return true;
+	}
+
+	/**
+	 * Check if a run is in progress
+	 * @return if a run is in progress
+	 */
+	public synchronized boolean isRunning()
+	{
+		return running || runRequested;
+	}
+
+	/**
+	 * Stop the service once any run in progress has finished
+	 */
+	public synchronized void stop()
+	{
+		stopped = true;
+		notifyAll();
+	}
+
+	/**
+	 * Log when the next scheduled run is
+	 * @param next the time of the next run in milliseconds or -1 if there is none
+	 */
+	protected void logNextRun(long next)
+	{
+		if(next < 0) aida.logAdd("!The schedule has no future runs");
+		else aida.logAdd("Next run at "+new Date(next));
+	}
+
+	/**
+	 * Start accepting commands on the control port, which only listens on the local machine
+	 */
+	protected void openControlPort()
+	{
+		try
+		{
+			controlSocket = new ServerSocket();
+			controlSocket.bind(new InetSocketAddress(InetAddress.getByName(null), controlPort));
+
+			Thread listener = new Thread(this, "control-port");
+			listener.setDaemon(true);
+			listener.start();
+
+			aida.logAdd("Listening for commands on port "+controlPort);
+		}
+		catch(IOException e)
+		{
+			aida.logAdd("!Could not open control port "+controlPort);
+			aida.logAdd("!"+e.getMessage());
+			controlSocket = null;
+		}
+	}
+
+	/**
+	 * Stop accepting commands
+	 */
+	protected void closeControlPort()
+	{
+		if(controlSocket == null) return;
+
+		try
+		{
+			controlSocket.close();
+		}
+		catch(IOException e)
+		{
+		}
+	}
+
+	/**
+	 * The control port thread, answering one command per connection
+	 */
+	public void run()
+	{
+		while(!controlSocket.isClosed())
+		{
+			Socket client = null;
+
+			try
+			{
+				client = controlSocket.accept();
+
+				//a connection can still be accepted while the port is being closed
+				if(controlSocket.isClosed()) break;
+
+				client.setSoTimeout(controlTimeout);
+
+				BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "US-ASCII"));
+				Writer out = new OutputStreamWriter(client.getOutputStream(), "US-ASCII");
+
+				String command = in.readLine();
+
+				out.write(answer(command == null ? "" : command.trim().toLowerCase())+"\r\n");
+				out.flush();
+			}
+			catch(SocketTimeoutException e)
+			{
+			}
+			catch(IOException e)
+			{
+				if(!controlSocket.isClosed())
+				{
+					aida.logAdd("!Control port error");
+					aida.logAdd("!"+e.getMessage());
+				}
+			}
+			finally
+			{
+				try
+				{
+					if(client != null) client.close();
+				}
+				catch(IOException e)
+				{
+				}
+			}
+		}
+	}
+
+	/**
+	 * Carry out a control command
+	 * @param command the command
+	 * @return the reply
+	 */
+	protected String answer(String command)
+	{
+		if(command.equals(commandRun))
+		{
+			return requestRun() ? "started" : "busy";
+		}
+		else if(command.equals(commandStatus))
+		{
+			return isRunning() ? "running" : "idle";
+		}
+		else if(command.equals(commandStop))
+		{
+			stop();
+			return "stopping";
+		}
+
+		return "unknown command";
+	}
+
+	/**
+	 * Send a command to a running service
+	 * @param port the control port
+	 * @param command the command
+	 * @return the reply or null if no service is listening
+	 */
+	public static String sendCommand(int port, String command)
+	{
+		Socket socket = null;
+
+		try
+		{
+			socket = new Socket(InetAddress.getByName(null), port);
+			socket.setSoTimeout(controlTimeout);
+
+			Writer out = new OutputStreamWriter(socket.getOutputStream(), "US-ASCII");
+			out.write(command+"\r\n");
+			out.flush();
+
+			return new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII")).readLine();
+		}
+		catch(IOException e)
+		{
+			return null;
+		}
+		finally
+		{
+			try
+			{
+				if(socket != null) socket.close();
+			}
+			catch(IOException e)
+			{
+			}
+		}
+	}
+}
@@ -29,8 +29,11 @@ import java.sql.*;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.regex.*;
+import net.sourceforge.jtds.jdbc.CsvRowSink;
 import net.sourceforge.jtds.jdbc.Driver;
+import net.sourceforge.jtds.jdbc.JtdsStatement;
 import net.sourceforge.jtds.jdbcx.JtdsDataSource;
 
 
@@ -58,125 +61,64 @@ public class cmisReport extends misReport
 
 			String slash = File.separator;
 
-			//make the database connection
-			Connection conn = openConnection();
-	
-			if(conn != null)
+			LinkedList<reportQuery> queries = new LinkedList<reportQuery>();
+
+			//go through the lines of the report definition
+			while(!reportDef.isEmpty())
 			{
-				aida.logAdd("Connected to "+aida.getConfigValue("cmis_host"));
+				String[] reportArray = reportDef.removeFirst();
 
-				//go through the lines of the report definition
-				while(!reportDef.isEmpty())
+				//valid report definitions should have a file name and an SQL query, followed by any options
+				if(reportArray.length >= 2)
 				{
-					try
+					String fileName = reportArray[0];
+					String dest = aida.getConfigValue("aida_dir")+slash+currentDir+slash+fileName;
+					String query = reportArray[1];
+
+					int run = 1;
+
+					//replace query and run status with override parameters if applicable
+					if(overrideParameters.containsKey(fileName) && !overrideParameters.get(fileName)[0].isEmpty())
 					{
-						String[] reportArray = reportDef.removeFirst();
+						query = overrideParameters.get(fileName)[0];
+						run = Integer.parseInt(overrideParameters.get(fileName)[1]);
+					}
 
-						//valid report definitions should have only a file name and an SQL query
-						if(reportArray.length == 2)
+					//if the server has no run inhibit flag set
+					if(run == 1)
+					{
+						//check that queries are valid and non-malicious
+						if(query.toLowerCase().startsWith("select") && !(query.indexOf(";") >= 0))
 						{
-							String fileName = reportArray[0];
-							String dest = aida.getConfigValue("aida_dir")+slash+currentDir+slash+fileName;
-							String query = reportArray[1];
-
-							int run = 1;
-
-							//replace query and run status with override parameters if applicable
-							if(overrideParameters.containsKey(fileName) && !overrideParameters.get(fileName)[0].isEmpty())
-							{
-								query = overrideParameters.get(fileName)[0];
-								run = Integer.parseInt(overrideParameters.get(fileName)[1]);
-							}
-
-							//if the server has no run inhibit flag set
-							if(run == 1)
-							{
-								//check that queries are valid and non-malicious
-								if(query.toLowerCase().startsWith("select") && !(query.indexOf(";") >= 0))
-								{
-									//check if this file name has already been used (files will be concatenated later) and create file
-									File destFile = new File(checkDuplicates(dest));
-		
-									aida.logAdd("Creating "+destFile.getName());
-		
-									if(!destFile.exists()) destFile.createNewFile();
-	
-									destFile.setWritable(true, false);
-						
-									FileWriter fileOut = new FileWriter(destFile);
-
-									//run the query
-// set schema if set in aida.ini
-									Statement stmt = conn.createStatement();
-									ResultSet rs = stmt.executeQuery(query);
-				
-									ResultSetMetaData rsmd = rs.getMetaData();
-									int numCols = rsmd.getColumnCount();
-				
-									String[] cols = new String[numCols];
-								
-									// Get the column names; column indices start from 1
-									for (int i=0; i<numCols; i++)
-									{
-										cols[i] = rsmd.getColumnName(i+1);
-									}
-
-									//write the data to the file
-									while(rs.next())
-									{
-										String line = "";
-
-										for (int i=0; i<numCols; i++)
-										{
-											if(i > 0) line += ", ";
-											line += "\""+rs.getString(cols[i])+"\"";
-										}
-				
-										fileOut.write(line+"\r\n");
-									}
-				
-									fileOut.flush();
-									fileOut.close();
-								}
-								else
-								{
-									aida.logAdd("Ignoring illegal query");
-									aida.logAdd(query);
-								}
-							}
-							else
-							{
-								aida.logAdd("Running of "+fileName+" disabled by server");
-							}
+							//check if this file name has already been used (files will be concatenated later)
+							reportQuery job = new reportQuery(new File(dest), new File(checkDuplicates(dest)), query);
+							setWatermark(job, reportArray);
+							queries.add(job);
 						}
 						else
 						{
-							aida.logAdd("Incorrect number of arguments to create report");
+							aida.logAdd("Ignoring illegal query");
+							aida.logAdd(query);
 						}
 					}
-					catch(SQLException e)
+					else
 					{
-						aida.logAdd("!Report could not be run");
-						aida.logAdd("!"+e.getMessage());
-
-						closeConnection(conn);
-						return false;
-					}
-					catch(IOException e)
-					{
-						aida.logAdd("!Could not write report file");
-						aida.logAdd("!"+e.getMessage());
-
-						closeConnection(conn);
-						return false;
+						aida.logAdd("Running of "+fileName+" disabled by server");
 					}
 				}
+				else
+				{
+					aida.logAdd("Incorrect number of arguments to create report");
+				}
+			}
 
-				closeConnection(conn);
-
+			//run the queries, each worker making its own database connection
+			if(runQueries(queries))
+			{
 				//concatenate any split reports into one file
 				concatenate();
-				
+				finishReports();
+
 				return true;
 			}
 		}
@@ -184,6 +126,42 @@ public class cmisReport extends misReport
 		return false;
 	}
 
+	/**
+	 * Run a query and write its rows to a report file
+	 * On a jTDS statement the rows are encoded from the server response straight into the file through a row sink,
+	 * without a String being made of each value. Otherwise they are written from the result set
+	 * @param stmt the statement to run the query on
+	 * @param query the query
+	 * @param fileOut the report writer
+	 * @return the number of rows written
+	 */
+	protected long writeQuery(Statement stmt, String query, csvWriter fileOut) throws SQLException, IOException
+	{
+		OutputStream stream = fileOut.getStream();
+		CsvRowSink sink = null;
+
+		if(stream != null && stmt instanceof JtdsStatement)
+		{
+			try
+			{
+				sink = new CsvRowSink(stream, fileOut.getCharset(), csvWriter.separator, csvWriter.lineEnd, csvWriter.nullValue);
+			}
+			catch(IllegalArgumentException e)
+			{
+				//a charset the driver cannot encode
+				sink = null;
+			}
+		}
+
+		if(sink == null) return super.writeQuery(stmt, query, fileOut);
+
+		long rows = ((JtdsStatement) stmt).executeQuery(query, sink);
+		sink.flush();
+		fileOut.addRows(rows);
+
+		return rows;
+	}
+
 	/**
 	 * Open the database connection
 	 * @return the database connection
@@ -192,16 +170,18 @@ public class cmisReport extends misReport
 	{
 		try
 		{
-			DriverManager.registerDriver(new net.sourceforge.jtds.jdbc.Driver());
+			registerDriver();
 
 			if(aida.validateConfig(new String[]{"sql_instance"}))
 			{
 				Connection conn = java.sql.DriverManager.getConnection("jdbc:jtds:sqlserver://"+aida.getConfigValue("cmis_host")+":"+aida.getConfigValue("cmis_port")+"/"+aida.getConfigValue("cmis_database")+";instance="+aida.getConfigValue("sql_instance"), aida.getConfigValue("cmis_username"), aida.getConfigValue("cmis_password"));
+				aida.logAdd("Connected to "+aida.getConfigValue("cmis_host"));
 				return conn;
 			}
 			else
 			{
 				Connection conn = java.sql.DriverManager.getConnection("jdbc:jtds:sqlserver://"+aida.getConfigValue("cmis_host")+":"+aida.getConfigValue("cmis_port")+"/"+aida.getConfigValue("cmis_database"), aida.getConfigValue("cmis_username"), aida.getConfigValue("cmis_password"));
+				aida.logAdd("Connected to "+aida.getConfigValue("cmis_host"));
 				return conn;
 			}
 
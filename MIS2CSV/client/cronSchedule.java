@@ -0,0 +1,253 @@
+/*
+ *    Copyright 2010 Schools Data Services Limited
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/**
+ * Automated IRIS Data Transfer Agent (AIDA)
+ * The times AIDA runs when it is left running as a service, written as cron entries
+ * Each entry is minute, hour, day of month, month and day of week, and entries are separated by ';',
+ * so '30 2 * * *; 0 13 * * 1-5' runs at 02:30 every day and at 13:00 on weekdays
+ * @package AIDA
+ */
+
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.LinkedList;
+
+class cronSchedule
+{
+	/**
+	 * separates entries
+	 */
+	protected static final String entrySeparator = ";";
+
+	/**
+	 * the furthest ahead a run is looked for, in days
+	 */
+	protected static final int searchDays = 366*5;
+
+	/**
+	 * the parsed entries
+	 */
+	protected LinkedList<cronEntry> entries = new LinkedList<cronEntry>();
+
+	/**
+	 * Constructor
+	 * @param schedule the cron entries
+	 * @throws IllegalArgumentException if an entry cannot be parsed
+	 */
+	public cronSchedule(String schedule)
+	{
+		String[] parts = schedule.split(entrySeparator);
+
+		for(int i=0; i<parts.length; i++)
+		{
+			if(!parts[i].trim().equals("")) entries.add(new cronEntry(parts[i].trim()));
+		}
+
+		if(entries.isEmpty()) throw new IllegalArgumentException("No schedule entries");
+	}
+
+	/**
+	 * Get the time of the next run after a given time
+	 * @param after the time in milliseconds
+	 * @return the time of the next run in milliseconds, on a whole minute, or -1 if the schedule never runs
+	 */
+	public long nextRun(long after)
+	{
+		long next = -1;
+
+		for(int i=0; i<entries.size(); i++)
+		{
+			long entryNext = entries.get(i).nextRun(after);
+
+			if(entryNext >= 0 && (next < 0 || entryNext < next)) next = entryNext;
+		}
+
+		return next;
+	}
+
+	/**
+	 * A single cron entry
+	 */
+	static class cronEntry
+	{
+		/**
+		 * the matching minutes, hours, days of the month, months and days of the week
+		 */
+		BitSet minutes, hours, days, months, weekdays;
+
+		/**
+		 * if the day of the month or day of the week are restricted, in which case a day matching either runs, as cron does
+		 */
+		boolean anyDay, anyWeekday;
+
+		/**
+		 * Constructor
+		 * @param entry the entry
+		 */
+		cronEntry(String entry)
+		{
+			String[] fields = entry.trim().split("\\s+");
+
+			if(fields.length != 5) throw new IllegalArgumentException("Schedule entries need 5 fields - "+entry);
+
+			minutes = parseField(fields[0], 0, 59);
+			hours = parseField(fields[1], 0, 23);
+			days = parseField(fields[2], 1, 31);
+			months = parseField(fields[3], 1, 12);
+			weekdays = parseField(fields[4], 0, 7);
+
+			//Sunday is 0 or 7
+			if(weekdays.get(7)) weekdays.set(0);
+
+			//as in Vixie cron, a field starting with * such as */2 still counts as unrestricted when matching days
+			anyDay = fields[2].startsWith("*");
+			anyWeekday = fields[4].startsWith("*");
+		}
+
+		/**
+		 * Get the time of the next run after a given time
+		 * Whole months, days and hours that cannot match are skipped rather than stepping a minute at a time
+		 * @param after the time in milliseconds
+		 * @return the time of the next run in milliseconds or -1 if there is none within searchDays
+		 */
+		long nextRun(long after)
+		{
+			Calendar cal = Calendar.getInstance();
+			cal.setTimeInMillis(after);
+			cal.set(Calendar.SECOND, 0);
+			cal.set(Calendar.MILLISECOND, 0);
+			cal.add(Calendar.MINUTE, 1);
+
+			long limit = after+searchDays*24L*60*60*1000;
+
+			while(cal.getTimeInMillis() <= limit)
+			{
+				if(!months.get(cal.get(Calendar.MONTH)+1))
+				{
+					cal.set(Calendar.DAY_OF_MONTH, 1);
+					cal.set(Calendar.HOUR_OF_DAY, 0);
+					cal.set(Calendar.MINUTE, 0);
+					cal.add(Calendar.MONTH, 1);
+				}
+				else if(!dayMatches(cal))
+				{
+					cal.set(Calendar.HOUR_OF_DAY, 0);
+					cal.set(Calendar.MINUTE, 0);
+					cal.add(Calendar.DAY_OF_MONTH, 1);
+				}
+				else if(!hours.get(cal.get(Calendar.HOUR_OF_DAY)))
+				{
+					cal.set(Calendar.MINUTE, 0);
+					cal.add(Calendar.HOUR_OF_DAY, 1);
+				}
+				else if(!minutes.get(cal.get(Calendar.MINUTE)))
+				{
+					cal.add(Calendar.MINUTE, 1);
+				}
+				else
+				{
+					return cal.getTimeInMillis();
+				}
+			}
+
+			return -1;
+		}
+
+		/**
+		 * Check if the day of a time matches the entry
+		 * @param cal the time
+		 * @return if the day matches
+		 */
+		boolean dayMatches(Calendar cal)
+		{
+			boolean day = days.get(cal.get(Calendar.DAY_OF_MONTH));
+			boolean weekday = weekdays.get(cal.get(Calendar.DAY_OF_WEEK)-1);
+
+			//a field starting with * only narrows the days the other field allows
+			if(anyDay || anyWeekday) return day && weekday;
+
+			return day || weekday;
+		}
+
+		/**
+		 * Parse a field of an entry
+		 * Fields are '*' or lists of numbers and ranges, each optionally with a '/step'
+		 * @param field the field
+		 * @param min the lowest allowed value
+		 * @param max the highest allowed value
+		 * @return the matching values
+		 */
+		static BitSet parseField(String field, int min, int max)
+		{
+			BitSet values = new BitSet(max+1);
+			String[] items = field.split(",");
+
+			for(int i=0; i<items.length; i++)
+			{
+				String item = items[i];
+				int step = 1;
+				int slash = item.indexOf('/');
+
+				try
+				{
+					if(slash >= 0)
+					{
+						step = Integer.parseInt(item.substring(slash+1));
+						item = item.substring(0, slash);
+					}
+
+					int from;
+					int to;
+
+					if(item.equals("*"))
+					{
+						from = min;
+						to = max;
+					}
+					else if(item.indexOf('-') > 0)
+					{
+						from = Integer.parseInt(item.substring(0, item.indexOf('-')));
+						to = Integer.parseInt(item.substring(item.indexOf('-')+1));
+					}
+					else
+					{
+						from = Integer.parseInt(item);
+						to = slash >= 0 ? max : from;
+					}
+
+					if(from < min || to > max || from > to || step < 1)
+					{
+						throw new IllegalArgumentException("Schedule value out of range - "+field);
+					}
+
+					for(int value=from; value<=to; value+=step)
+					{
+						values.set(value);
+					}
+				}
+				catch(NumberFormatException e)
+				{
+					throw new IllegalArgumentException("Invalid schedule value - "+field);
+				}
+			}
+
+			return values;
+		}
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ *    Copyright 2010 Schools Data Services Limited
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/**
+ * Automated IRIS Data Transfer Agent (AIDA)
+ * Writes query results to a report file in the format read back by CSVReader
+ * @package AIDA
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.BufferedWriter;
+import java.io.Writer;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+class csvWriter
+{
+	/**
+	 * the size of the output buffer, in characters
+	 */
+	protected static final int bufferSize = 65536;
+
+	/**
+	 * the text written between fields
+	 */
+	protected static final String separator = ", ";
+
+	/**
+	 * the text written at the end of each row
+	 */
+	protected static final String lineEnd = "\r\n";
+
+	/**
+	 * the text written for a null value
+	 */
+	protected static final String nullValue = "null";
+
+	/**
+	 * the report file being written
+	 */
+	protected Writer out;
+
+	/**
+	 * the stream under the writer, which rows can also be encoded straight into, or null
+	 */
+	protected OutputStream stream;
+
+	/**
+	 * the name of the charset the rows are encoded in, or null
+	 */
+	protected String charset;
+
+	/**
+	 * the buffer each quoted field is built in, grown as needed and reused for every field
+	 */
+	protected char[] field = new char[256];
+
+	/**
+	 * the number of rows written
+	 */
+	protected long rows = 0;
+
+	/**
+	 * Constructor
+	 * @param file the report file to write, which is overwritten
+	 */
+	public csvWriter(File file) throws IOException
+	{
+		this(new FileOutputStream(file));
+	}
+
+	/**
+	 * Constructor
+	 * @param stream where the rows are written, in the default charset as FileWriter writes them
+	 */
+	public csvWriter(OutputStream stream)
+	{
+		OutputStreamWriter writer = new OutputStreamWriter(stream);
+
+		out = new BufferedWriter(writer, bufferSize);
+		this.stream = stream;
+		charset = writer.getEncoding();
+	}
+
+	/**
+	 * Constructor
+	 * @param writer where the rows are written
+	 */
+	public csvWriter(Writer writer)
+	{
+		out = new BufferedWriter(writer, bufferSize);
+	}
+
+	/**
+	 * Write every remaining row of a result set
+	 * @param rs the result set, positioned before the first row to write
+	 * @return the number of rows written
+	 */
+	public long writeRows(ResultSet rs) throws SQLException, IOException
+	{
+		int numCols = rs.getMetaData().getColumnCount();
+		long start = rows;
+
+		while(rs.next())
+		{
+			writeRow(rs, numCols);
+		}
+
+		return rows-start;
+	}
+
+	/**
+	 * Write the current row of a result set
+	 * Columns are read by index, so queries returning the same column name twice get both values
+	 * @param rs the result set
+	 * @param numCols the number of columns in the result set
+	 */
+	public void writeRow(ResultSet rs, int numCols) throws SQLException, IOException
+	{
+		// column indices start from 1
+		for(int i=1; i<=numCols; i++)
+		{
+			if(i > 1) out.write(separator);
+			writeField(rs.getString(i));
+		}
+
+		out.write(lineEnd);
+		rows++;
+	}
+
+	/**
+	 * Write a row of values
+	 * @param values the values, any of which may be null
+	 */
+	public void writeRow(String[] values) throws IOException
+	{
+		for(int i=0; i<values.length; i++)
+		{
+			if(i > 0) out.write(separator);
+			writeField(values[i]);
+		}
+
+		out.write(lineEnd);
+		rows++;
+	}
+
+	/**
+	 * Write a single quoted field, doubling any quotes in the value
+	 * @param value the value or null
+	 */
+	public void writeField(String value) throws IOException
+	{
+		if(value == null) value = nullValue;
+
+		int length = value.length();
+
+		//worst case every character is a quote
+		if(field.length < length*2+2)
+		{
+			field = new char[Math.max(length*2+2, field.length*2)];
+		}
+
+		int pos = 0;
+		field[pos++] = '"';
+
+		for(int i=0; i<length; i++)
+		{
+			char c = value.charAt(i);
+			field[pos++] = c;
+
+			if(c == '"') field[pos++] = '"';
+		}
+
+		field[pos++] = '"';
+
+		out.write(field, 0, pos);
+	}
+
+	/**
+	 * Get the stream under the writer, so rows can be encoded straight into it, after writing out any buffered rows
+	 * Rows written to the stream must be encoded in the charset given by getCharset, and counted with addRows
+	 * @return the stream, or null if the writer was not made with one
+	 */
+	public OutputStream getStream() throws IOException
+	{
+		out.flush();
+		return stream;
+	}
+
+	/**
+	 * Get the name of the charset rows are encoded in
+	 * @return the charset name, or null if the writer was not made with a stream
+	 */
+	public String getCharset()
+	{
+		return charset;
+	}
+
+	/**
+	 * Count rows written straight to the stream
+	 * @param count the number of rows
+	 */
+	public void addRows(long count)
+	{
+		rows += count;
+	}
+
+	/**
+	 * Get the number of rows written
+	 * @return the number of rows
+	 */
+	public long getRows()
+	{
+		return rows;
+	}
+
+	/**
+	 * Write out any buffered rows
+	 */
+	public void flush() throws IOException
+	{
+		out.flush();
+	}
+
+	/**
+	 * Flush and close the report file
+	 */
+	public void close() throws IOException
+	{
+		out.flush();
+		out.close();
+	}
+}
@@ -0,0 +1,452 @@
+/*
+ *    Copyright 2010 Schools Data Services Limited
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/**
+ * Automated IRIS Data Transfer Agent (AIDA)
+ * File hashes, remembered by file size and modification time so unchanged files are not read again
+ * @package AIDA
+ */
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+class hashCache
+{
+	/**
+	 * the MD5 hash, as used by the server
+	 */
+	public static final String md5 = "md5";
+
+	/**
+	 * the fast 64 bit fingerprint, only used to compare local files
+	 */
+	public static final String fingerprint = "fast";
+
+	/**
+	 * the size of the buffer files are read through, in bytes
+	 */
+	protected static final int bufferSize = 1 << 20;
+
+	/**
+	 * separates the fields of a cache file line
+	 */
+	protected static final char fieldSeparator = '\t';
+
+	/**
+	 * the file the cache is kept in
+	 */
+	protected File cacheFile;
+
+	/**
+	 * the cached hashes, by algorithm and file path
+	 */
+	protected HashMap<String, cacheEntry> entries = new HashMap<String, cacheEntry>();
+
+	/**
+	 * if entries have changed since the cache was loaded
+	 */
+	protected boolean changed = false;
+
+	/**
+	 * Constructor
+	 * Entries are loaded from the cache file if it exists
+	 * @param cacheFile the file the cache is kept in
+	 */
+	public hashCache(File cacheFile)
+	{
+		this.cacheFile = cacheFile;
+
+		if(cacheFile.exists()) load();
+	}
+
+	/**
+	 * Get the hash of a file, only reading the file if its size or modification time have changed
+	 * @param file the file to hash
+	 * @param algorithm md5 or fingerprint
+	 * @return the hash
+	 */
+	public String getHash(File file, String algorithm) throws IOException
+	{
+		String hash = getCached(file, algorithm);
+
+		if(hash == null)
+		{
+			long length = file.length();
+			long modified = file.lastModified();
+
+			hash = algorithm.equals(fingerprint) ? fingerprint(file) : md5(file);
+
+			put(file, algorithm, new cacheEntry(length, modified, hash));
+		}
+
+		return hash;
+	}
+
+	/**
+	 * Get the cached hash of a file
+	 * @param file the file
+	 * @param algorithm md5 or fingerprint
+	 * @return the hash or null if it is not cached or the file has changed
+	 */
+	public synchronized String getCached(File file, String algorithm)
+	{
+		cacheEntry entry = entries.get(getKey(file, algorithm));
+
+		if(entry != null && entry.matches(file)) return entry.hash;
+
+		return null;
+	}
+
+	/**
+	 * Record that a file has been copied, so the copy has the same hashes without being read
+	 * @param source the original file
+	 * @param dest the copy
+	 */
+	public synchronized void copied(File source, File dest)
+	{
+		String[] algorithms = {md5, fingerprint};
+
+		for(int i=0; i<algorithms.length; i++)
+		{
+			String hash = getCached(source, algorithms[i]);
+
+			if(hash != null && dest.length() == source.length())
+			{
+				put(dest, algorithms[i], new cacheEntry(dest.length(), dest.lastModified(), hash));
+			}
+			else if(entries.remove(getKey(dest, algorithms[i])) != null)
+			{
+				changed = true;
+			}
+		}
+	}
+
+	/**
+	 * Record that a file has been moved, so it keeps its hashes under its new name
+	 * @param source the old location
+	 * @param dest the new location
+	 */
+	public synchronized void moved(File source, File dest)
+	{
+		String[] algorithms = {md5, fingerprint};
+
+		for(int i=0; i<algorithms.length; i++)
+		{
+			cacheEntry entry = entries.remove(getKey(source, algorithms[i]));
+
+			if(entry != null && entry.matches(dest))
+			{
+				put(dest, algorithms[i], entry);
+			}
+			else if(entries.remove(getKey(dest, algorithms[i])) != null || entry != null)
+			{
+				changed = true;
+			}
+		}
+	}
+
+	/**
+	 * Save the cache file if it has changed, dropping entries for files that no longer exist or have changed
+	 */
+	public synchronized void save()
+	{
+		if(!changed) return;
+
+		File tempFile = new File(cacheFile.getPath()+".tmp");
+
+		try
+		{
+			BufferedWriter fileOut = new BufferedWriter(new FileWriter(tempFile));
+
+			Iterator<String> it = entries.keySet().iterator();
+
+			while(it.hasNext())
+			{
+				String key = it.next();
+				cacheEntry entry = entries.get(key);
+				int split = key.indexOf(fieldSeparator);
+
+				if(!entry.matches(new File(key.substring(split+1)))) continue;
+
+				fileOut.write(key.substring(0, split)+fieldSeparator+entry.length+fieldSeparator+entry.modified+fieldSeparator+entry.hash+fieldSeparator+key.substring(split+1)+"\r\n");
+			}
+
+			fileOut.flush();
+			fileOut.close();
+
+			cacheFile.delete();
+
+			if(!tempFile.renameTo(cacheFile))
+			{
+				aida.logAdd("!Could not save "+cacheFile.getName());
+			}
+
+			changed = false;
+		}
+		catch(IOException e)
+		{
+			aida.logAdd("!Could not save "+cacheFile.getName());
+			aida.logAdd("!"+e.getMessage());
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Read the entries from the cache file
+	 * Lines are the algorithm, file size, modification time, hash and file path separated by tabs
+	 */
+	protected void load()
+	{
+		try
+		{
+			BufferedReader bufRead = new BufferedReader(new FileReader(cacheFile));
+			String line;
+
+			while((line = bufRead.readLine()) != null)
+			{
+				String[] fields = line.split(String.valueOf(fieldSeparator), 5);
+
+				if(fields.length != 5) continue;
+
+				try
+				{
+					entries.put(fields[0]+fieldSeparator+fields[4], new cacheEntry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+				}
+				catch(NumberFormatException e)
+				{
+				}
+			}
+
+			bufRead.close();
+		}
+		catch(IOException e)
+		{
+			aida.logAdd("!Could not read "+cacheFile.getName());
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Add an entry to the cache
+	 * @param file the file
+	 * @param algorithm md5 or fingerprint
+	 * @param entry the entry
+	 */
+	protected synchronized void put(File file, String algorithm, cacheEntry entry)
+	{
+		entries.put(getKey(file, algorithm), entry);
+		changed = true;
+	}
+
+	/**
+	 * Get the cache key of a file
+	 * @param file the file
+	 * @param algorithm md5 or fingerprint
+	 * @return the key
+	 */
+	protected static String getKey(File file, String algorithm)
+	{
+		return algorithm+fieldSeparator+file.getAbsolutePath();
+	}
+
+	/**
+	 * Create an MD5 hash of the bytes of a file
+	 * The file is read through a direct buffer rather than mapped, as a mapped file stays locked on Windows
+	 * until the mapping is garbage collected, which stops reports being moved afterwards
+	 * @param file the file to hash
+	 * @return the MD5 hash in hex, without leading zeros
+	 */
+	public static String md5(File file) throws IOException
+	{
+		return md5(file, 0, -1);
+	}
+
+	/**
+	 * Create an MD5 hash of a range of the bytes of a file
+	 * @param file the file to hash
+	 * @param offset the position in the file to start at
+	 * @param length the number of bytes to hash, or -1 to hash to the end of the file
+	 * @return the MD5 hash in hex, without leading zeros
+	 */
+	public static String md5(File file, long offset, long length) throws IOException
+	{
+		MessageDigest md;
+
+		try
+		{
+			md = MessageDigest.getInstance("MD5");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new IOException("Could not create MD5 message digester");
+		}
+
+		FileChannel channel = new FileInputStream(file).getChannel();
+
+		try
+		{
+			long remaining = length < 0 ? channel.size()-offset : length;
+			ByteBuffer buffer = ByteBuffer.allocateDirect((int)Math.min(bufferSize, Math.max(remaining, 1)));
+
+			channel.position(offset);
+
+			while(remaining > 0)
+			{
+				if(buffer.remaining() > remaining) buffer.limit((int)remaining);
+
+				if(channel.read(buffer) < 0) break;
+
+				buffer.flip();
+				remaining -= buffer.remaining();
+				md.update(buffer);
+				buffer.clear();
+			}
+		}
+		finally
+		{
+			channel.close();
+		}
+
+		return new BigInteger(1, md.digest()).toString(16);
+	}
+
+	/**
+	 * Create a fast 64 bit fingerprint of the bytes of a file
+	 * The file is mixed 8 bytes at a time. This is not a cryptographic hash and is only used to spot unchanged local files
+	 * @param file the file to fingerprint
+	 * @return the fingerprint in hex
+	 */
+	public static String fingerprint(File file) throws IOException
+	{
+		long hash = 0x84222325cbf29ce4L;
+		long length = 0;
+
+		FileChannel channel = new FileInputStream(file).getChannel();
+
+		try
+		{
+			ByteBuffer buffer = ByteBuffer.allocateDirect((int)Math.min(bufferSize, Math.max(channel.size(), 8)));
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			int read;
+
+			while((read = channel.read(buffer)) >= 0)
+			{
+				length += read;
+				buffer.flip();
+
+				while(buffer.remaining() >= 8)
+				{
+					hash = mix(hash, buffer.getLong());
+				}
+
+				//keep a partial word for the next read
+				buffer.compact();
+			}
+
+			buffer.flip();
+
+			while(buffer.hasRemaining())
+			{
+				hash = mix(hash, buffer.get() & 0xff);
+			}
+		}
+		finally
+		{
+			channel.close();
+		}
+
+		hash = mix(hash, length);
+
+		//final avalanche so every input bit affects every output bit
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+
+		return Long.toHexString(hash);
+	}
+
+	/**
+	 * Mix a word into a fingerprint
+	 * @param hash the fingerprint so far
+	 * @param word the word
+	 * @return the new fingerprint
+	 */
+	protected static long mix(long hash, long word)
+	{
+		hash ^= word * 0x9e3779b97f4a7c15L;
+		return Long.rotateLeft(hash, 31) * 0xbf58476d1ce4e5b9L;
+	}
+
+	/**
+	 * A cached hash and the state of the file it was made from
+	 */
+	static class cacheEntry
+	{
+		/**
+		 * the file size in bytes
+		 */
+		long length;
+
+		/**
+		 * the file modification time
+		 */
+		long modified;
+
+		/**
+		 * the hash
+		 */
+		String hash;
+
+		/**
+		 * Constructor
+		 * @param length the file size in bytes
+		 * @param modified the file modification time
+		 * @param hash the hash
+		 */
+		cacheEntry(long length, long modified, String hash)
+		{
+			this.length = length;
+			this.modified = modified;
+			this.hash = hash;
+		}
+
+		/**
+		 * Check the entry still describes a file
+		 * @param file the file
+		 * @return if the file exists and has the same size and modification time
+		 */
+		boolean matches(File file)
+		{
+			return file.exists() && file.length() == length && file.lastModified() == modified;
+		}
+	}
+}
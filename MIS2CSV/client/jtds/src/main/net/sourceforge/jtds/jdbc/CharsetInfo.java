@@ -23,6 +23,8 @@ import java.util.Properties;
 import java.util.Enumeration;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 
 import net.sourceforge.jtds.util.Logger;
 
@@ -57,6 +59,9 @@ public final class CharsetInfo {
     /** Sort order to Java charset map. */
     private static final CharsetInfo[] sortToCharsetMap = new CharsetInfo[256];
 
+    /** Marks a charset whose bytes cannot be decoded one at a time. */
+    private static final char[] NO_BYTE_CHARS = new char[0];
+
     static {
         // Load character set mappings
         try {
@@ -203,6 +208,8 @@ public final class CharsetInfo {
     private final String charset;
     /** Indicates whether current charset is wide (ie multi-byte). */
     private final boolean wideChars;
+    /** The characters each byte decodes to, built when first needed. */
+    private volatile char[] byteChars;
 
     /**
      * Constructs a <code>CharsetInfo</code> object from a character set
@@ -231,6 +238,63 @@ public final class CharsetInfo {
         return wideChars;
     }
 
+    /**
+     * Retrieves the characters each byte value decodes to, so that a string
+     * in a single byte charset can be decoded without creating a
+     * <code>String</code>.
+     *
+     * @return the 256 characters, or <code>null</code> if the charset is
+     *         wide or not supported
+     */
+    char[] getByteChars() {
+        char[] chars = byteChars;
+
+        if (chars == null) {
+            chars = getByteChars(charset, wideChars);
+            byteChars = chars;
+        }
+
+        return (chars == NO_BYTE_CHARS) ? null : chars;
+    }
+
+    /**
+     * Decodes every byte value in a charset.
+     *
+     * @param charset   the Java charset name
+     * @param wideChars whether the charset is multi-byte
+     * @return the 256 characters, or <code>NO_BYTE_CHARS</code> if the bytes
+     *         of the charset cannot be decoded one at a time
+     */
+    private static char[] getByteChars(String charset, boolean wideChars) {
+        if (wideChars) {
+            return NO_BYTE_CHARS;
+        }
+
+        try {
+            Charset cs = Charset.forName(charset);
+
+            if (cs.newDecoder().maxCharsPerByte() != 1.0f
+                    || cs.newEncoder().maxBytesPerChar() != 1.0f) {
+                return NO_BYTE_CHARS;
+            }
+
+            byte[] bytes = new byte[256];
+
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) i;
+            }
+
+            String chars = new String(bytes, charset);
+
+            return (chars.length() == bytes.length) ? chars.toCharArray() : NO_BYTE_CHARS;
+        } catch (UnsupportedEncodingException e) {
+            return NO_BYTE_CHARS;
+        } catch (RuntimeException e) {
+            // Illegal or unsupported charset name, or a decode only charset
+            return NO_BYTE_CHARS;
+        }
+    }
+
     public boolean equals(Object o) {
         if (this == o) {
             return true;
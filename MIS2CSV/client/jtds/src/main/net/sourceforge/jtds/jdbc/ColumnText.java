@@ -0,0 +1,225 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.jdbc;
+
+/**
+ * Holds the text of a column value, decoded by {@link TdsData#readText}
+ * straight from the server response, for a {@link RowSink}.
+ * <p>
+ * Implementation notes:
+ * <ol>
+ * <li>The buffers are reused for every value, and only grow.
+ * <li>The text is exactly what <code>ResultSet.getString</code> returns for
+ *     the same value, so numbers are formatted as <code>Integer</code>,
+ *     <code>Long</code> and <code>BigDecimal</code> format them, and datetimes
+ *     as <code>DateTime</code> formats them.
+ * </ol>
+ */
+class ColumnText {
+    /** The characters of the value. */
+    char[] chars = new char[256];
+    /** The number of characters in the value, or -1 if it is null. */
+    int length = -1;
+    /** A work buffer for the raw bytes of a value. */
+    private byte[] bytes = new byte[256];
+    /** A work buffer for the digits of a number. */
+    private final char[] digits = new char[20];
+    /** Reused to format datetime values. */
+    private final DateTime dateTime = new DateTime(0, 0);
+
+    /**
+     * Determine whether the value is null.
+     *
+     * @return <code>true</code> if the value is null
+     */
+    boolean isNull() {
+        return length < 0;
+    }
+
+    /**
+     * Set the value to null.
+     */
+    void setNull() {
+        length = -1;
+    }
+
+    /**
+     * Make room for a value of a given length, which the caller then stores
+     * in the returned buffer.
+     *
+     * @param len the number of characters in the value
+     * @return the character buffer, at least <code>len</code> long
+     */
+    char[] reserve(int len) {
+        if (chars.length < len) {
+            chars = new char[Math.max(len, chars.length * 2)];
+        }
+
+        length = len;
+
+        return chars;
+    }
+
+    /**
+     * Retrieve a work buffer for the raw bytes of a value.
+     *
+     * @param len the number of bytes needed
+     * @return the byte buffer, at least <code>len</code> long
+     */
+    byte[] getBytes(int len) {
+        if (bytes.length < len) {
+            bytes = new byte[Math.max(len, bytes.length * 2)];
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Set the value to a string.
+     *
+     * @param value the value or <code>null</code>
+     */
+    void setString(String value) {
+        if (value == null) {
+            length = -1;
+        } else {
+            int len = value.length();
+            value.getChars(0, len, reserve(len), 0);
+        }
+    }
+
+    /**
+     * Set the value to a bit, formatted as <code>"1"</code> or
+     * <code>"0"</code>.
+     *
+     * @param value the value
+     */
+    void setBit(boolean value) {
+        reserve(1)[0] = value ? '1' : '0';
+    }
+
+    /**
+     * Set the value to an integer.
+     *
+     * @param value the value
+     */
+    void setLong(long value) {
+        int p = toDigits(value);
+        int len = digits.length - p;
+
+        if (value < 0) {
+            char[] buf = reserve(len + 1);
+            buf[0] = '-';
+            System.arraycopy(digits, p, buf, 1, len);
+        } else {
+            System.arraycopy(digits, p, reserve(len), 0, len);
+        }
+    }
+
+    /**
+     * Set the value to a decimal, as <code>BigDecimal.toString</code>
+     * formats it. Only values that format in plain notation can be set.
+     *
+     * @param unscaled the unscaled value
+     * @param scale    the scale, zero or more
+     * @return <code>false</code> if the value was not set because it would be
+     *         formatted with an exponent
+     */
+    boolean setDecimal(long unscaled, int scale) {
+        if (scale == 0) {
+            setLong(unscaled);
+            return true;
+        }
+
+        int p = toDigits(unscaled);
+        int len = digits.length - p;
+
+        if (len - 1 - scale < -6) {
+            return false;
+        }
+
+        int sign = (unscaled < 0) ? 1 : 0;
+        int pos = 0;
+        char[] buf;
+
+        if (len > scale) {
+            buf = reserve(sign + len + 1);
+
+            if (sign != 0) {
+                buf[pos++] = '-';
+            }
+
+            System.arraycopy(digits, p, buf, pos, len - scale);
+            pos += len - scale;
+            buf[pos++] = '.';
+            System.arraycopy(digits, p + len - scale, buf, pos, scale);
+        } else {
+            buf = reserve(sign + 2 + scale);
+
+            if (sign != 0) {
+                buf[pos++] = '-';
+            }
+
+            buf[pos++] = '0';
+            buf[pos++] = '.';
+
+            for (int i = len; i < scale; i++) {
+                buf[pos++] = '0';
+            }
+
+            System.arraycopy(digits, p, buf, pos, len);
+        }
+
+        return true;
+    }
+
+    /**
+     * Set the value to a datetime, as <code>DateTime.toString</code> formats
+     * it.
+     *
+     * @param date the server date field
+     * @param time the server time field
+     */
+    void setDateTime(int date, int time) {
+        dateTime.setDateTime(date, time);
+        length = dateTime.toChars(reserve(23));
+    }
+
+    /**
+     * Format the digits of an integer, without its sign, at the end of the
+     * digits buffer.
+     *
+     * @param value the value
+     * @return the offset of the first digit
+     */
+    private int toDigits(long value) {
+        int p = digits.length;
+
+        // Work with the negative value, which cannot overflow
+        if (value > 0) {
+            value = -value;
+        }
+
+        do {
+            digits[--p] = (char) ('0' - (int) (value % 10));
+            value /= 10;
+        } while (value != 0);
+
+        return p;
+    }
+}
@@ -229,6 +229,8 @@ public class ConnectionJDBC2 implements java.sql.Connection {
     private int bufferMaxMemory;
     /** The minimum number of packets per statement to buffer to memory. */
     private int bufferMinPackets;
+    /** The number of packets to read ahead on a separate thread. */
+    private int readAhead;
     /** Map large types (IMAGE and TEXT/NTEXT) to LOBs by default. */
     private boolean useLOBs;
     /** A cached <code>TdsCore</code> instance to reuse on new statements. */
@@ -359,6 +361,11 @@ public class ConnectionJDBC2 implements java.sql.Connection {
                 TimerThread.getInstance().cancelTimer(timer);
             }
 
+            if (!namedPipe) {
+                // Start reading responses ahead, now the login is complete
+                socket.setReadAhead(readAhead);
+            }
+
             //
             // Save any login warnings so that they will not be overwritten by
             // the internal configuration SQL statements e.g. setCatalog() etc.
@@ -943,6 +950,15 @@ public class ConnectionJDBC2 implements java.sql.Connection {
         return this.bufferMinPackets;
     }
 
+    /**
+     * Retrieves the number of packets to read ahead for this connection.
+     *
+     * @return the number of packets to read ahead or 0 if disabled
+     */
+    int getReadAhead() {
+        return this.readAhead;
+    }
+
     /**
      * Retrieves the database name for this connection.
      *
@@ -1211,6 +1227,12 @@ public class ConnectionJDBC2 implements java.sql.Connection {
             throw new SQLException(Messages.get("error.connection.badprop",
                     Messages.get(Driver.BUFFERMINPACKETS)), "08001");
         }
+
+        readAhead = parseIntegerProperty(info, Driver.READAHEAD);
+        if (readAhead < 0) {
+            throw new SQLException(Messages.get("error.connection.badprop",
+                    Messages.get(Driver.READAHEAD)), "08001");
+        }
     }
 
     /**
@@ -0,0 +1,176 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.jdbc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A {@link RowSink} that writes rows to a stream as quoted, comma separated
+ * values.
+ * <p>
+ * Every value, including the text written for a null, is enclosed in double
+ * quotes, with any double quotes in it doubled. Each row is built in a reused
+ * character buffer and encoded into a reused byte buffer, which is written to
+ * the stream when it is full and by {@link #flush}.
+ * <p>
+ * Characters that cannot be encoded are replaced, exactly as an
+ * <code>OutputStreamWriter</code> for the same charset would replace them,
+ * so the bytes written are the same as writing the same text through one.
+ *
+ * @see JtdsStatement#executeQuery(String, RowSink)
+ */
+public class CsvRowSink implements RowSink {
+    /** The size of the byte buffer. */
+    private static final int BUFFER_SIZE = 65536;
+
+    /** The stream the rows are written to. */
+    private final OutputStream out;
+    /** The encoder for the charset of the stream. */
+    private final CharsetEncoder encoder;
+    /** The text written between values. */
+    private final char[] separator;
+    /** The text written at the end of each row. */
+    private final char[] lineEnd;
+    /** The text written, quoted, for a null value. */
+    private final char[] nullValue;
+    /** The encoded bytes waiting to be written. */
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    /** The characters of the current row. */
+    private char[] row = new char[1024];
+    /** A buffer wrapping <code>row</code>, for the encoder. */
+    private CharBuffer rowChars = CharBuffer.wrap(row);
+    /** The number of characters in the current row. */
+    private int rowLength;
+
+    /**
+     * Construct a sink writing comma separated values.
+     *
+     * @param out       the stream to write the rows to
+     * @param charset   the name of the charset to encode the rows in
+     * @param separator the text written between values
+     * @param lineEnd   the text written at the end of each row
+     * @param nullValue the text written, quoted, for a null value
+     */
+    public CsvRowSink(OutputStream out, String charset, String separator,
+                      String lineEnd, String nullValue) {
+        this.out = out;
+        this.encoder = Charset.forName(charset).newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.separator = separator.toCharArray();
+        this.lineEnd = lineEnd.toCharArray();
+        this.nullValue = nullValue.toCharArray();
+    }
+
+    public void value(int column, char[] chars, int offset, int length)
+            throws IOException {
+        // Worst case every character is a quote
+        reserve(separator.length + length * 2 + 2);
+
+        char[] buf = row;
+        int pos = rowLength;
+
+        if (column > 1) {
+            System.arraycopy(separator, 0, buf, pos, separator.length);
+            pos += separator.length;
+        }
+
+        buf[pos++] = '"';
+
+        for (int i = offset, end = offset + length; i < end; i++) {
+            char c = chars[i];
+            buf[pos++] = c;
+
+            if (c == '"') {
+                buf[pos++] = '"';
+            }
+        }
+
+        buf[pos++] = '"';
+        rowLength = pos;
+    }
+
+    public void nullValue(int column) throws IOException {
+        value(column, nullValue, 0, nullValue.length);
+    }
+
+    public void endRow() throws IOException {
+        reserve(lineEnd.length);
+        System.arraycopy(lineEnd, 0, row, rowLength, lineEnd.length);
+        rowLength += lineEnd.length;
+
+        rowChars.clear();
+        rowChars.limit(rowLength);
+
+        // A row always ends with the line end, so no characters are left over
+        CoderResult result;
+
+        do {
+            result = encoder.encode(rowChars, bytes, false);
+
+            if (result.isOverflow()) {
+                writeBytes();
+            }
+        } while (!result.isUnderflow());
+
+        rowLength = 0;
+    }
+
+    /**
+     * Write out any buffered rows and flush the stream.
+     *
+     * @throws IOException if the rows cannot be written
+     */
+    public void flush() throws IOException {
+        writeBytes();
+        out.flush();
+    }
+
+    /**
+     * Make room in the row buffer for more characters.
+     *
+     * @param len the number of characters to add
+     */
+    private void reserve(int len) {
+        if (rowLength + len > row.length) {
+            char[] tmp = new char[Math.max(rowLength + len, row.length * 2)];
+            System.arraycopy(row, 0, tmp, 0, rowLength);
+            row = tmp;
+            rowChars = CharBuffer.wrap(row);
+        }
+    }
+
+    /**
+     * Write the encoded bytes to the stream.
+     *
+     * @throws IOException if the bytes cannot be written
+     */
+    private void writeBytes() throws IOException {
+        if (bytes.position() > 0) {
+            out.write(bytes.array(), 0, bytes.position());
+            bytes.clear();
+        }
+    }
+}
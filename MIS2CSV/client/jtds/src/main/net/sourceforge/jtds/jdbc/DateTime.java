@@ -95,6 +95,23 @@ public class DateTime {
         this.time = (int) time * 60 * 300;
     }
 
+    /**
+     * Sets this object to the two integer components of a datetime, so that
+     * one instance can be reused to format a series of server values.
+     *
+     * @param date server date field
+     * @param time server time field
+     */
+    void setDateTime(int date, int time) {
+        this.date   = date;
+        this.time   = time;
+        unpacked    = false;
+        stringValue = null;
+        tsValue     = null;
+        dateValue   = null;
+        timeValue   = null;
+    }
+
     /**
      * Constructs a DateTime object from a <code>java.sql.Timestamp</code>.
      *
@@ -425,73 +442,84 @@ public class DateTime {
      */
     public String toString() {
         if (stringValue == null) {
-            if (!unpacked) {
-                unpackDateTime();
-            }
-            //
-            // Make local copies to avoid corrupting unpacked
-            // components.
-            //
-            int day    = this.day;
-            int month  = this.month;
-            int year   = this.year;
-            int millis = this.millis;
-            int second = this.second;
-            int minute = this.minute;
-            int hour  = this.hour;
             char buf[] = new char[23];
-            int p = 0;
-            if (date != DATE_NOT_USED) {
-                p = 10;
-                buf[--p] = (char)('0' + day % 10);
-                day /= 10;
-                buf[--p] = (char)('0' + day % 10);
-                buf[--p] = '-';
-                buf[--p] = (char)('0' + month % 10);
-                month /= 10;
-                buf[--p] = (char)('0' + month % 10);
-                buf[--p] = '-';
-                buf[--p] = (char)('0' + year % 10);
-                year /= 10;
-                buf[--p] = (char)('0' + year % 10);
-                year /= 10;
-                buf[--p] = (char)('0' + year % 10);
-                year /= 10;
-                buf[--p] = (char)('0' + year % 10);
-                p += 10;
-                if (time != TIME_NOT_USED) {
-                    buf[p++] = ' ';
-                }
-            }
+            stringValue = String.valueOf(buf, 0, toChars(buf));
+        }
+        return stringValue;
+    }
+
+    /**
+     * Formats the current datetime value into a char array, as
+     * {@link #toString} formats it.
+     *
+     * @param buf the array to format the value into, at least 23 long
+     * @return the number of characters formatted
+     */
+    int toChars(char[] buf) {
+        if (!unpacked) {
+            unpackDateTime();
+        }
+        //
+        // Make local copies to avoid corrupting unpacked
+        // components.
+        //
+        int day    = this.day;
+        int month  = this.month;
+        int year   = this.year;
+        int millis = this.millis;
+        int second = this.second;
+        int minute = this.minute;
+        int hour  = this.hour;
+        int p = 0;
+        if (date != DATE_NOT_USED) {
+            p = 10;
+            buf[--p] = (char)('0' + day % 10);
+            day /= 10;
+            buf[--p] = (char)('0' + day % 10);
+            buf[--p] = '-';
+            buf[--p] = (char)('0' + month % 10);
+            month /= 10;
+            buf[--p] = (char)('0' + month % 10);
+            buf[--p] = '-';
+            buf[--p] = (char)('0' + year % 10);
+            year /= 10;
+            buf[--p] = (char)('0' + year % 10);
+            year /= 10;
+            buf[--p] = (char)('0' + year % 10);
+            year /= 10;
+            buf[--p] = (char)('0' + year % 10);
+            p += 10;
             if (time != TIME_NOT_USED) {
-                p += 12;
-                buf[--p] = (char)('0' + millis % 10);
-                millis /= 10;
-                buf[--p] = (char)('0' + millis % 10);
-                millis /= 10;
-                buf[--p] = (char)('0' + millis % 10);
-                buf[--p] = '.';
-                buf[--p] = (char)('0' + second % 10);
-                second /= 10;
-                buf[--p] = (char)('0' + second % 10);
-                buf[--p] = ':';
-                buf[--p] = (char)('0' + minute % 10);
-                minute /= 10;
-                buf[--p] = (char)('0' + minute % 10);
-                buf[--p] = ':';
-                buf[--p] = (char)('0' + hour % 10);
-                hour /= 10;
-                buf[--p] = (char)('0' + hour % 10);
-                p += 12;
-                if (buf[p-1] == '0') {
-                    p--;
-                }
-                if (buf[p-1] == '0') {
-                    p--;
-                }
+                buf[p++] = ' ';
             }
-            stringValue = String.valueOf(buf, 0, p);
         }
-        return stringValue;
+        if (time != TIME_NOT_USED) {
+            p += 12;
+            buf[--p] = (char)('0' + millis % 10);
+            millis /= 10;
+            buf[--p] = (char)('0' + millis % 10);
+            millis /= 10;
+            buf[--p] = (char)('0' + millis % 10);
+            buf[--p] = '.';
+            buf[--p] = (char)('0' + second % 10);
+            second /= 10;
+            buf[--p] = (char)('0' + second % 10);
+            buf[--p] = ':';
+            buf[--p] = (char)('0' + minute % 10);
+            minute /= 10;
+            buf[--p] = (char)('0' + minute % 10);
+            buf[--p] = ':';
+            buf[--p] = (char)('0' + hour % 10);
+            hour /= 10;
+            buf[--p] = (char)('0' + hour % 10);
+            p += 12;
+            if (buf[p-1] == '0') {
+                p--;
+            }
+            if (buf[p-1] == '0') {
+                p--;
+            }
+        }
+        return p;
     }
 }
@@ -109,6 +109,8 @@ public final class DefaultProperties {
     public static final String PREPARE_SYBASE = String.valueOf(TdsCore.TEMPORARY_STORED_PROCEDURES);
     /** Default <code>progName</code> property. */
     public static final String PROG_NAME = "jTDS";
+    /** Default <code>readAhead</code> property. */
+    public static final String READ_AHEAD = "0";
     /** Default <code>tcpNoDelay</code> property. */
     public static final String TCP_NODELAY = "true";
     /** Default <code>tmpDir</code> property. */
@@ -236,6 +238,7 @@ public final class DefaultProperties {
         addDefaultPropertyIfNotSet(props, Driver.USECURSORS, USECURSORS);
         addDefaultPropertyIfNotSet(props, Driver.BUFFERMAXMEMORY, BUFFER_MAX_MEMORY);
         addDefaultPropertyIfNotSet(props, Driver.BUFFERMINPACKETS, BUFFER_MIN_PACKETS);
+        addDefaultPropertyIfNotSet(props, Driver.READAHEAD, READ_AHEAD);
         addDefaultPropertyIfNotSet(props, Driver.USELOBS, USELOBS);
         addDefaultPropertyIfNotSet(props, Driver.BINDADDRESS, BIND_ADDRESS);
         addDefaultPropertyIfNotSet(props, Driver.USEJCIFS, USEJCIFS);
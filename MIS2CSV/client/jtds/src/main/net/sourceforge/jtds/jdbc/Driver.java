@@ -101,6 +101,7 @@ public class Driver implements java.sql.Driver {
     public static final String PORTNUMBER    = "prop.portnumber";
     public static final String PREPARESQL    = "prop.preparesql";
     public static final String PROGNAME      = "prop.progname";
+    public static final String READAHEAD     = "prop.readahead";
     public static final String SERVERNAME    = "prop.servername";
     public static final String SERVERTYPE    = "prop.servertype";
     public static final String SOTIMEOUT     = "prop.sotimeout";
@@ -144,6 +145,39 @@ public class Driver implements java.sql.Driver {
                 + ((MISC_VERSION == null) ? "" : MISC_VERSION);
     }
 
+    /**
+     * Returns the number of packets cached to disk by all connections since
+     * the driver was loaded, because the <code>bufferMaxMemory</code> limit
+     * had been reached.
+     *
+     * @return the number of packets written to disk
+     */
+    public static long getSpilledPackets() {
+        return SharedSocket.getSpilledPackets();
+    }
+
+    /**
+     * Returns the number of bytes cached to disk by all connections since
+     * the driver was loaded.
+     *
+     * @return the number of bytes written to disk
+     * @see #getSpilledPackets()
+     */
+    public static long getSpilledBytes() {
+        return SharedSocket.getSpilledBytes();
+    }
+
+    /**
+     * Returns the number of packets read back from disk by all connections
+     * since the driver was loaded.
+     *
+     * @return the number of packets read from disk
+     * @see #getSpilledPackets()
+     */
+    public static long getFilledPackets() {
+        return SharedSocket.getFilledPackets();
+    }
+
     /**
      * Returns the string form of the object.
      * <p>
@@ -17,6 +17,7 @@
 //
 package net.sourceforge.jtds.jdbc;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.math.BigDecimal;
@@ -109,6 +110,10 @@ public class JtdsResultSet implements ResultSet {
     protected String cursorName;
     /** Cache to optimize findColumn(String) lookups */
     private HashMap columnMap;
+    /** Fixed size columns of the current row held as primitives, or null. */
+    protected RowBuffer rowBuffer;
+    /** True if the columns of the current row are read when asked for. */
+    protected boolean lazyRows;
 
     /*
      * Private instance variables.
@@ -144,6 +149,17 @@ public class JtdsResultSet implements ResultSet {
         if (columns != null) {
             columnCount  = getColumnCount(columns);
             rowsInResult = (statement.getTds().isDataInResultSet()) ? 1 : 0;
+
+            // Rows of a plain forward only result set are read straight from
+            // the server, so their columns can be read only when asked for
+            // and their numbers and dates held as primitives
+            if (getClass() == JtdsResultSet.class
+                    && resultSetType == ResultSet.TYPE_FORWARD_ONLY
+                    && concurrency == ResultSet.CONCUR_READ_ONLY
+                    && columns == statement.getTds().getColumns()) {
+                rowBuffer = statement.getTds().usePrimitiveRows();
+                lazyRows = statement.getTds().useLazyRows();
+            }
         }
     }
 
@@ -282,13 +298,48 @@ public class JtdsResultSet implements ResultSet {
             throw new SQLException(Messages.get("error.resultset.norow"), "24000");
         }
 
+        if (lazyRows) {
+            statement.getTds().readColumn(index - 1);
+        }
+
         Object data = currentRow[index - 1];
 
+        if (data == null && rowBuffer != null && rowBuffer.isHeld(index - 1)) {
+            data = rowBuffer.toObject(currentRow, index - 1);
+        }
+
         wasNull = data == null;
 
         return data;
     }
 
+    /**
+     * Check whether a column of the current row is held as a number by the
+     * row buffer, so it can be returned without creating an object.
+     * <p/>
+     * Returns <code>false</code> for any invalid index or state, leaving
+     * {@link #getColumn} to report the error.
+     *
+     * @param index the column index in the row
+     * @return <code>true</code> if the column can be read from the row buffer
+     * @throws SQLException if the column cannot be read from the server
+     */
+    private boolean isHeldNumber(int index) throws SQLException {
+        if (rowBuffer != null && currentRow != null && !closed && !cancelled
+                && index >= 1 && index <= columnCount) {
+            if (lazyRows) {
+                statement.getTds().readColumn(index - 1);
+            }
+
+            if (rowBuffer.isNumber(index - 1)) {
+                wasNull = false;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Check that this connection is still open.
      *
@@ -381,8 +432,13 @@ public class JtdsResultSet implements ResultSet {
      * Retrieve the current row data.
      * @return The current row data as an <code>Object[]</code>.
      */
-    protected Object[] getCurrentRow()
+    protected Object[] getCurrentRow() throws SQLException
     {
+        if ((rowBuffer != null || lazyRows) && currentRow != null) {
+            // Read and create objects for the whole of the live row
+            currentRow = statement.getTds().getRowData();
+        }
+
         return this.currentRow;
     }
 
@@ -398,8 +454,17 @@ public class JtdsResultSet implements ResultSet {
             // Need to create local copy of currentRow
             // as this is currently a reference to the
             // row defined in TdsCore
+            if (rowBuffer != null || lazyRows) {
+                currentRow = statement.getTds().getRowData();
+            }
             currentRow = copyRow(currentRow);
         }
+        if (rowBuffer != null || lazyRows) {
+            // Cached rows must be complete, so read them as objects
+            statement.getTds().useObjectRows();
+            rowBuffer = null;
+            lazyRows = false;
+        }
         //
         // Now load the remaining result set rows into memory
         //
@@ -410,6 +475,52 @@ public class JtdsResultSet implements ResultSet {
         statement.cacheResults();
     }
 
+    /**
+     * Pass the remaining rows to a row sink as text.
+     * <p/>
+     * The columns of lazy rows are decoded straight from the server response
+     * where their type allows it; all other values are passed as
+     * {@link #getString} returns them.
+     *
+     * @param sink the row sink
+     * @return the number of rows passed to the sink
+     * @throws SQLException if the rows cannot be read, or the sink fails
+     */
+    long writeRows(RowSink sink) throws SQLException {
+        checkOpen();
+
+        TdsCore tds = statement.getTds();
+        ColumnText text = new ColumnText();
+        long rows = 0;
+
+        try {
+            while (next()) {
+                for (int i = 0; i < columnCount; i++) {
+                    if (!lazyRows || !tds.readColumnText(i, text)) {
+                        text.setString(getString(i + 1));
+                    }
+
+                    if (text.isNull()) {
+                        sink.nullValue(i + 1);
+                    } else {
+                        sink.value(i + 1, text.chars, 0, text.length);
+                    }
+                }
+
+                sink.endRow();
+                rows++;
+            }
+        } catch (IOException e) {
+            throw Support.linkException(
+                new SQLException(
+                       Messages.get(
+                                "error.generic.iowrite", "rows", e.getMessage()),
+                                    "HY000"), e);
+        }
+
+        return rows;
+    }
+
     /**
      * Returns the {@link ConnectionJDBC2} object referenced by the
      * {@link #statement} instance variable.
@@ -486,6 +597,11 @@ public class JtdsResultSet implements ResultSet {
                    while (next());
                 }
             } finally {
+                if (rowBuffer != null || lazyRows) {
+                    statement.getTds().useObjectRows();
+                    rowBuffer = null;
+                    lazyRows = false;
+                }
                 closed = true;
                 statement = null;
             }
@@ -595,7 +711,9 @@ public class JtdsResultSet implements ResultSet {
                 pos = POS_AFTER_LAST;
                 currentRow = null;
             } else {
-                currentRow = statement.getTds().getRowData();
+                currentRow = (rowBuffer != null || lazyRows)
+                        ? statement.getTds().getRawRowData()
+                        : statement.getTds().getRowData();
                 pos++;
                 rowsInResult = pos;
             }
@@ -642,26 +760,44 @@ public class JtdsResultSet implements ResultSet {
     }
 
     public byte getByte(int columnIndex) throws SQLException {
+        if (isHeldNumber(columnIndex)) {
+            return (byte) rowBuffer.getInt(columnIndex - 1);
+        }
         return ((Integer) Support.convert(this, getColumn(columnIndex), java.sql.Types.TINYINT, null)).byteValue();
     }
 
     public double getDouble(int columnIndex) throws SQLException {
+        if (isHeldNumber(columnIndex)) {
+            return rowBuffer.getDouble(columnIndex - 1);
+        }
         return ((Double) Support.convert(this, getColumn(columnIndex), java.sql.Types.DOUBLE, null)).doubleValue();
     }
 
     public float getFloat(int columnIndex) throws SQLException {
+        if (isHeldNumber(columnIndex)) {
+            return rowBuffer.getFloat(columnIndex - 1);
+        }
         return ((Float) Support.convert(this, getColumn(columnIndex), java.sql.Types.REAL, null)).floatValue();
     }
 
     public int getInt(int columnIndex) throws SQLException {
+        if (isHeldNumber(columnIndex)) {
+            return rowBuffer.getInt(columnIndex - 1);
+        }
         return ((Integer) Support.convert(this, getColumn(columnIndex), java.sql.Types.INTEGER, null)).intValue();
     }
 
     public long getLong(int columnIndex) throws SQLException {
+        if (isHeldNumber(columnIndex)) {
+            return rowBuffer.getLong(columnIndex - 1);
+        }
         return ((Long) Support.convert(this, getColumn(columnIndex), java.sql.Types.BIGINT, null)).longValue();
     }
 
     public short getShort(int columnIndex) throws SQLException {
+        if (isHeldNumber(columnIndex)) {
+            return (short) rowBuffer.getInt(columnIndex - 1);
+        }
         return ((Integer) Support.convert(this, getColumn(columnIndex), java.sql.Types.SMALLINT, null)).shortValue();
     }
 
@@ -715,6 +851,9 @@ public class JtdsResultSet implements ResultSet {
     }
 
     public boolean getBoolean(int columnIndex) throws SQLException {
+        if (isHeldNumber(columnIndex)) {
+            return rowBuffer.getBoolean(columnIndex - 1);
+        }
         return ((Boolean) Support.convert(this, getColumn(columnIndex), JtdsStatement.BOOLEAN, null)).booleanValue();
     }
 
@@ -927,6 +1066,10 @@ public class JtdsResultSet implements ResultSet {
     }
 
     public String getString(int columnIndex) throws SQLException {
+        if (isHeldNumber(columnIndex)) {
+            return rowBuffer.getString(columnIndex - 1);
+        }
+
         Object tmp = getColumn(columnIndex);
 
         if (tmp instanceof String) {
@@ -1300,4 +1300,38 @@ public class JtdsStatement implements java.sql.Statement {
 
         return this.executeSQLQuery(sql, null, null, useCursor(false, null));
     }
+
+    /**
+     * Execute a query and pass its rows to a row sink as text, instead of
+     * returning a <code>ResultSet</code>.
+     * <p/>
+     * This is a jTDS extension for exporting query results. On a forward
+     * only, read only statement the values are decoded straight from the
+     * server response into the sink wherever their type allows it, so that
+     * no <code>String</code> or other object is created for them. Other
+     * values, and the values of any other kind of statement, are passed as
+     * <code>ResultSet.getString</code> returns them.
+     *
+     * @param sql  the SQL query
+     * @param sink the row sink
+     * @return the number of rows passed to the sink
+     * @throws SQLException if the query fails, or the sink cannot write a row
+     * @see RowSink
+     */
+    public long executeQuery(String sql, RowSink sink) throws SQLException {
+        checkOpen();
+
+        if (sink == null) {
+            throw new SQLException(
+                Messages.get("error.generic.nullparam", "executeQuery"),"HY092");
+        }
+
+        JtdsResultSet rs = (JtdsResultSet) executeQuery(sql);
+
+        try {
+            return rs.writeRows(sink);
+        } finally {
+            rs.close();
+        }
+    }
 }
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import net.sourceforge.jtds.util.*;
 
 /**
@@ -53,6 +54,16 @@ public class ResponseStream {
     private final byte[] byteBuffer = new byte[255];
     /** A shared char buffer. */
     private final char[] charBuffer = new char[255];
+    /** The packets of the marked row, kept so it can be read again. */
+    private final ArrayList rowPackets = new ArrayList();
+    /** True while a row is marked. */
+    private boolean rowMarked;
+    /** The index in <code>rowPackets</code> of the current packet. */
+    private int rowPacketIndex;
+    /** Packet buffers of earlier rows, reused while a row is marked. */
+    private final ArrayList sparePackets = new ArrayList();
+    /** The maximum number of spare packet buffers kept. */
+    private static final int MAX_SPARE_PACKETS = 4;
 
     /**
      * Constructs a <code>RequestStream</code> object.
@@ -155,23 +166,53 @@ public class ResponseStream {
      * @throws IOException if an I/O error occurs
      */
     int read(char[] c) throws IOException {
-        for (int i = 0; i < c.length; i++) {
+        return read(c, 0, c.length);
+    }
+
+    /**
+     * Reads UCS2-LE encoded characters from the server response stream into
+     * a char array, specifying a start offset and length.
+     *
+     * @param c   the char array
+     * @param off the starting offset in the array
+     * @param len the number of characters to read
+     * @return the number of characters read as an <code>int</code>
+     * @throws IOException if an I/O error occurs
+     */
+    int read(char[] c, int off, int len) throws IOException {
+        int end = off + len;
+
+        while (off < end) {
             if (bufferPtr >= bufferLen) {
                 getPacket();
             }
 
-            int b1 = buffer[bufferPtr++] & 0xFF;
+            int available = (bufferLen - bufferPtr) >> 1;
+
+            if (available == 0) {
+                // The character is split between two packets
+                int b1 = buffer[bufferPtr++] & 0xFF;
 
-            if (bufferPtr >= bufferLen) {
                 getPacket();
+
+                int b2 = buffer[bufferPtr++] << 8;
+
+                c[off++] = (char) (b2 | b1);
+                continue;
             }
 
-            int b2 = buffer[bufferPtr++] << 8;
+            int stop = Math.min(end, off + available);
+            int ptr = bufferPtr;
+
+            while (off < stop) {
+                c[off++] = (char) ((buffer[ptr + 1] << 8) | (buffer[ptr] & 0xFF));
+                ptr += 2;
+            }
 
-            c[i] = (char) (b2 | b1);
+            bufferPtr = ptr;
         }
 
-        return c.length;
+        return len;
     }
 
     /**
@@ -392,6 +433,59 @@ public class ResponseStream {
         return tmp;
     }
 
+    /**
+     * Marks the start of a row, so that positions within it can be read
+     * again with {@link #seek} until {@link #releaseRow} is called.
+     * <p/>
+     * The packets read while a row is marked are kept rather than reused.
+     */
+    void markRow() {
+        rowPackets.clear();
+        rowPackets.add(buffer);
+        rowPacketIndex = 0;
+        rowMarked = true;
+    }
+
+    /**
+     * Releases the packets kept for the marked row. The stream must be
+     * positioned at the furthest point read.
+     */
+    void releaseRow() {
+        if (!rowMarked) {
+            return;
+        }
+
+        for (int i = 0; i < rowPackets.size() - 1; i++) {
+            if (sparePackets.size() < MAX_SPARE_PACKETS) {
+                sparePackets.add(rowPackets.get(i));
+            }
+        }
+
+        rowPackets.clear();
+        rowMarked = false;
+    }
+
+    /**
+     * Retrieves the current position within the marked row.
+     *
+     * @return the position, for use with {@link #seek}
+     */
+    long getPosition() {
+        return ((long) rowPacketIndex << 32) | bufferPtr;
+    }
+
+    /**
+     * Moves to a position within the marked row.
+     *
+     * @param position a position returned by {@link #getPosition}
+     */
+    void seek(long position) {
+        rowPacketIndex = (int) (position >>> 32);
+        buffer = (byte[]) rowPackets.get(rowPacketIndex);
+        bufferLen = (((int) buffer[2] & 0xFF) << 8) | ((int) buffer[3] & 0xFF);
+        bufferPtr = (int) position;
+    }
+
     /**
      * Consumes the rest of the server response, without parsing it.
      * <p/>
@@ -399,6 +493,7 @@ public class ResponseStream {
      * could leave the connection in an inconsistent state.
      */
     void skipToEnd() {
+        releaseRow();
         try {
             // No more data to read.
             bufferPtr = bufferLen;
@@ -463,7 +558,24 @@ public class ResponseStream {
                 throw new IOException("ResponseStream is closed");
             }
 
-            buffer = socket.getNetPacket(streamId, buffer);
+            if (rowMarked && rowPacketIndex < rowPackets.size() - 1) {
+                // Re-reading the marked row, move on to its next packet
+                buffer = (byte[]) rowPackets.get(++rowPacketIndex);
+                bufferLen = (((int) buffer[2] & 0xFF) << 8) | ((int) buffer[3] & 0xFF);
+                bufferPtr = TdsCore.PKT_HDR_LEN;
+                continue;
+            }
+
+            if (!rowMarked) {
+                buffer = socket.getNetPacket(streamId, buffer);
+            } else {
+                // Keep the packets of the marked row, read into a spare
+                byte[] spare = sparePackets.isEmpty()
+                        ? null : (byte[]) sparePackets.remove(sparePackets.size() - 1);
+                buffer = socket.getNetPacket(streamId, spare);
+                rowPackets.add(buffer);
+                rowPacketIndex = rowPackets.size() - 1;
+            }
             bufferLen = (((int) buffer[2] & 0xFF) << 8) | ((int) buffer[3] & 0xFF);
             bufferPtr = TdsCore.PKT_HDR_LEN;
 
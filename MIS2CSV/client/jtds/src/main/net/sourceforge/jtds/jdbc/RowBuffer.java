@@ -0,0 +1,331 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.jdbc;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Holds the fixed size numeric and date columns of the current row as
+ * primitives, so that a forward only result set does not create an
+ * <code>Integer</code>, <code>Long</code>, <code>Double</code>,
+ * <code>BigDecimal</code> or <code>DateTime</code> for every column of every
+ * row.
+ * <p>
+ * Implementation notes:
+ * <ol>
+ * <li>A column is held when it has been read by
+ *     {@link TdsData#readPrimitive} and was not null. The matching entry of
+ *     the row <code>Object</code> array is then <code>null</code>.
+ * <li>The object is only created when it is asked for, by
+ *     {@link #toObject}, and is then stored in the row array in place of the
+ *     primitive. It is the same object {@link TdsData#readData} would have
+ *     returned, so the conversions in <code>Support.convert</code> are
+ *     unaffected.
+ * <li>The primitive getters return exactly what <code>Support.convert</code>
+ *     returns for the equivalent object.
+ * </ol>
+ */
+class RowBuffer {
+    /** An <code>Integer</code> value, held in <code>longs</code>. */
+    static final byte INT           = 1;
+    /** A <code>Long</code> value, held in <code>longs</code>. */
+    static final byte LONG          = 2;
+    /** A <code>Boolean</code> value, held as 1 or 0 in <code>longs</code>. */
+    static final byte BIT           = 3;
+    /** A <code>Float</code> value, held in <code>doubles</code>. */
+    static final byte REAL          = 4;
+    /** A <code>Double</code> value, held in <code>doubles</code>. */
+    static final byte FLOAT         = 5;
+    /** A money value in ten thousandths, held in <code>longs</code>. */
+    static final byte MONEY         = 6;
+    /** A datetime, held as days in the high and time in the low 32 bits. */
+    static final byte DATETIME      = 7;
+    /** A smalldatetime, held as days in the high and minutes in the low 32 bits. */
+    static final byte SMALLDATETIME = 8;
+
+    /** The column descriptors the buffer was created for. */
+    final ColInfo[] columns;
+    /** True for the columns that may be read as primitives. */
+    private final boolean[] primitive;
+    /** True for the columns of the current row that are held as primitives. */
+    private final boolean[] held;
+    /** The kind of value held in each column. */
+    private final byte[] kinds;
+    /** The integer values of the current row. */
+    private final long[] longs;
+    /** The floating point values of the current row. */
+    private final double[] doubles;
+
+    /**
+     * Create a row buffer for a set of result set columns.
+     *
+     * @param columns the column descriptors
+     */
+    RowBuffer(ColInfo[] columns) {
+        this.columns = columns;
+        primitive = new boolean[columns.length];
+        held = new boolean[columns.length];
+        kinds = new byte[columns.length];
+        longs = new long[columns.length];
+        doubles = new double[columns.length];
+
+        for (int i = 0; i < columns.length; i++) {
+            primitive[i] = TdsData.isPrimitive(columns[i]);
+        }
+    }
+
+    /**
+     * Determine whether any of the columns may be read as primitives.
+     *
+     * @return <code>true</code> if at least one column may be held
+     */
+    boolean hasPrimitives() {
+        for (int i = 0; i < primitive.length; i++) {
+            if (primitive[i]) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Determine whether a column may be read as a primitive.
+     *
+     * @param col the zero based column index
+     * @return <code>true</code> if the column is a fixed size number or date
+     */
+    boolean isPrimitive(int col) {
+        return primitive[col];
+    }
+
+    /**
+     * Determine whether a column of the current row is held as a primitive.
+     *
+     * @param col the zero based column index
+     * @return <code>true</code> if the value has not yet been made an object
+     */
+    boolean isHeld(int col) {
+        return held[col];
+    }
+
+    /**
+     * Determine whether a column of the current row is held as a number
+     * that the primitive getters can return without creating an object.
+     *
+     * @param col the zero based column index
+     * @return <code>true</code> for held integer, bit and floating point values
+     */
+    boolean isNumber(int col) {
+        return held[col] && kinds[col] <= FLOAT;
+    }
+
+    /**
+     * Mark a column of the current row as null or not yet read.
+     *
+     * @param col the zero based column index
+     */
+    void clear(int col) {
+        held[col] = false;
+    }
+
+    /**
+     * Hold an integer value.
+     *
+     * @param col  the zero based column index
+     * @param kind <code>INT</code>, <code>LONG</code>, <code>BIT</code>,
+     *             <code>MONEY</code>, <code>DATETIME</code> or
+     *             <code>SMALLDATETIME</code>
+     * @param value the value
+     */
+    void setLong(int col, byte kind, long value) {
+        kinds[col] = kind;
+        longs[col] = value;
+        held[col] = true;
+    }
+
+    /**
+     * Hold a floating point value.
+     *
+     * @param col  the zero based column index
+     * @param kind <code>REAL</code> or <code>FLOAT</code>
+     * @param value the value
+     */
+    void setDouble(int col, byte kind, double value) {
+        kinds[col] = kind;
+        doubles[col] = value;
+        held[col] = true;
+    }
+
+    /**
+     * Retrieve a held number as an <code>int</code>.
+     *
+     * @param col the zero based column index
+     * @return the value as <code>Number.intValue()</code> would return it
+     */
+    int getInt(int col) {
+        switch (kinds[col]) {
+            case REAL:
+            case FLOAT:
+                return (int) doubles[col];
+            default:
+                return (int) longs[col];
+        }
+    }
+
+    /**
+     * Retrieve a held number as a <code>long</code>.
+     *
+     * @param col the zero based column index
+     * @return the value as <code>Number.longValue()</code> would return it
+     */
+    long getLong(int col) {
+        switch (kinds[col]) {
+            case REAL:
+            case FLOAT:
+                return (long) doubles[col];
+            default:
+                return longs[col];
+        }
+    }
+
+    /**
+     * Retrieve a held number as a <code>double</code>.
+     *
+     * @param col the zero based column index
+     * @return the value as <code>Number.doubleValue()</code> would return it
+     */
+    double getDouble(int col) {
+        switch (kinds[col]) {
+            case REAL:
+            case FLOAT:
+                return doubles[col];
+            default:
+                return (double) longs[col];
+        }
+    }
+
+    /**
+     * Retrieve a held number as a <code>float</code>.
+     *
+     * @param col the zero based column index
+     * @return the value as <code>Number.floatValue()</code> would return it
+     */
+    float getFloat(int col) {
+        switch (kinds[col]) {
+            case REAL:
+            case FLOAT:
+                return (float) doubles[col];
+            default:
+                return (float) longs[col];
+        }
+    }
+
+    /**
+     * Retrieve a held number as a <code>boolean</code>.
+     *
+     * @param col the zero based column index
+     * @return <code>false</code> if the integer part of the value is zero
+     */
+    boolean getBoolean(int col) {
+        return getInt(col) != 0;
+    }
+
+    /**
+     * Retrieve a held number as a <code>String</code>.
+     *
+     * @param col the zero based column index
+     * @return the value formatted as the equivalent object would format it
+     */
+    String getString(int col) {
+        switch (kinds[col]) {
+            case INT:
+                return Integer.toString((int) longs[col]);
+            case BIT:
+                return (longs[col] != 0) ? "1" : "0";
+            case REAL:
+                return Float.toString((float) doubles[col]);
+            case FLOAT:
+                return Double.toString(doubles[col]);
+            default:
+                return Long.toString(longs[col]);
+        }
+    }
+
+    /**
+     * Create the object for a held column and store it in the row in place
+     * of the primitive.
+     *
+     * @param row the row data, in which the column is <code>null</code>
+     * @param col the zero based column index
+     * @return the column value as <code>TdsData.readData</code> returns it
+     */
+    Object toObject(Object[] row, int col) {
+        long l = longs[col];
+        Object value;
+
+        switch (kinds[col]) {
+            case INT:
+                value = new Integer((int) l);
+                break;
+            case LONG:
+                value = new Long(l);
+                break;
+            case BIT:
+                value = (l != 0) ? Boolean.TRUE : Boolean.FALSE;
+                break;
+            case REAL:
+                value = new Float((float) doubles[col]);
+                break;
+            case FLOAT:
+                value = new Double(doubles[col]);
+                break;
+            case MONEY:
+                value = new BigDecimal(BigInteger.valueOf(l), 4);
+                break;
+            case DATETIME:
+                value = new DateTime((int) (l >> 32), (int) l);
+                break;
+            case SMALLDATETIME:
+                value = new DateTime((short) (l >> 32), (short) l);
+                break;
+            default:
+                throw new IllegalStateException("Invalid row buffer value kind " + kinds[col]);
+        }
+
+        row[col] = value;
+        held[col] = false;
+
+        return value;
+    }
+
+    /**
+     * Create the objects for all held columns of a row, for code that needs
+     * the complete row as objects.
+     *
+     * @param row the row data
+     */
+    void toObjects(Object[] row) {
+        for (int i = 0; i < held.length; i++) {
+            if (held[i]) {
+                toObject(row, i);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.jdbc;
+
+import java.io.IOException;
+
+/**
+ * Receives the rows of a query as text, directly from the server response.
+ * <p>
+ * Rows are passed to a sink by {@link JtdsStatement#executeQuery(String, RowSink)}.
+ * Each value is given as the characters <code>ResultSet.getString</code>
+ * would return for it, but where the column type allows it the characters are
+ * decoded straight from the network packets into a reused buffer, without a
+ * <code>String</code> or any other object being created for the value.
+ * <p>
+ * The character array passed to {@link #value} is only valid until the
+ * method returns; it is reused for the following values.
+ *
+ * @see CsvRowSink
+ */
+public interface RowSink {
+    /**
+     * Receive a value of the current row.
+     *
+     * @param column the one based column index
+     * @param chars  the buffer holding the value
+     * @param offset the offset of the value in the buffer
+     * @param length the number of characters in the value
+     * @throws IOException if the value cannot be written
+     */
+    void value(int column, char[] chars, int offset, int length) throws IOException;
+
+    /**
+     * Receive a null value of the current row.
+     *
+     * @param column the one based column index
+     * @throws IOException if the value cannot be written
+     */
+    void nullValue(int column) throws IOException;
+
+    /**
+     * Called after all the values of a row have been received.
+     *
+     * @throws IOException if the row cannot be written
+     */
+    void endRow() throws IOException;
+}
@@ -24,7 +24,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -63,6 +62,13 @@ import net.sourceforge.jtds.util.Logger;
  * maximum buffer memory threshold has been passed. Small result sets that will fit
  * within a specified limit (default 8 packets) will continue to be held in memory
  * (even if the memory threshold has been passed) in the interests of efficiency.
+ * Packets cached to disk go to a buffered {@link SpillSegment}, which is
+ * kept and reused until the virtual socket is closed. The number of packets
+ * cached and read back is available from {@link Driver#getSpilledPackets()}.
+ * <p>
+ * If read ahead is enabled the packets of each server response are read from
+ * the network by a dedicated thread, into a bounded queue of reused packet
+ * buffers, while the caller decodes the packets already read.
  *
  * @author Mike Hutchinson.
  * @version $Id: SharedSocket.java,v 1.39 2007/07/08 21:38:13 bheineman Exp $
@@ -89,13 +95,9 @@ class SharedSocket {
          */
         boolean complete;
         /**
-         * File object for disk packet queue.
-         */
-        File queueFile;
-        /**
-         * I/O Stream for disk packet queue.
+         * Disk packet queue, or null if not yet needed.
          */
-        RandomAccessFile diskQueue;
+        SpillSegment spill;
         /**
          * Number of packets cached to disk.
          */
@@ -113,13 +115,198 @@ class SharedSocket {
             this.pktQueue = new LinkedList();
             this.flushInput = false;
             this.complete = false;
-            this.queueFile = null;
-            this.diskQueue = null;
+            this.spill = null;
             this.pktsOnDisk = 0;
             this.inputPkts = 0;
         }
     }
 
+    /**
+     * This inner class reads the packets of a server response from the
+     * network ahead of the caller.
+     * <p>
+     * Implementation notes:
+     * <ol>
+     * <li>The thread starts reading when a request has been sent and stops
+     *     after the last packet of the response, or when the queue is full.
+     * <li>An <code>IOException</code> is queued in place of a packet and
+     *     thrown to the caller that takes it.
+     * <li>{@link #owner} is only changed by callers holding the
+     *     <code>socketTable</code> lock, so it can be read under that lock.
+     *     The thread itself never takes the <code>socketTable</code> lock.
+     * </ol>
+     */
+    private class ReadAheadThread extends Thread {
+        /**
+         * The maximum number of packets read ahead.
+         */
+        final int capacity;
+        /**
+         * Packets read and not yet taken, also the monitor for all fields.
+         */
+        final LinkedList queue = new LinkedList();
+        /**
+         * Packet buffers free for reuse.
+         */
+        final ArrayList pool = new ArrayList();
+        /**
+         * The stream ID of the response in the queue, or -1 if none.
+         */
+        int owner = -1;
+        /**
+         * True while the rest of the response is to be read.
+         */
+        boolean reading;
+        /**
+         * True once the socket has been closed.
+         */
+        boolean closed;
+
+        /**
+         * Construct the read ahead thread.
+         *
+         * @param capacity the maximum number of packets to read ahead
+         */
+        ReadAheadThread(int capacity) {
+            super("jTDS ReadAheadThread");
+            this.capacity = capacity;
+            // Ensure that this thread does not prevent the VM from exiting
+            setDaemon(true);
+        }
+
+        /**
+         * Start reading the response to a request that has just been sent.
+         *
+         * @param streamId the stream ID of the request
+         */
+        void startResponse(int streamId) {
+            synchronized (queue) {
+                owner = streamId;
+                reading = true;
+                queue.notifyAll();
+            }
+        }
+
+        /**
+         * Take the next packet of the response, waiting for it to be read.
+         *
+         * @param buffer a buffer the caller no longer needs, or null
+         * @return the packet
+         * @throws IOException if the packet could not be read
+         */
+        byte[] take(byte[] buffer) throws IOException {
+            synchronized (queue) {
+                recycle(buffer);
+
+                while (queue.isEmpty()) {
+                    if (closed) {
+                        owner = -1;
+                        throw new IOException("Socket closed");
+                    }
+
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted while waiting for the server response");
+                    }
+                }
+
+                Object packet = queue.removeFirst();
+                // Wake the thread if it was waiting for room in the queue
+                queue.notifyAll();
+
+                if (packet instanceof IOException) {
+                    owner = -1;
+                    throw (IOException) packet;
+                }
+
+                buffer = (byte[]) packet;
+
+                if (buffer[1] != 0) {
+                    // Last packet of the response
+                    owner = -1;
+                }
+
+                return buffer;
+            }
+        }
+
+        /**
+         * Return a buffer to the pool, if there is room for it.
+         *
+         * @param buffer the buffer or null
+         */
+        void recycle(byte[] buffer) {
+            synchronized (queue) {
+                if (buffer != null && pool.size() < capacity) {
+                    pool.add(buffer);
+                }
+            }
+        }
+
+        /**
+         * Stop the thread.
+         */
+        void shutdown() {
+            synchronized (queue) {
+                closed = true;
+                queue.notifyAll();
+            }
+        }
+
+        /**
+         * Execute the read ahead main loop.
+         */
+        public void run() {
+            try {
+                while (true) {
+                    byte[] buffer;
+
+                    synchronized (queue) {
+                        while (!closed && (!reading || queue.size() >= capacity)) {
+                            queue.wait();
+                        }
+
+                        if (closed) {
+                            return;
+                        }
+
+                        buffer = pool.isEmpty()
+                                ? null : (byte[]) pool.remove(pool.size() - 1);
+                    }
+
+                    Object packet;
+
+                    try {
+                        packet = readPacket(buffer);
+                    } catch (IOException e) {
+                        packet = e;
+                    } catch (RuntimeException e) {
+                        packet = Support.linkException(
+                                new IOException("Read ahead failed: " + e), e);
+                    }
+
+                    synchronized (queue) {
+                        if (closed) {
+                            return;
+                        }
+
+                        queue.addLast(packet);
+
+                        if (packet instanceof IOException
+                                || ((byte[]) packet)[1] != 0) {
+                            reading = false;
+                        }
+
+                        queue.notifyAll();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Socket is being closed
+            }
+        }
+    }
+
     /**
      * The shared network socket.
      */
@@ -152,21 +339,38 @@ class SharedSocket {
      * Buffer for packet header.
      */
     private final byte hdrBuf[] = new byte[TDS_HDR_LEN];
+    /**
+     * The thread reading responses ahead of the caller, or null.
+     */
+    private ReadAheadThread readAhead;
     /**
      * The directory to buffer data to.
      */
     private final File bufferDir;
     /**
-     * Total memory usage in all instances of the driver
-     * NB. Access to this field should probably be synchronized
-     * but in practice lost updates will not matter much and I think
-     * all VMs tend to do atomic saves to integer variables.
+     * Synchronization monitor for the global buffer counters.
+     */
+    private static final Object memMonitor = new Object();
+    /**
+     * Total memory usage in all instances of the driver.
      */
     private static int globalMemUsage;
     /**
-     * Peak memory usage for debug purposes.
+     * Peak memory usage.
      */
     private static int peakMemUsage;
+    /**
+     * Number of packets cached to disk by all instances of the driver.
+     */
+    private static long spilledPackets;
+    /**
+     * Number of bytes cached to disk by all instances of the driver.
+     */
+    private static long spilledBytes;
+    /**
+     * Number of packets read back from disk by all instances of the driver.
+     */
+    private static long filledPackets;
     /**
      * Max memory limit to use for buffers.
      * Only when this limit is exceeded will the driver
@@ -480,6 +684,130 @@ class SharedSocket {
         return SharedSocket.minMemPkts;
     }
 
+    /**
+     * Get the buffer memory currently used by all instances of this driver.
+     *
+     * @return the memory used in bytes
+     */
+    static int getMemUsage() {
+        synchronized (memMonitor) {
+            return globalMemUsage;
+        }
+    }
+
+    /**
+     * Get the peak buffer memory used by all instances of this driver.
+     *
+     * @return the peak memory used in bytes
+     */
+    static int getPeakMemUsage() {
+        synchronized (memMonitor) {
+            return peakMemUsage;
+        }
+    }
+
+    /**
+     * Get the number of packets cached to disk because the global memory
+     * limit had been reached.
+     *
+     * @return the number of packets written to disk
+     */
+    static long getSpilledPackets() {
+        synchronized (memMonitor) {
+            return spilledPackets;
+        }
+    }
+
+    /**
+     * Get the number of bytes cached to disk because the global memory
+     * limit had been reached.
+     *
+     * @return the number of bytes written to disk
+     */
+    static long getSpilledBytes() {
+        synchronized (memMonitor) {
+            return spilledBytes;
+        }
+    }
+
+    /**
+     * Get the number of packets read back from disk.
+     *
+     * @return the number of packets read from disk
+     */
+    static long getFilledPackets() {
+        synchronized (memMonitor) {
+            return filledPackets;
+        }
+    }
+
+    /**
+     * Account for a packet buffer to be held in memory.
+     *
+     * @param size      the buffer size
+     * @param spillable <code>true</code> if the packet may be cached to disk
+     *                  instead
+     * @return <code>true</code> if the memory was accounted for or
+     *         <code>false</code> if the packet should be cached to disk
+     *         because the global memory limit has been reached
+     */
+    private static boolean reserveMemory(int size, boolean spillable) {
+        synchronized (memMonitor) {
+            if (spillable && globalMemUsage + size > memoryBudget) {
+                return false;
+            }
+
+            globalMemUsage += size;
+
+            if (globalMemUsage > peakMemUsage) {
+                peakMemUsage = globalMemUsage;
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Account for a packet buffer no longer held in memory.
+     *
+     * @param size the buffer size
+     */
+    private static void releaseMemory(int size) {
+        synchronized (memMonitor) {
+            globalMemUsage -= size;
+        }
+    }
+
+    /**
+     * Count packets cached to disk or read back from disk.
+     *
+     * @param spilled the number of packets written
+     * @param bytes   the number of bytes written
+     * @param filled  the number of packets read
+     */
+    private static void countSpill(int spilled, int bytes, int filled) {
+        synchronized (memMonitor) {
+            spilledPackets += spilled;
+            spilledBytes += bytes;
+            filledPackets += filled;
+        }
+    }
+
+    /**
+     * Start reading server responses ahead of the caller, on a dedicated
+     * thread, once enabled this cannot be disabled.
+     *
+     * @param packets the maximum number of packets to read ahead
+     */
+    void setReadAhead(int packets) {
+        synchronized (socketTable) {
+            if (readAhead == null && packets > 0) {
+                readAhead = new ReadAheadThread(packets);
+                readAhead.start();
+            }
+        }
+    }
+
     /**
      * Get the connected status of this socket.
      *
@@ -545,21 +873,25 @@ class SharedSocket {
      */
     void close() throws IOException {
         if (Logger.isActive()) {
-            Logger.println("TdsSocket: Max buffer memory used = " + (peakMemUsage / 1024) + "KB");
+            synchronized (memMonitor) {
+                Logger.println("TdsSocket: Max buffer memory used = " + (peakMemUsage / 1024)
+                        + "KB of " + (memoryBudget / 1024) + "KB bufferMaxMemory, "
+                        + spilledPackets + " packets (" + (spilledBytes / 1024)
+                        + "KB) cached to disk, " + filledPackets + " read back");
+            }
         }
 
         synchronized (socketTable) {
-            // See if any temporary files need deleting
+            if (readAhead != null) {
+                readAhead.shutdown();
+            }
+
+            // Release the packet queues and delete any temporary files
             for (int i = 0; i < socketTable.size(); i++) {
                 VirtualSocket vsock = (VirtualSocket) socketTable.get(i);
 
-                if (vsock != null && vsock.diskQueue != null) {
-                    try {
-                        vsock.diskQueue.close();
-                        vsock.queueFile.delete();
-                    } catch (IOException ioe) {
-                        // Ignore errors
-                    }
+                if (vsock != null) {
+                    releaseQueue(vsock);
                 }
             }
             try {
@@ -582,6 +914,10 @@ class SharedSocket {
      * Used by the login timer to abort a login attempt.
      */
     void forceClose() {
+        if (readAhead != null) {
+            readAhead.shutdown();
+        }
+
         if (socket != null) {
             try {
                 socket.close();
@@ -603,19 +939,30 @@ class SharedSocket {
         synchronized (socketTable) {
             VirtualSocket vsock = lookup(streamId);
 
-            if (vsock.diskQueue != null) {
-                try {
-                    vsock.diskQueue.close();
-                    vsock.queueFile.delete();
-                } catch (IOException ioe) {
-                    // Ignore errors
-                }
-            }
-
+            releaseQueue(vsock);
             socketTable.set(streamId, null);
         }
     }
 
+    /**
+     * Discard the queued input of a virtual socket and delete its disk queue.
+     *
+     * @param vsock the virtual socket being closed
+     */
+    private static void releaseQueue(VirtualSocket vsock) {
+        while (vsock.pktQueue.size() > 0) {
+            releaseMemory(((byte[]) vsock.pktQueue.removeFirst()).length);
+        }
+
+        if (vsock.spill != null) {
+            vsock.spill.close();
+            vsock.spill = null;
+        }
+
+        vsock.pktsOnDisk = 0;
+        vsock.inputPkts = 0;
+    }
+
     /**
      * Send a network packet. If output for another virtual socket is
      * in progress this packet will be sent later.
@@ -631,6 +978,7 @@ class SharedSocket {
         synchronized (socketTable) {
 
             VirtualSocket vsock = lookup(streamId);
+            byte[] unread = null;
 
             while (vsock.inputPkts > 0) {
                 //
@@ -640,21 +988,23 @@ class SharedSocket {
                 if (Logger.isActive()) {
                     Logger.println("TdsSocket: Unread data in input packet queue");
                 }
-                dequeueInput(vsock);
+                unread = dequeueInput(vsock, unread);
             }
 
-            if (responseOwner != -1) {
+            int pendingOwner = getPendingOwner();
+
+            if (pendingOwner != -1) {
                 //
                 // Complex case there is another stream's data in the network pipe
                 // or we had our own incomplete request to discard first
                 // Read and store other stream's data or flush our own.
                 //
-                VirtualSocket other = (VirtualSocket)socketTable.get(responseOwner);
+                VirtualSocket other = (VirtualSocket)socketTable.get(pendingOwner);
                 byte[] tmpBuf = null;
                 boolean ourData = (other.owner == streamId);
                 do {
                     // Reuse the buffer if it's our data; we don't need it
-                    tmpBuf = readPacket(ourData ? tmpBuf : null);
+                    tmpBuf = readResponsePacket(ourData ? tmpBuf : null);
 
                     if (!ourData) {
                         // We need to save this input as it belongs to
@@ -663,6 +1013,10 @@ class SharedSocket {
                     }   // Any of our input is discarded.
 
                 } while (tmpBuf[1] == 0); // Read all data to complete TDS packet
+
+                if (ourData && readAhead != null) {
+                    readAhead.recycle(tmpBuf);
+                }
             }
             //
             // At this point we know that we are able to send the first
@@ -674,6 +1028,10 @@ class SharedSocket {
                 getOut().flush();
                 // We are the response owner now
                 responseOwner = streamId;
+
+                if (readAhead != null) {
+                    readAhead.startResponse(streamId);
+                }
             }
 
             return buffer;
@@ -697,30 +1055,62 @@ class SharedSocket {
             // Return any cached input
             //
             if (vsock.inputPkts > 0) {
-                return dequeueInput(vsock);
+                return dequeueInput(vsock, buffer);
             }
 
             //
             // Nothing cached see if we are expecting network data
             //
-            if (responseOwner == -1) {
+            int pendingOwner = getPendingOwner();
+
+            if (pendingOwner == -1) {
                 throw new IOException("Stream " + streamId +
                                 " attempting to read when no request has been sent");
             }
             //
             // OK There should be data, check that it is for this stream
             //
-            if (responseOwner != streamId) {
+            if (pendingOwner != streamId) {
                 // Error we are trying to read another thread's request.
                 throw new IOException("Stream " + streamId +
                                 " is trying to read data that belongs to stream " +
-                                    responseOwner);
+                                    pendingOwner);
             }
             //
             // Simple case we are reading our input directly from the server
             //
-            return readPacket(buffer);
+            return readResponsePacket(buffer);
+        }
+    }
+
+    /**
+     * Retrieve the stream ID of the response that has not been completely
+     * read yet, either from the network or from the read ahead queue.
+     *
+     * @return the stream ID or -1 if no response is pending
+     */
+    private int getPendingOwner() {
+        if (readAhead != null && readAhead.owner != -1) {
+            return readAhead.owner;
         }
+
+        return responseOwner;
+    }
+
+    /**
+     * Read the next packet of the pending response, from the read ahead
+     * queue if it is being read ahead or else from the network.
+     *
+     * @param buffer a buffer to read the data into (if it fits) or null
+     * @return the buffer containing the packet
+     */
+    private byte[] readResponsePacket(byte buffer[])
+            throws IOException {
+        if (readAhead != null && readAhead.owner != -1) {
+            return readAhead.take(buffer);
+        }
+
+        return readPacket(buffer);
     }
 
     /**
@@ -732,96 +1122,105 @@ class SharedSocket {
      */
     private void enqueueInput(VirtualSocket vsock, byte[] buffer)
             throws IOException {
-        //
-        // Check to see if we should start caching to disk
-        //
-        if (globalMemUsage + buffer.length > memoryBudget &&
-                vsock.pktQueue.size() >= minMemPkts &&
-                !securityViolation &&
-                vsock.diskQueue == null) {
-            // Try to create a disk file for the queue
-            try {
-                vsock.queueFile = File.createTempFile("jtds", ".tmp", bufferDir);
-                vsock.queueFile.deleteOnExit();
-                vsock.diskQueue = new RandomAccessFile(vsock.queueFile, "rw");
+        if (vsock.pktsOnDisk == 0) {
+            //
+            // Keep the packet in memory unless the memory limit has been
+            // reached and this socket already has its minimum of packets
+            //
+            boolean spillable = vsock.pktQueue.size() >= minMemPkts
+                    && !securityViolation;
 
-                // Write current cache contents to disk and free memory
-                byte[] tmpBuf;
+            boolean inMemory = reserveMemory(buffer.length, spillable);
 
-                while (vsock.pktQueue.size() > 0) {
-                    tmpBuf = (byte[]) vsock.pktQueue.removeFirst();
-                    vsock.diskQueue.write(tmpBuf, 0, getPktLen(tmpBuf));
-                    vsock.pktsOnDisk++;
-                }
+            if (!inMemory && !startSpill(vsock)) {
+                // Not allowed to cache to disk so carry on in memory
+                inMemory = reserveMemory(buffer.length, false);
+            }
+
+            if (inMemory) {
+                vsock.pktQueue.addLast(buffer);
+                vsock.inputPkts++;
+                return;
+            }
+        }
+
+        // Disk queue in use so append buffer to it
+        int len = getPktLen(buffer);
+
+        vsock.spill.write(buffer, len);
+        vsock.pktsOnDisk++;
+        vsock.inputPkts++;
+        countSpill(1, len, 0);
+    }
+
+    /**
+     * Start caching the input of a virtual socket to disk, moving the
+     * packets already in its memory queue to the disk queue.
+     *
+     * @param vsock the virtual socket owning this data
+     * @return <code>true</code> if the disk queue can be used or
+     *         <code>false</code> if security constraints prevent its creation
+     */
+    private boolean startSpill(VirtualSocket vsock) throws IOException {
+        if (vsock.spill == null) {
+            // Try to create a disk file for the queue
+            try {
+                vsock.spill = new SpillSegment(bufferDir);
             } catch (java.lang.SecurityException se) {
                 // Not allowed to cache to disk so carry on in memory
                 securityViolation = true;
-                vsock.queueFile = null;
-                vsock.diskQueue = null;
+                return false;
             }
         }
 
-        if (vsock.diskQueue != null) {
-            // Cache file exists so append buffer to it
-            vsock.diskQueue.write(buffer, 0, getPktLen(buffer));
-            vsock.pktsOnDisk++;
-        } else {
-            // Will cache in memory
-            vsock.pktQueue.addLast(buffer);
-            globalMemUsage += buffer.length;
+        // Write current cache contents to disk and free memory
+        int packets = 0;
+        int bytes = 0;
 
-            if (globalMemUsage > peakMemUsage) {
-                peakMemUsage = globalMemUsage;
-            }
+        while (vsock.pktQueue.size() > 0) {
+            byte[] tmpBuf = (byte[]) vsock.pktQueue.removeFirst();
+            int len = getPktLen(tmpBuf);
+
+            vsock.spill.write(tmpBuf, len);
+            vsock.pktsOnDisk++;
+            releaseMemory(tmpBuf.length);
+            packets++;
+            bytes += len;
         }
 
-        vsock.inputPkts++;
+        countSpill(packets, bytes, 0);
+
+        return true;
     }
 
     /**
      * Read a cached packet from the in memory queue or from a disk based queue.
      *
-     * @param vsock the virtual socket owning this data
+     * @param vsock  the virtual socket owning this data
+     * @param buffer a buffer to read a packet from disk into (if it fits) or
+     *               null
      * @return a buffer containing the packet
      */
-    private byte[] dequeueInput(VirtualSocket vsock)
+    private byte[] dequeueInput(VirtualSocket vsock, byte[] buffer)
             throws IOException {
-        byte[] buffer = null;
-
         if (vsock.pktsOnDisk > 0) {
             // Data is cached on disk
-            if (vsock.diskQueue.getFilePointer() == vsock.diskQueue.length()) {
-                // First read so rewind() file
-                vsock.diskQueue.seek(0L);
-            }
-
-            vsock.diskQueue.readFully(hdrBuf, 0, TDS_HDR_LEN);
-
-            int len = getPktLen(hdrBuf);
-
-            buffer = new byte[len];
-            System.arraycopy(hdrBuf, 0, buffer, 0, TDS_HDR_LEN);
-            vsock.diskQueue.readFully(buffer, TDS_HDR_LEN, len - TDS_HDR_LEN);
+            buffer = vsock.spill.read(buffer);
             vsock.pktsOnDisk--;
+            countSpill(0, 0, 1);
 
             if (vsock.pktsOnDisk < 1) {
-                // File now empty so close and delete it
-                try {
-                    vsock.diskQueue.close();
-                    vsock.queueFile.delete();
-                } finally {
-                    vsock.queueFile = null;
-                    vsock.diskQueue = null;
-                }
+                // Queue now empty so write it again from the start
+                vsock.spill.reset();
             }
         } else if (vsock.pktQueue.size() > 0) {
             buffer = (byte[]) vsock.pktQueue.removeFirst();
-            globalMemUsage -= buffer.length;
+            releaseMemory(buffer.length);
+        } else {
+            return null;
         }
 
-        if (buffer != null) {
-            vsock.inputPkts--;
-        }
+        vsock.inputPkts--;
 
         return buffer;
     }
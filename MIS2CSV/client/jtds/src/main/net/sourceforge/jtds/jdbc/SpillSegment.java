@@ -0,0 +1,196 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.jdbc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An append only file holding the network packets that a virtual socket of
+ * {@link SharedSocket} could not keep in memory.
+ * <p>
+ * Implementation notes:
+ * <ol>
+ * <li>Packets are written to a buffer that is written to the file when it is
+ *     full, and read back through a buffer that is filled from the file with
+ *     as many packets as fit, so most packets are a memory copy rather than a
+ *     file system call.
+ * <li>Packets are read back in the order they were written. Once all of them
+ *     have been read the segment is reset and the file is written again from
+ *     the start, so one file serves the virtual socket until it is closed.
+ * <li>The file is never memory mapped, so it can be deleted as soon as it is
+ *     closed on every platform.
+ * </ol>
+ */
+class SpillSegment {
+    /** The size of the read and write buffers, more than the largest packet. */
+    private static final int BUFFER_SIZE = 65536;
+    /** Length of TDS packet header. */
+    private static final int TDS_HDR_LEN = 8;
+
+    /** The file holding the packets. */
+    private final File file;
+    /** The open file. */
+    private final RandomAccessFile raf;
+    /** The channel used to read and write the file. */
+    private final FileChannel channel;
+    /** Packets written and not yet written to the file. */
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    /** The file offset of the first byte of <code>writeBuffer</code>. */
+    private long writeBase;
+    /** Bytes read from the file, from the next packet to read. */
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    /** The file offset of the end of the bytes in <code>readBuffer</code>. */
+    private long readEnd;
+
+    /**
+     * Create a segment in a new temporary file.
+     *
+     * @param dir the directory to create the file in
+     * @throws IOException if the file cannot be created
+     */
+    SpillSegment(File dir) throws IOException {
+        file = File.createTempFile("jtds", ".tmp", dir);
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        readBuffer.limit(0);
+    }
+
+    /**
+     * Append a packet.
+     *
+     * @param buffer the buffer holding the packet
+     * @param len    the length of the packet
+     * @throws IOException if the file cannot be written
+     */
+    void write(byte[] buffer, int len) throws IOException {
+        if (writeBuffer.remaining() < len) {
+            flush();
+        }
+
+        writeBuffer.put(buffer, 0, len);
+    }
+
+    /**
+     * Read the next packet.
+     *
+     * @param buffer a buffer to read the packet into (if it fits) or null
+     * @return either the buffer passed in or a new buffer holding the packet
+     * @throws IOException if the file cannot be read
+     */
+    byte[] read(byte[] buffer) throws IOException {
+        fill(TDS_HDR_LEN);
+
+        int pos = readBuffer.position();
+        int len = ((readBuffer.get(pos + 2) & 0xFF) << 8) | (readBuffer.get(pos + 3) & 0xFF);
+
+        fill(len);
+
+        if (buffer == null || buffer.length < len) {
+            buffer = new byte[len];
+        }
+
+        readBuffer.get(buffer, 0, len);
+
+        return buffer;
+    }
+
+    /**
+     * Discard all packets, so the file is written again from the start.
+     */
+    void reset() {
+        writeBuffer.clear();
+        writeBase = 0;
+        readBuffer.clear();
+        readBuffer.limit(0);
+        readEnd = 0;
+    }
+
+    /**
+     * Close and delete the file.
+     */
+    void close() {
+        try {
+            raf.close();
+        } catch (IOException ioe) {
+            // Ignore errors
+        }
+
+        file.delete();
+    }
+
+    /**
+     * Write the packets in the write buffer to the file.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    private void flush() throws IOException {
+        writeBuffer.flip();
+
+        while (writeBuffer.hasRemaining()) {
+            writeBase += channel.write(writeBuffer, writeBase);
+        }
+
+        writeBuffer.clear();
+    }
+
+    /**
+     * Make sure the read buffer holds the next bytes to read, reading as many
+     * of the packets written since as fit if it does not.
+     *
+     * @param len the number of bytes to be read
+     * @throws IOException if the file cannot be read
+     */
+    private void fill(int len) throws IOException {
+        int needed = len - readBuffer.remaining();
+
+        if (needed <= 0) {
+            return;
+        }
+
+        if (readEnd + needed > writeBase) {
+            // The bytes are still in the write buffer
+            flush();
+        }
+
+        readBuffer.compact();
+
+        // Bytes past the last packet written are left over from before a reset
+        long available = writeBase - readEnd;
+
+        if (available < readBuffer.remaining()) {
+            readBuffer.limit(readBuffer.position() + (int) available);
+        }
+
+        while (readBuffer.position() < len) {
+            int count = channel.read(readBuffer, readEnd);
+
+            if (count < 0) {
+                throw new IOException("Unexpected end of disk queue");
+            }
+
+            readEnd += count;
+        }
+
+        readBuffer.flip();
+    }
+}
@@ -394,6 +394,20 @@ public class TdsCore {
     private ColInfo[] columns;
     /** The array of column data objects in the current row. */
     private Object[] rowData;
+    /** Holds the fixed size columns of the current row as primitives, or null. */
+    private RowBuffer rowBuffer;
+    /** The columns whose rows are only read when asked for, or null. */
+    private ColInfo[] lazyColumns;
+    /** True while some columns of the current row have not been read. */
+    private boolean rowPending;
+    /** The number of columns of the current row read or passed over. */
+    private int rowScanned;
+    /** The number of columns of the current row that have been read. */
+    private int rowRead;
+    /** The response stream positions of the columns of the current row. */
+    private long[] columnPositions;
+    /** True for the columns of the current row that have been read. */
+    private boolean[] columnRead;
     /** The array of table names associated with this result. */
     private TableMetaData[] tables;
     /** The descriptor object for the current TDS token. */
@@ -508,10 +522,270 @@ public class TdsCore {
      *
      * @return the row data as an <code>Object</code> array
      */
-    Object[] getRowData() {
+    Object[] getRowData() throws SQLException {
+        readRow();
+
+        if (rowBuffer != null && rowBuffer.columns == columns) {
+            rowBuffer.toObjects(rowData);
+        }
+
+        return rowData;
+    }
+
+    /**
+     * Retrieve the current result set data items without creating objects
+     * for the columns held as primitives by the row buffer, or reading the
+     * columns of a lazy row.
+     *
+     * @return the row data as an <code>Object</code> array
+     * @see #usePrimitiveRows()
+     * @see #useLazyRows()
+     */
+    Object[] getRawRowData() {
         return rowData;
     }
 
+    /**
+     * Only read the columns of the following rows of the current result set
+     * from the server response when they are asked for by
+     * {@link #readColumn}.
+     * <p/>
+     * The packets holding the current row are kept until the next token is
+     * read, so a column passed over to reach a later one can still be read.
+     * Columns that are never asked for are skipped without being decoded.
+     *
+     * @return <code>true</code> if lazy rows are in use; <code>false</code>
+     *         if there is no current result set or it has text or image
+     *         columns
+     */
+    boolean useLazyRows() {
+        if (columns == null) {
+            return false;
+        }
+
+        for (int i = 0; i < columns.length; i++) {
+            if (!TdsData.isSkippable(columns[i])) {
+                return false;
+            }
+        }
+
+        lazyColumns = columns;
+        columnPositions = new long[columns.length];
+        columnRead = new boolean[columns.length];
+
+        return true;
+    }
+
+    /**
+     * Read a column of the current lazy row, if it has not already been
+     * read.
+     *
+     * @param col the zero based column index
+     * @throws SQLException if an I/O or protocol error occurs
+     */
+    void readColumn(int col) throws SQLException {
+        if (rowPending && !columnRead[col]) {
+            readPendingColumn(col);
+        }
+    }
+
+    /**
+     * Read a column of the current lazy row that has not been read.
+     *
+     * @param col the zero based column index
+     * @throws SQLException if an I/O or protocol error occurs
+     */
+    private void readPendingColumn(int col) throws SQLException {
+        try {
+            if (col < rowScanned) {
+                // Passed over to reach a later column, go back for it
+                long front = in.getPosition();
+                in.seek(columnPositions[col]);
+                readColumnData(col);
+                in.seek(front);
+            } else {
+                while (rowScanned < col) {
+                    columnPositions[rowScanned] = in.getPosition();
+                    TdsData.skipData(in, columns[rowScanned]);
+                    rowScanned++;
+                }
+                readColumnData(col);
+                rowScanned++;
+            }
+
+            columnRead[col] = true;
+
+            if (++rowRead == columns.length) {
+                // Nothing left to go back for
+                in.releaseRow();
+                rowPending = false;
+            }
+        } catch (IOException e) {
+            connection.setClosed();
+
+            throw Support.linkException(
+                new SQLException(
+                       Messages.get(
+                                "error.generic.ioerror", e.getMessage()),
+                                    "08S01"), e);
+        } catch (ProtocolException e) {
+            connection.setClosed();
+
+            throw Support.linkException(
+                new SQLException(
+                       Messages.get(
+                                "error.generic.tdserror", e.getMessage()),
+                                    "08S01"), e);
+        }
+    }
+
+    /**
+     * Read the next column of the current lazy row as text, straight into a
+     * column text buffer.
+     * <p/>
+     * The column is not marked as read, so if it is asked for again by
+     * {@link #readColumn} it is read from the retained packets as an object.
+     * Values that cannot be decoded as text are read as objects, for the
+     * caller to convert.
+     *
+     * @param col  the zero based column index
+     * @param text the buffer to decode the value into
+     * @return <code>true</code> if the value is in the buffer;
+     *         <code>false</code> if it has been read as an object, or the
+     *         column is not the next one of a lazy row
+     * @throws SQLException if an I/O or protocol error occurs
+     */
+    boolean readColumnText(int col, ColumnText text) throws SQLException {
+        if (!rowPending || col != rowScanned || columnRead[col]) {
+            return false;
+        }
+
+        try {
+            columnPositions[col] = in.getPosition();
+            Object value = TdsData.readText(connection, in, columns[col], text);
+            rowScanned++;
+
+            if (value == null) {
+                return true;
+            }
+
+            rowData[col] = value;
+            columnRead[col] = true;
+            rowRead++;
+
+            return false;
+        } catch (IOException e) {
+            connection.setClosed();
+
+            throw Support.linkException(
+                new SQLException(
+                       Messages.get(
+                                "error.generic.ioerror", e.getMessage()),
+                                    "08S01"), e);
+        } catch (ProtocolException e) {
+            connection.setClosed();
+
+            throw Support.linkException(
+                new SQLException(
+                       Messages.get(
+                                "error.generic.tdserror", e.getMessage()),
+                                    "08S01"), e);
+        }
+    }
+
+    /**
+     * Read all the columns of the current lazy row that have not been read.
+     *
+     * @throws SQLException if an I/O or protocol error occurs
+     */
+    void readRow() throws SQLException {
+        if (rowPending) {
+            for (int i = 0; i < columns.length && rowPending; i++) {
+                readColumn(i);
+            }
+        }
+    }
+
+    /**
+     * Read a column of the current lazy row at the current stream position.
+     *
+     * @param col the zero based column index
+     * @throws IOException
+     * @throws ProtocolException
+     */
+    private void readColumnData(int col) throws IOException, ProtocolException {
+        if (rowBuffer != null && rowBuffer.columns == columns
+                && rowBuffer.isPrimitive(col)) {
+            rowData[col] = TdsData.readPrimitive(in, columns[col], rowBuffer, col);
+        } else {
+            rowData[col] = TdsData.readData(connection, in, columns[col]);
+        }
+    }
+
+    /**
+     * Skip the columns of the current lazy row that have not been read, so
+     * the next token can be read.
+     *
+     * @throws IOException
+     * @throws ProtocolException
+     */
+    private void skipRow() throws IOException, ProtocolException {
+        if (rowPending) {
+            while (rowScanned < columns.length) {
+                TdsData.skipData(in, columns[rowScanned]);
+                rowScanned++;
+            }
+            in.releaseRow();
+            rowPending = false;
+        }
+    }
+
+    /**
+     * Read the fixed size numeric and date columns of the following rows of
+     * the current result set into a row buffer instead of creating objects.
+     * <p/>
+     * Only the columns of the current result set are read this way; rows of
+     * any later result set are read as objects again.
+     *
+     * @return the row buffer, or <code>null</code> if there is no current
+     *         result set or it has no fixed size columns
+     */
+    RowBuffer usePrimitiveRows() {
+        if (columns == null) {
+            return null;
+        }
+
+        RowBuffer buffer = new RowBuffer(columns);
+
+        if (!buffer.hasPrimitives()) {
+            return null;
+        }
+
+        rowBuffer = buffer;
+
+        return rowBuffer;
+    }
+
+    /**
+     * Stop reading lazy rows and reading columns into the row buffer,
+     * creating objects for any columns of the current row that are still
+     * held as primitives.
+     * <p/>
+     * Any columns of the current row that have not been read are skipped
+     * when the next token is read.
+     */
+    void useObjectRows() {
+        lazyColumns = null;
+
+        if (rowBuffer != null) {
+            if (rowBuffer.columns == columns && rowData != null) {
+                rowBuffer.toObjects(rowData);
+            }
+
+            rowBuffer = null;
+        }
+    }
+
     /**
      * Negotiate SSL settings with SQL 2000+ server.
      * <p/>
@@ -784,6 +1058,7 @@ public class TdsCore {
         byte x;
 
         checkOpen();
+        readRow();
 
         try {
             x = (endOfResponse) ? TDS_DONE_TOKEN : (byte) in.peek();
@@ -2199,6 +2474,7 @@ public class TdsCore {
             return;
         }
         try {
+            skipRow();
             currentToken.token = (byte)in.read();
             switch (currentToken.token) {
                 case TDS5_PARAMFMT2_TOKEN:
@@ -2319,6 +2595,7 @@ public class TdsCore {
         } catch (OutOfMemoryError err) {
             // Consume the rest of the response
             in.skipToEnd();
+            rowPending = false;
             endOfResponse = true;
             endOfResults = true;
             cancelPending = false;
@@ -2999,8 +3276,32 @@ public class TdsCore {
      * @throws ProtocolException
      */
     private void tdsRowToken() throws IOException, ProtocolException {
-        for (int i = 0; i < columns.length; i++) {
-            rowData[i] =  TdsData.readData(connection, in, columns[i]);
+        if (lazyColumns != null && lazyColumns == columns) {
+            // Leave the columns to be read when they are asked for
+            boolean buffered = rowBuffer != null && rowBuffer.columns == columns;
+            for (int i = 0; i < columns.length; i++) {
+                rowData[i] = null;
+                columnRead[i] = false;
+                if (buffered) {
+                    rowBuffer.clear(i);
+                }
+            }
+            in.markRow();
+            rowScanned = 0;
+            rowRead = 0;
+            rowPending = true;
+        } else if (rowBuffer != null && rowBuffer.columns == columns) {
+            for (int i = 0; i < columns.length; i++) {
+                if (rowBuffer.isPrimitive(i)) {
+                    rowData[i] = TdsData.readPrimitive(in, columns[i], rowBuffer, i);
+                } else {
+                    rowData[i] = TdsData.readData(connection, in, columns[i]);
+                }
+            }
+        } else {
+            for (int i = 0; i < columns.length; i++) {
+                rowData[i] =  TdsData.readData(connection, in, columns[i]);
+            }
         }
 
         endOfResults = false;
@@ -3949,6 +4250,9 @@ public class TdsCore {
             // Clean up result data and meta data
             columns = null;
             rowData = null;
+            rowBuffer = null;
+            lazyColumns = null;
+            rowPending = false;
             tables = null;
             // Clean up warnings; any exceptions will be cleared when thrown
             messages.clearWarnings();
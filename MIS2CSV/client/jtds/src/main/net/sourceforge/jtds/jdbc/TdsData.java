@@ -1118,6 +1118,575 @@ public class TdsData {
         return null;
     }
 
+    /**
+     * Determine whether a column can be read by {@link #readPrimitive}.
+     *
+     * @param ci the column meta data
+     * @return <code>true</code> if the column is a fixed size integer, bit,
+     *         floating point, money or datetime column
+     */
+    static boolean isPrimitive(ColInfo ci) {
+        switch (ci.tdsType) {
+            case SYBINTN:
+            case SYBUINTN:
+            case SYBINT1:
+            case SYBINT2:
+            case SYBINT4:
+            case SYBINT8:
+            case SYBSINT8:
+            case SYBUINT2:
+            case SYBUINT4:
+            case SYBBIT:
+            case SYBBITN:
+            case SYBREAL:
+            case SYBFLT8:
+            case SYBFLTN:
+            case SYBMONEY4:
+            case SYBMONEY:
+            case SYBMONEYN:
+            case SYBDATETIME4:
+            case SYBDATETIMN:
+            case SYBDATETIME:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Read a fixed size column into a row buffer instead of creating an
+     * object for it.
+     * <p/>
+     * The column must be one for which {@link #isPrimitive} returns
+     * <code>true</code>. Exactly the same bytes are consumed as by
+     * {@link #readData}.
+     *
+     * @param in  the server response stream
+     * @param ci  the column descriptor
+     * @param row the row buffer to hold the value in
+     * @param col the zero based column index
+     * @return <code>null</code> if the value is null or held in the buffer,
+     *         otherwise the value as an object (unsigned bigint values, which
+     *         do not fit in a <code>long</code>)
+     * @throws IOException
+     * @throws ProtocolException
+     */
+    static Object readPrimitive(ResponseStream in, ColInfo ci, RowBuffer row, int col)
+            throws IOException, ProtocolException {
+        int len;
+
+        row.clear(col);
+
+        switch (ci.tdsType) {
+            case SYBINTN:
+                switch (in.read()) {
+                    case 1:
+                        row.setLong(col, RowBuffer.INT, in.read() & 0xFF);
+                        break;
+                    case 2:
+                        row.setLong(col, RowBuffer.INT, in.readShort());
+                        break;
+                    case 4:
+                        row.setLong(col, RowBuffer.INT, in.readInt());
+                        break;
+                    case 8:
+                        row.setLong(col, RowBuffer.LONG, in.readLong());
+                        break;
+                }
+
+                break;
+
+            case SYBUINTN:
+                switch (in.read()) {
+                    case 1:
+                        row.setLong(col, RowBuffer.INT, in.read() & 0xFF);
+                        break;
+                    case 2:
+                        row.setLong(col, RowBuffer.INT, (int)in.readShort() & 0xFFFF);
+                        break;
+                    case 4:
+                        row.setLong(col, RowBuffer.LONG, (long)in.readInt() & 0xFFFFFFFFL);
+                        break;
+                    case 8:
+                        return in.readUnsignedLong();
+                }
+
+                break;
+
+            case SYBINT1:
+                row.setLong(col, RowBuffer.INT, in.read() & 0xFF);
+                break;
+
+            case SYBINT2:
+                row.setLong(col, RowBuffer.INT, in.readShort());
+                break;
+
+            case SYBINT4:
+                row.setLong(col, RowBuffer.INT, in.readInt());
+                break;
+
+            case SYBINT8:
+            case SYBSINT8:
+                row.setLong(col, RowBuffer.LONG, in.readLong());
+                break;
+
+            case SYBUINT2:
+                row.setLong(col, RowBuffer.INT, (int)in.readShort() & 0xFFFF);
+                break;
+
+            case SYBUINT4:
+                row.setLong(col, RowBuffer.LONG, (long)in.readInt() & 0xFFFFFFFFL);
+                break;
+
+            case SYBBIT:
+                row.setLong(col, RowBuffer.BIT, (in.read() != 0) ? 1 : 0);
+                break;
+
+            case SYBBITN:
+                len = in.read();
+
+                if (len > 0) {
+                    row.setLong(col, RowBuffer.BIT, (in.read() != 0) ? 1 : 0);
+                }
+
+                break;
+
+            case SYBREAL:
+                row.setDouble(col, RowBuffer.REAL, Float.intBitsToFloat(in.readInt()));
+                break;
+
+            case SYBFLT8:
+                row.setDouble(col, RowBuffer.FLOAT, Double.longBitsToDouble(in.readLong()));
+                break;
+
+            case SYBFLTN:
+                len = in.read();
+
+                if (len == 4) {
+                    row.setDouble(col, RowBuffer.REAL, Float.intBitsToFloat(in.readInt()));
+                } else if (len == 8) {
+                    row.setDouble(col, RowBuffer.FLOAT, Double.longBitsToDouble(in.readLong()));
+                }
+
+                break;
+
+            case SYBMONEY4:
+            case SYBMONEY:
+            case SYBMONEYN:
+                if (ci.tdsType == SYBMONEY) {
+                    len = 8;
+                } else if (ci.tdsType == SYBMONEYN) {
+                    len = in.read();
+                } else {
+                    len = 4;
+                }
+
+                if (len == 4) {
+                    row.setLong(col, RowBuffer.MONEY, in.readInt());
+                } else if (len == 8) {
+                    // The high order 32 bits are sent first
+                    long high = in.readInt();
+                    long low = in.readInt() & 0xFFFFFFFFL;
+                    row.setLong(col, RowBuffer.MONEY, (high << 32) | low);
+                } else if (len != 0) {
+                    throw new ProtocolException("Invalid money value.");
+                }
+
+                break;
+
+            case SYBDATETIME4:
+            case SYBDATETIMN:
+            case SYBDATETIME:
+                if (ci.tdsType == SYBDATETIMN) {
+                    len = in.read();
+                } else if (ci.tdsType == SYBDATETIME4) {
+                    len = 4;
+                } else {
+                    len = 8;
+                }
+
+                if (len == 8) {
+                    long days = in.readInt();
+                    long time = in.readInt() & 0xFFFFFFFFL;
+                    row.setLong(col, RowBuffer.DATETIME, (days << 32) | time);
+                } else if (len == 4) {
+                    long days = ((int) in.readShort()) & 0xFFFF;
+                    long minutes = in.readShort() & 0xFFFFFFFFL;
+                    row.setLong(col, RowBuffer.SMALLDATETIME, (days << 32) | minutes);
+                } else if (len != 0) {
+                    throw new ProtocolException("Invalid DATETIME value with size of "
+                                                + len + " bytes.");
+                }
+
+                break;
+
+            default:
+                throw new ProtocolException("Unsupported primitive TDS data type 0x"
+                        + Integer.toHexString(ci.tdsType & 0xFF));
+        }
+
+        return null;
+    }
+
+    /**
+     * Determine whether a column can be passed over by {@link #skipData}.
+     * <p/>
+     * Text and image columns cannot, as they may be too large to keep in
+     * memory until they are asked for.
+     *
+     * @param ci the column meta data
+     * @return <code>true</code> if the column is not a text or image column
+     */
+    static boolean isSkippable(ColInfo ci) {
+        switch (ci.tdsType) {
+            case SYBIMAGE:
+            case SYBTEXT:
+            case SYBNTEXT:
+            case SYBUNITEXT:
+                return false;
+
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Pass over a column in the server response without decoding it.
+     * <p/>
+     * The column must be one for which {@link #isSkippable} returns
+     * <code>true</code>. Exactly the same bytes are consumed as by
+     * {@link #readData}.
+     *
+     * @param in the server response stream
+     * @param ci the column descriptor
+     * @throws IOException
+     * @throws ProtocolException
+     */
+    static void skipData(ResponseStream in, ColInfo ci)
+            throws IOException, ProtocolException {
+        int len;
+
+        switch (ci.tdsType) {
+            case SYBINT1:
+            case SYBBIT:
+                in.skip(1);
+                break;
+
+            case SYBINT2:
+            case SYBUINT2:
+                in.skip(2);
+                break;
+
+            case SYBINT4:
+            case SYBUINT4:
+            case SYBREAL:
+            case SYBMONEY4:
+            case SYBDATETIME4:
+            case SYBDATE:
+            case SYBTIME:
+                in.skip(4);
+                break;
+
+            case SYBINT8:
+            case SYBSINT8:
+            case SYBUINT8:
+            case SYBFLT8:
+            case SYBMONEY:
+            case SYBDATETIME:
+                in.skip(8);
+                break;
+
+            case SYBINTN:
+            case SYBUINTN:
+            case SYBBITN:
+            case SYBFLTN:
+            case SYBMONEYN:
+            case SYBDATETIMN:
+            case SYBDATEN:
+            case SYBTIMEN:
+            case SYBUNIQUE:
+            case SYBNUMERIC:
+            case SYBDECIMAL:
+            case SYBCHAR:
+            case SYBVARCHAR:
+            case SYBNVARCHAR:
+            case SYBVARBINARY:
+            case SYBBINARY:
+                in.skip(in.read());
+                break;
+
+            case XSYBCHAR:
+            case XSYBVARCHAR:
+                if (in.getTdsVersion() == Driver.TDS50) {
+                    // Sybase wide table String
+                    len = in.readInt();
+                    if (len > 0) {
+                        in.skip(len);
+                    }
+                    break;
+                }
+                // Fall through for TDS 7+ long strings
+
+            case XSYBNCHAR:
+            case XSYBNVARCHAR:
+            case XSYBVARBINARY:
+            case XSYBBINARY:
+                len = in.readShort();
+
+                if (len != -1) {
+                    in.skip(len);
+                }
+
+                break;
+
+            case SYBLONGBINARY:
+            case SYBVARIANT:
+                len = in.readInt();
+
+                if (len > 0) {
+                    in.skip(len);
+                }
+
+                break;
+
+            default:
+                throw new ProtocolException("Unsupported TDS data type 0x"
+                        + Integer.toHexString(ci.tdsType & 0xFF));
+        }
+    }
+
+    /**
+     * Read a column as the text <code>ResultSet.getString</code> would return
+     * for it, decoding integer, bit, money, decimal, datetime and string
+     * values straight from the server response into a column text buffer.
+     * <p/>
+     * Other values are read by {@link #readData} and returned for the caller
+     * to convert. Exactly the same bytes are consumed as by
+     * {@link #readData}.
+     *
+     * @param connection the connection the column is read for
+     * @param in   the server response stream
+     * @param ci   the column descriptor
+     * @param text the buffer to decode the value into
+     * @return <code>null</code> if the value, which may be null, is in the
+     *         buffer, otherwise the value as an object
+     * @throws IOException
+     * @throws ProtocolException
+     */
+    static Object readText(ConnectionJDBC2 connection, ResponseStream in,
+                           ColInfo ci, ColumnText text)
+            throws IOException, ProtocolException {
+        int len;
+
+        text.setNull();
+
+        switch (ci.tdsType) {
+            case SYBINTN:
+                switch (in.read()) {
+                    case 1:
+                        text.setLong(in.read() & 0xFF);
+                        break;
+                    case 2:
+                        text.setLong(in.readShort());
+                        break;
+                    case 4:
+                        text.setLong(in.readInt());
+                        break;
+                    case 8:
+                        text.setLong(in.readLong());
+                        break;
+                }
+
+                break;
+
+            case SYBINT1:
+                text.setLong(in.read() & 0xFF);
+                break;
+
+            case SYBINT2:
+                text.setLong(in.readShort());
+                break;
+
+            case SYBINT4:
+                text.setLong(in.readInt());
+                break;
+
+            case SYBINT8:
+            case SYBSINT8:
+                text.setLong(in.readLong());
+                break;
+
+            case SYBUINT2:
+                text.setLong((int)in.readShort() & 0xFFFF);
+                break;
+
+            case SYBUINT4:
+                text.setLong((long)in.readInt() & 0xFFFFFFFFL);
+                break;
+
+            case SYBBIT:
+                text.setBit(in.read() != 0);
+                break;
+
+            case SYBBITN:
+                len = in.read();
+
+                if (len > 0) {
+                    text.setBit(in.read() != 0);
+                }
+
+                break;
+
+            case SYBMONEY4:
+            case SYBMONEY:
+            case SYBMONEYN:
+                if (ci.tdsType == SYBMONEY) {
+                    len = 8;
+                } else if (ci.tdsType == SYBMONEYN) {
+                    len = in.read();
+                } else {
+                    len = 4;
+                }
+
+                if (len == 4) {
+                    text.setDecimal(in.readInt(), 4);
+                } else if (len == 8) {
+                    // The high order 32 bits are sent first
+                    long high = in.readInt();
+                    long low = in.readInt() & 0xFFFFFFFFL;
+                    text.setDecimal((high << 32) | low, 4);
+                } else if (len != 0) {
+                    throw new ProtocolException("Invalid money value.");
+                }
+
+                break;
+
+            case SYBDATETIME4:
+            case SYBDATETIMN:
+            case SYBDATETIME:
+                if (ci.tdsType == SYBDATETIMN) {
+                    len = in.read();
+                } else if (ci.tdsType == SYBDATETIME4) {
+                    len = 4;
+                } else {
+                    len = 8;
+                }
+
+                if (len == 8) {
+                    int days = in.readInt();
+                    text.setDateTime(days, in.readInt());
+                } else if (len == 4) {
+                    // As the smalldatetime constructor of DateTime converts it
+                    int days = ((int) in.readShort()) & 0xFFFF;
+                    text.setDateTime(days, (int) in.readShort() * 60 * 300);
+                } else if (len != 0) {
+                    throw new ProtocolException("Invalid DATETIME value with size of "
+                                                + len + " bytes.");
+                }
+
+                break;
+
+            case SYBNUMERIC:
+            case SYBDECIMAL:
+                len = in.read();
+
+                if (len > 0) {
+                    int sign = in.read();
+                    boolean sybase = in.getServerType() == Driver.SYBASE;
+                    byte[] bytes = text.getBytes(--len);
+
+                    // Hold the magnitude most significant byte first
+                    if (sybase) {
+                        for (int i = 0; i < len; i++) {
+                            bytes[i] = (byte) in.read();
+                        }
+                    } else {
+                        for (int i = len; i-- > 0;) {
+                            bytes[i] = (byte) in.read();
+                        }
+                    }
+
+                    boolean negative = sybase ? sign != 0 : sign == 0;
+
+                    if (len < 8 || (len == 8 && bytes[0] >= 0)) {
+                        long value = 0;
+
+                        for (int i = 0; i < len; i++) {
+                            value = (value << 8) | (bytes[i] & 0xFF);
+                        }
+
+                        if (text.setDecimal(negative ? -value : value, ci.scale)) {
+                            break;
+                        }
+                    }
+
+                    // Too large for a long, or formatted with an exponent
+                    byte[] magnitude = new byte[len];
+                    System.arraycopy(bytes, 0, magnitude, 0, len);
+
+                    return new BigDecimal(new BigInteger(negative ? -1 : 1, magnitude), ci.scale);
+                }
+
+                break;
+
+            case SYBNVARCHAR:
+                len = in.read();
+
+                if (len > 0) {
+                    len /= 2;
+                    in.read(text.reserve(len), 0, len);
+                }
+
+                break;
+
+            case XSYBNCHAR:
+            case XSYBNVARCHAR:
+                len = in.readShort();
+
+                if (len != -1) {
+                    len /= 2;
+                    in.read(text.reserve(len), 0, len);
+                }
+
+                break;
+
+            case XSYBCHAR:
+            case XSYBVARCHAR:
+                if (in.getTdsVersion() != Driver.TDS50) {
+                    // A TDS 7+ long string, decoded a byte at a time if the
+                    // charset allows it
+                    char[] byteChars = (ci.charsetInfo == null)
+                            ? connection.getCharsetInfo().getByteChars()
+                            : ci.charsetInfo.getByteChars();
+
+                    if (byteChars != null) {
+                        len = in.readShort();
+
+                        if (len != -1) {
+                            byte[] bytes = text.getBytes(len);
+                            in.read(bytes, 0, len);
+
+                            char[] chars = text.reserve(len);
+
+                            for (int i = 0; i < len; i++) {
+                                chars[i] = byteChars[bytes[i] & 0xFF];
+                            }
+                        }
+
+                        break;
+                    }
+                }
+
+                return readData(connection, in, ci);
+
+            default:
+                return readData(connection, in, ci);
+        }
+
+        return null;
+    }
+
     /**
      * Retrieve the signed status of the column.
      *
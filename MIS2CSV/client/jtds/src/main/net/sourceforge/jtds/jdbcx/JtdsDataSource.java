@@ -82,6 +82,7 @@ public class JtdsDataSource
     protected String bufferDir;
     protected String bufferMaxMemory;
     protected String bufferMinPackets;
+    protected String readAhead;
     protected String cacheMetaData;
     protected String useCursors;
     protected String useLOBs;
@@ -224,6 +225,7 @@ public class JtdsDataSource
         ref.add(new StringRefAddr(Messages.get(Driver.BUFFERDIR), bufferDir));
         ref.add(new StringRefAddr(Messages.get(Driver.BUFFERMAXMEMORY), bufferMaxMemory));
         ref.add(new StringRefAddr(Messages.get(Driver.BUFFERMINPACKETS), bufferMinPackets));
+        ref.add(new StringRefAddr(Messages.get(Driver.READAHEAD), readAhead));
         ref.add(new StringRefAddr(Messages.get(Driver.CACHEMETA), cacheMetaData));
         ref.add(new StringRefAddr(Messages.get(Driver.USECURSORS), useCursors));
         ref.add(new StringRefAddr(Messages.get(Driver.USELOBS), useLOBs));
@@ -585,6 +587,17 @@ public class JtdsDataSource
         this.bufferMinPackets = String.valueOf(bufferMinPackets);
     }
 
+    public int getReadAhead() {
+        if (readAhead == null) {
+            return 0;
+        }
+        return Integer.parseInt(readAhead);
+    }
+
+    public void setReadAhead(int readAhead) {
+        this.readAhead = String.valueOf(readAhead);
+    }
+
     public boolean getCacheMetaData() {
         return Boolean.valueOf(cacheMetaData).booleanValue();
     }
@@ -720,6 +733,9 @@ public class JtdsDataSource
         if (bufferMinPackets != null) {
             props.setProperty(Messages.get(Driver.BUFFERMINPACKETS), bufferMinPackets);
         }
+        if (readAhead != null) {
+            props.setProperty(Messages.get(Driver.READAHEAD), readAhead);
+        }
         if (cacheMetaData != null) {
             props.setProperty(Messages.get(Driver.CACHEMETA), cacheMetaData);
         }
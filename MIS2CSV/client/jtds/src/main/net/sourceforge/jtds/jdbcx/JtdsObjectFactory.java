@@ -130,6 +130,10 @@ public class JtdsObjectFactory implements ObjectFactory {
             if (bufferMinPackets != null) {
                 ds.setBufferMinPackets(Integer.parseInt((String) bufferMinPackets));
             }
+            final Object readAhead = ref.get(Messages.get(Driver.READAHEAD)).getContent();
+            if (readAhead != null) {
+                ds.setReadAhead(Integer.parseInt((String) readAhead));
+            }
             final Object cacheMetaData = ref.get(Messages.get(Driver.CACHEMETA)).getContent();
             if (cacheMetaData != null) {
                 ds.setCacheMetaData("true".equals(cacheMetaData));
@@ -0,0 +1,146 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Unit tests for the <code>ColumnText</code> class, which formats column
+ * values into a reused character buffer. Every value must be formatted as
+ * <code>toString()</code> of the object the column would otherwise have
+ * been read as.
+ */
+public class ColumnTextUnitTest extends UnitTestBase {
+    /** The column text under test. */
+    private Object text;
+
+    public ColumnTextUnitTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        text = invokeConstructor(Class.forName("net.sourceforge.jtds.jdbc.ColumnText"),
+                new Class[0], new Object[0]);
+    }
+
+    public void testLong() {
+        long[] values = {0, 1, -1, 9, -10, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE};
+
+        for (int i = 0; i < values.length; i++) {
+            call("setLong", long.class, new Long(values[i]));
+            assertEquals(Long.toString(values[i]), getText());
+        }
+    }
+
+    public void testBit() {
+        call("setBit", boolean.class, Boolean.TRUE);
+        assertEquals("1", getText());
+        call("setBit", boolean.class, Boolean.FALSE);
+        assertEquals("0", getText());
+    }
+
+    public void testString() {
+        call("setString", String.class, "abc");
+        assertEquals("abc", getText());
+
+        StringBuffer buf = new StringBuffer();
+
+        for (int i = 0; i < 1000; i++) {
+            buf.append((char) ('a' + i % 26));
+        }
+
+        call("setString", String.class, buf.toString());
+        assertEquals(buf.toString(), getText());
+
+        call("setString", String.class, null);
+        assertNull(getText());
+
+        call("setString", String.class, "");
+        assertEquals("", getText());
+
+        invokeInstanceMethod(text, "setNull", new Class[0], new Object[0]);
+        assertNull(getText());
+    }
+
+    /**
+     * Decimals are formatted as <code>BigDecimal.toString</code> formats
+     * them, or refused where that would use an exponent.
+     */
+    public void testDecimal() {
+        long[] values = {0, 1, -1, 5, -50, 123, 1000000, -987654321,
+                999999999999999999L, Long.MAX_VALUE, Long.MIN_VALUE};
+
+        for (int i = 0; i < values.length; i++) {
+            for (int scale = 0; scale <= 38; scale++) {
+                String expected = new BigDecimal(BigInteger.valueOf(values[i]), scale).toString();
+                boolean set = ((Boolean) invokeInstanceMethod(text, "setDecimal",
+                        new Class[]{long.class, int.class},
+                        new Object[]{new Long(values[i]), new Integer(scale)})).booleanValue();
+                String message = values[i] + " scale " + scale;
+
+                assertEquals(message, expected.indexOf('E') < 0, set);
+
+                if (set) {
+                    assertEquals(message, expected, getText());
+                }
+            }
+        }
+    }
+
+    /**
+     * Datetimes are formatted as <code>DateTime.toString</code> formats them,
+     * across the whole datetime range and the whole of a day.
+     */
+    public void testDateTime() throws Exception {
+        Class dateTime = Class.forName("net.sourceforge.jtds.jdbc.DateTime");
+        int[] dates = {-53690, -1, 0, 1, 36524, 39963, 40000, 2958463};
+        int[] times = {0, 1, 2, 299, 300, 18000, 1080000, 12960000, 25919999};
+
+        for (int i = 0; i < dates.length; i++) {
+            for (int j = 0; j < times.length; j++) {
+                Object[] args = {new Integer(dates[i]), new Integer(times[j])};
+                Class[] types = {int.class, int.class};
+                String expected = invokeConstructor(dateTime, types, args).toString();
+
+                invokeInstanceMethod(text, "setDateTime", types, args);
+                assertEquals(expected, getText());
+            }
+        }
+    }
+
+    /**
+     * Retrieve the formatted value.
+     *
+     * @return the value or <code>null</code> if it is null
+     */
+    private String getText() {
+        int length = ((Integer) invokeGetInstanceField(text, "length")).intValue();
+
+        if (length < 0) {
+            return null;
+        }
+
+        return new String((char[]) invokeGetInstanceField(text, "chars"), 0, length);
+    }
+
+    private void call(String method, Class type, Object arg) {
+        invokeInstanceMethod(text, method, new Class[]{type}, new Object[]{arg});
+    }
+}
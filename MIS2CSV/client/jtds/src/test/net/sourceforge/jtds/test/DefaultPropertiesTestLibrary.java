@@ -377,6 +377,19 @@ public abstract class DefaultPropertiesTestLibrary extends TestCase {
         }
     }
 
+    /**
+     * Test the <code>readAhead</code> property.
+     */
+    public void test_readAhead() {
+        String fieldName = "readAhead";
+        String messageKey = Driver.READAHEAD;
+        String expectedValue = DefaultProperties.READ_AHEAD;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
     /**
      * Test the <code>cacheMetaData</code> property.
      */
@@ -0,0 +1,280 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.test;
+
+import java.sql.*;
+import java.util.ArrayList;
+
+/**
+ * Tests the columns of forward only, read only result sets, which are only
+ * read from the server when they are asked for.
+ * <p/>
+ * Every test reads the rows of a lazy result set in a different order and
+ * compares them with the same rows read one column after another, in the
+ * order the server sends them.
+ */
+public class LazyRowTest extends DatabaseTestCase {
+    /** The number of rows in the test table. */
+    private static final int ROWS = 150;
+    /** The query that returns the test table. */
+    private static final String SELECT = "SELECT * FROM #lazy ORDER BY id";
+
+    /** The rows read in column order, as strings. */
+    private String[][] expectedStrings;
+    /** The rows read in column order, as objects. */
+    private Object[][] expectedObjects;
+
+    public LazyRowTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        Statement stmt = con.createStatement();
+        stmt.execute("CREATE TABLE #lazy (id INT PRIMARY KEY, i2 SMALLINT NOT NULL,"
+                + " big BIGINT NULL, flag BIT NULL, f8 FLOAT NULL, f4 REAL NULL,"
+                + " cash MONEY NULL, dt DATETIME NULL, sdt SMALLDATETIME NULL,"
+                + " name NVARCHAR(4000) NULL, code VARCHAR(50) NULL,"
+                + " amount DECIMAL(18,2) NULL)");
+
+        // Every tenth row has a name longer than a network packet
+        stmt.execute("DECLARE @i INT SET @i = 0 WHILE @i < " + ROWS + " BEGIN"
+                + " INSERT INTO #lazy VALUES (@i, @i * 7 % 30000 - 15000,"
+                + " CASE WHEN @i % 11 = 0 THEN NULL ELSE CAST(@i AS BIGINT) * 1000003 - 5000000000 END,"
+                + " CASE WHEN @i % 13 = 0 THEN NULL ELSE @i % 2 END,"
+                + " CASE WHEN @i % 17 = 0 THEN NULL ELSE @i * 1.25 - 3.3 END,"
+                + " @i * 0.5 + 0.1,"
+                + " CASE WHEN @i % 19 = 0 THEN NULL ELSE @i * 1.2345 - 0.0999 END,"
+                + " DATEADD(ms, @i * 1003, '2009-06-01'),"
+                + " DATEADD(mi, @i, '2009-06-01'),"
+                + " CASE WHEN @i % 23 = 0 THEN NULL WHEN @i % 10 = 1 THEN REPLICATE(N'x', 3000)"
+                + " ELSE N'name ' + CAST(@i AS NVARCHAR) END,"
+                + " 'code-' + CAST(@i AS VARCHAR),"
+                + " CASE WHEN @i % 31 = 0 THEN NULL ELSE @i + 0.05 END)"
+                + " SET @i = @i + 1 END");
+
+        ResultSet rs = stmt.executeQuery(SELECT);
+        int cols = rs.getMetaData().getColumnCount();
+        ArrayList strings = new ArrayList();
+        ArrayList objects = new ArrayList();
+
+        while (rs.next()) {
+            String[] s = new String[cols];
+            Object[] o = new Object[cols];
+
+            for (int i = 0; i < cols; i++) {
+                o[i] = rs.getObject(i + 1);
+                s[i] = rs.getString(i + 1);
+            }
+
+            strings.add(s);
+            objects.add(o);
+        }
+
+        stmt.close();
+
+        expectedStrings = (String[][]) strings.toArray(new String[0][]);
+        expectedObjects = (Object[][]) objects.toArray(new Object[0][]);
+
+        assertEquals(ROWS, expectedStrings.length);
+    }
+
+    /**
+     * Columns read last to first, so every column but the last is passed over
+     * and then read by going back for it.
+     */
+    public void testOutOfOrderReads() throws Exception {
+        Statement stmt = con.createStatement();
+        ResultSet rs = stmt.executeQuery(SELECT);
+        int row = 0;
+
+        while (rs.next()) {
+            for (int col = expectedStrings[row].length; col >= 1; col--) {
+                assertColumn(rs, row, col);
+            }
+
+            row++;
+        }
+
+        assertEquals(ROWS, row);
+        stmt.close();
+    }
+
+    /**
+     * Some columns of some rows read, and the same column read twice, so
+     * columns and rows that are never asked for are skipped.
+     */
+    public void testSparseReads() throws Exception {
+        Statement stmt = con.createStatement();
+        ResultSet rs = stmt.executeQuery(SELECT);
+        int cols = expectedStrings[0].length;
+        int row = 0;
+
+        while (rs.next()) {
+            if (row % 3 != 2) {
+                for (int col = 1 + row % 4; col <= cols; col += 4) {
+                    assertColumn(rs, row, col);
+                }
+
+                assertColumn(rs, row, 1 + row % 4);
+            }
+
+            row++;
+        }
+
+        assertEquals(ROWS, row);
+        stmt.close();
+    }
+
+    /**
+     * Rows whose name is longer than a network packet, read from the columns
+     * after the name back to the columns before it, so reading goes back
+     * across packets.
+     */
+    public void testRowsSpanningPackets() throws Exception {
+        Statement stmt = con.createStatement();
+        ResultSet rs = stmt.executeQuery(SELECT);
+        int name = rs.findColumn("name");
+        int cols = expectedStrings[0].length;
+        int spanning = 0;
+        int row = 0;
+
+        while (rs.next()) {
+            if (expectedStrings[row][name - 1] != null
+                    && expectedStrings[row][name - 1].length() > 2048) {
+                assertColumn(rs, row, cols);
+                assertColumn(rs, row, 1);
+                assertColumn(rs, row, name);
+                assertColumn(rs, row, name - 1);
+                spanning++;
+            } else {
+                assertColumn(rs, row, name);
+            }
+
+            row++;
+        }
+
+        assertEquals(ROWS, row);
+        assertTrue(spanning > 0);
+        stmt.close();
+    }
+
+    /**
+     * <code>isLast()</code> reads the next token, so the columns of the
+     * current row must all have been read first.
+     */
+    public void testIsLast() throws Exception {
+        Statement stmt = con.createStatement();
+        ResultSet rs = stmt.executeQuery(SELECT);
+        int row = 0;
+
+        while (rs.next()) {
+            assertColumn(rs, row, 2);
+            assertEquals(row == ROWS - 1, rs.isLast());
+
+            for (int col = expectedStrings[row].length; col >= 1; col--) {
+                assertColumn(rs, row, col);
+            }
+
+            row++;
+        }
+
+        assertEquals(ROWS, row);
+        stmt.close();
+    }
+
+    /**
+     * A result set kept open by <code>getMoreResults(KEEP_CURRENT_RESULT)</code>
+     * is cached, part way through a row.
+     */
+    public void testKeepCurrentResult() throws Exception {
+        Statement stmt = con.createStatement();
+        assertTrue(stmt.execute(SELECT + " SELECT COUNT(*) FROM #lazy"));
+
+        ResultSet rs = stmt.getResultSet();
+        assertTrue(rs.next());
+        assertColumn(rs, 0, 3);
+
+        assertTrue(stmt.getMoreResults(Statement.KEEP_CURRENT_RESULT));
+        ResultSet count = stmt.getResultSet();
+        assertTrue(count.next());
+        assertEquals(ROWS, count.getInt(1));
+        count.close();
+
+        int row = 0;
+
+        do {
+            for (int col = expectedStrings[row].length; col >= 1; col--) {
+                assertColumn(rs, row, col);
+            }
+
+            row++;
+        } while (rs.next());
+
+        assertEquals(ROWS, row);
+        stmt.close();
+    }
+
+    /**
+     * A second statement run part way through a row, so the rest of the
+     * result set is queued while the row is being read.
+     */
+    public void testInterleavedStatement() throws Exception {
+        Statement stmt = con.createStatement();
+        Statement stmt2 = con.createStatement();
+        ResultSet rs = stmt.executeQuery(SELECT);
+        int row = 0;
+
+        while (rs.next()) {
+            assertColumn(rs, row, 4);
+
+            if (row % 50 == 1) {
+                ResultSet rs2 = stmt2.executeQuery("SELECT COUNT(*) FROM #lazy");
+                assertTrue(rs2.next());
+                assertEquals(ROWS, rs2.getInt(1));
+                rs2.close();
+            }
+
+            for (int col = 1; col <= expectedStrings[row].length; col++) {
+                assertColumn(rs, row, col);
+            }
+
+            row++;
+        }
+
+        assertEquals(ROWS, row);
+        stmt2.close();
+        stmt.close();
+    }
+
+    /**
+     * Check a column of the current row against the row read in column order.
+     */
+    private void assertColumn(ResultSet rs, int row, int col) throws SQLException {
+        String message = "row " + row + " column " + col;
+
+        assertEquals(message, expectedStrings[row][col - 1], rs.getString(col));
+        assertEquals(message, expectedObjects[row][col - 1], rs.getObject(col));
+        assertEquals(message, expectedObjects[row][col - 1] == null, rs.wasNull());
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(LazyRowTest.class);
+    }
+}
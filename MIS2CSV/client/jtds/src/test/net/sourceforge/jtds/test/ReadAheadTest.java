@@ -0,0 +1,300 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.test;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Properties;
+
+import net.sourceforge.jtds.jdbc.Driver;
+import net.sourceforge.jtds.jdbc.Messages;
+
+/**
+ * Tests the <code>readAhead</code> property, which reads server responses
+ * ahead of the caller on a separate thread.
+ * <p/>
+ * Results read through a read ahead connection are compared with the same
+ * results read through the default connection, which reads packets only
+ * when they are needed.
+ */
+public class ReadAheadTest extends DatabaseTestCase {
+    /** The number of rows in the test table, enough for many packets. */
+    private static final int ROWS = 2000;
+    /** The query that returns the test table. */
+    private static final String SELECT = "SELECT * FROM #readahead ORDER BY id";
+    /** The name of the read ahead thread. */
+    private static final String THREAD_NAME = "jTDS ReadAheadThread";
+
+    /** A connection reading 4 packets ahead. */
+    private Connection readAheadCon;
+    /** The test table read through the default connection. */
+    private String[][] expected;
+
+    public ReadAheadTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        readAheadCon = getReadAheadConnection();
+        createTable(con);
+        createTable(readAheadCon);
+
+        Statement stmt = con.createStatement();
+        expected = readRows(stmt.executeQuery(SELECT), ROWS);
+        stmt.close();
+
+        assertEquals(ROWS, expected.length);
+    }
+
+    public void tearDown() throws Exception {
+        if (readAheadCon != null) {
+            readAheadCon.close();
+            readAheadCon = null;
+        }
+
+        super.tearDown();
+    }
+
+    /**
+     * Other statements run while a result is being read, so the packets read
+     * ahead for it are queued for the statement that owns them.
+     */
+    public void testInterleavedStatements() throws Exception {
+        Statement stmt = readAheadCon.createStatement();
+        Statement stmt2 = readAheadCon.createStatement();
+        Statement stmt3 = readAheadCon.createStatement();
+        ResultSet rs = stmt.executeQuery(SELECT);
+        int cols = expected[0].length;
+        int row = 0;
+
+        while (rs.next()) {
+            if (row % 250 == 3) {
+                ResultSet rs2 = stmt2.executeQuery("SELECT COUNT(*) FROM #readahead");
+                assertTrue(rs2.next());
+                assertEquals(ROWS, rs2.getInt(1));
+                assertFalse(rs2.next());
+                rs2.close();
+
+                // Part of a second copy of the table, left unread
+                ResultSet rs3 = stmt3.executeQuery(SELECT);
+                assertEquals(expected, readRows(rs3, 10), 0);
+                rs3.close();
+            }
+
+            for (int col = 1; col <= cols; col++) {
+                assertEquals("row " + row + " column " + col,
+                        expected[row][col - 1], rs.getString(col));
+            }
+
+            row++;
+        }
+
+        assertEquals(ROWS, row);
+        stmt3.close();
+        stmt2.close();
+        stmt.close();
+    }
+
+    /**
+     * A statement cancelled part way through a result, while packets of it
+     * are being read ahead, leaves the connection usable.
+     */
+    public void testCancel() throws Exception {
+        Statement stmt = readAheadCon.createStatement();
+        ResultSet rs = stmt.executeQuery(SELECT);
+        assertEquals(expected, readRows(rs, 5), 0);
+
+        stmt.cancel();
+
+        try {
+            while (rs.next()) {
+                // The rest of the response, up to the cancel
+            }
+        } catch (SQLException e) {
+            // The statement was cancelled
+        }
+
+        stmt.close();
+
+        stmt = readAheadCon.createStatement();
+        String[][] rows = readRows(stmt.executeQuery(SELECT), ROWS);
+        assertEquals(ROWS, rows.length);
+        assertEquals(expected, rows, 0);
+        stmt.close();
+    }
+
+    /**
+     * A connection closed while the read ahead thread is waiting on the
+     * network or on a full queue stops the thread.
+     */
+    public void testCloseDuringReadAhead() throws Exception {
+        Thread[] before = getReadAheadThreads();
+        Connection con2 = getReadAheadConnection();
+        createTable(con2);
+
+        Thread[] after = getReadAheadThreads();
+        Thread thread = null;
+
+        for (int i = 0; i < after.length && thread == null; i++) {
+            thread = after[i];
+
+            for (int j = 0; j < before.length; j++) {
+                if (before[j] == after[i]) {
+                    thread = null;
+                }
+            }
+        }
+
+        assertNotNull("no read ahead thread", thread);
+
+        Statement stmt = con2.createStatement();
+        ResultSet rs = stmt.executeQuery(SELECT);
+        assertTrue(rs.next());
+
+        con2.close();
+
+        thread.join(10000);
+        assertFalse(thread.isAlive());
+
+        try {
+            while (rs.next()) {
+                // Rows already read before the close
+            }
+
+            fail("Expecting an exception reading from a closed connection");
+        } catch (SQLException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * A statement closed while the rest of its result is queued, because
+     * another statement was run, releases the memory the queued packets used.
+     */
+    public void testQueuedPacketsReleasedOnClose() throws Exception {
+        Connection[] cons = {con, readAheadCon};
+
+        for (int i = 0; i < cons.length; i++) {
+            Statement stmt = cons[i].createStatement();
+            Statement stmt2 = cons[i].createStatement();
+            ResultSet rs = stmt.executeQuery(SELECT);
+            assertEquals(expected, readRows(rs, 10), 0);
+
+            ResultSet rs2 = stmt2.executeQuery("SELECT COUNT(*) FROM #readahead");
+            assertTrue(rs2.next());
+            assertEquals(ROWS, rs2.getInt(1));
+            rs2.close();
+
+            assertTrue(getMemUsage() > 0);
+
+            stmt.close();
+            stmt2.close();
+            assertEquals(0, getMemUsage());
+        }
+    }
+
+    /**
+     * Get the buffer memory used by the queued packets of all connections.
+     */
+    private static int getMemUsage() throws Exception {
+        Class klass = Class.forName("net.sourceforge.jtds.jdbc.SharedSocket");
+
+        return ((Integer) UnitTestBase.invokeStaticMethod(
+                klass, "getMemUsage", new Class[0], new Object[0])).intValue();
+    }
+
+    /**
+     * Check rows read from a result against the expected rows.
+     */
+    private static void assertEquals(String[][] expected, String[][] rows, int first) {
+        for (int i = 0; i < rows.length; i++) {
+            for (int j = 0; j < rows[i].length; j++) {
+                assertEquals("row " + (first + i) + " column " + (j + 1),
+                        expected[first + i][j], rows[i][j]);
+            }
+        }
+    }
+
+    /**
+     * Read rows of a result as strings.
+     *
+     * @param rs   the result set
+     * @param rows the maximum number of rows to read
+     * @return the rows read
+     */
+    private static String[][] readRows(ResultSet rs, int rows) throws SQLException {
+        int cols = rs.getMetaData().getColumnCount();
+        ArrayList list = new ArrayList();
+
+        while (list.size() < rows && rs.next()) {
+            String[] row = new String[cols];
+
+            for (int i = 0; i < cols; i++) {
+                row[i] = rs.getString(i + 1);
+            }
+
+            list.add(row);
+        }
+
+        return (String[][]) list.toArray(new String[0][]);
+    }
+
+    private Connection getReadAheadConnection() throws Exception {
+        Properties override = new Properties();
+        override.setProperty(Messages.get(Driver.READAHEAD), "4");
+
+        return getConnection(override);
+    }
+
+    private static void createTable(Connection con) throws SQLException {
+        Statement stmt = con.createStatement();
+        stmt.execute("CREATE TABLE #readahead (id INT PRIMARY KEY,"
+                + " name VARCHAR(255) NOT NULL, amount DECIMAL(18,2) NULL,"
+                + " dt DATETIME NOT NULL)");
+        stmt.execute("DECLARE @i INT SET @i = 0 WHILE @i < " + ROWS + " BEGIN"
+                + " INSERT INTO #readahead VALUES (@i,"
+                + " 'row ' + CAST(@i AS VARCHAR) + REPLICATE('x', @i % 200),"
+                + " CASE WHEN @i % 7 = 0 THEN NULL ELSE @i + 0.25 END,"
+                + " DATEADD(ss, @i, '2009-06-01'))"
+                + " SET @i = @i + 1 END");
+        stmt.close();
+    }
+
+    /**
+     * Find the live read ahead threads.
+     */
+    private static Thread[] getReadAheadThreads() {
+        Thread[] threads = new Thread[Thread.activeCount() * 2 + 10];
+        int count = Thread.enumerate(threads);
+        ArrayList list = new ArrayList();
+
+        for (int i = 0; i < count; i++) {
+            if (THREAD_NAME.equals(threads[i].getName())) {
+                list.add(threads[i]);
+            }
+        }
+
+        return (Thread[]) list.toArray(new Thread[0]);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(ReadAheadTest.class);
+    }
+}
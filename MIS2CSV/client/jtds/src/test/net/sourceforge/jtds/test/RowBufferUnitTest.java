@@ -0,0 +1,231 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import net.sourceforge.jtds.jdbc.ColInfo;
+
+/**
+ * Unit tests for the <code>RowBuffer</code> class, which holds the numbers
+ * and dates of a row as primitives. Every conversion must give the same
+ * result as the object the column would otherwise have been read as.
+ */
+public class RowBufferUnitTest extends UnitTestBase {
+    private static final byte INT           = 1;
+    private static final byte LONG          = 2;
+    private static final byte BIT           = 3;
+    private static final byte REAL          = 4;
+    private static final byte FLOAT         = 5;
+    private static final byte MONEY         = 6;
+    private static final byte DATETIME      = 7;
+    private static final byte SMALLDATETIME = 8;
+
+    /** The row buffer under test, with a single column. */
+    private Object buffer;
+
+    public RowBufferUnitTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        buffer = invokeConstructor(Class.forName("net.sourceforge.jtds.jdbc.RowBuffer"),
+                new Class[]{ColInfo[].class}, new Object[]{new ColInfo[]{new ColInfo()}});
+    }
+
+    public void testInt() {
+        int[] values = {0, 1, -1, 12345, Integer.MAX_VALUE, Integer.MIN_VALUE};
+
+        for (int i = 0; i < values.length; i++) {
+            setLong(INT, values[i]);
+            assertNumber(new Integer(values[i]));
+        }
+    }
+
+    public void testLong() {
+        long[] values = {0, -5000000000L, 5000000000L, Long.MAX_VALUE, Long.MIN_VALUE};
+
+        for (int i = 0; i < values.length; i++) {
+            setLong(LONG, values[i]);
+            assertNumber(new Long(values[i]));
+        }
+    }
+
+    public void testBit() {
+        setLong(BIT, 1);
+        assertTrue(isNumber());
+        assertTrue(getBoolean());
+        assertEquals(1, getInt());
+        assertEquals("1", getString());
+        assertSame(Boolean.TRUE, toObject());
+
+        setLong(BIT, 0);
+        assertFalse(getBoolean());
+        assertEquals("0", getString());
+        assertSame(Boolean.FALSE, toObject());
+    }
+
+    public void testReal() {
+        float[] values = {0f, 1.1f, -2.5f, 123456.79f, 1.0E-10f, Float.MAX_VALUE};
+
+        for (int i = 0; i < values.length; i++) {
+            setDouble(REAL, values[i]);
+            assertNumber(new Float(values[i]));
+        }
+    }
+
+    public void testFloat() {
+        double[] values = {0d, 1.1d, -2.75d, 1.0E20d, -9.99E-7d, 3000000000.5d};
+
+        for (int i = 0; i < values.length; i++) {
+            setDouble(FLOAT, values[i]);
+            assertNumber(new Double(values[i]));
+        }
+    }
+
+    /**
+     * Money is held as the unscaled value and becomes a
+     * <code>BigDecimal</code> with a scale of 4.
+     */
+    public void testMoney() {
+        long[] values = {0, 123456789, -1, 922337203685477L * 10000 + 5807};
+
+        for (int i = 0; i < values.length; i++) {
+            setLong(MONEY, values[i]);
+            assertFalse(isNumber());
+            assertEquals(new BigDecimal(BigInteger.valueOf(values[i]), 4), toObject());
+        }
+    }
+
+    /**
+     * Datetimes are held as the date in the high and the time in the low 32
+     * bits.
+     */
+    public void testDateTime() {
+        int[][] values = {{0, 0}, {39963, 25920000 - 1}, {-53690, 1}, {2958463, 12345678}};
+
+        for (int i = 0; i < values.length; i++) {
+            int date = values[i][0];
+            int time = values[i][1];
+            setLong(DATETIME, ((long) date << 32) | (time & 0xFFFFFFFFL));
+            assertFalse(isNumber());
+            assertEquals(newDateTime(new Class[]{int.class, int.class},
+                    new Object[]{new Integer(date), new Integer(time)}), toObject().toString());
+        }
+    }
+
+    /**
+     * Smalldatetimes are held as the day in the high and the minute in the
+     * low 32 bits.
+     */
+    public void testSmallDateTime() {
+        short[][] values = {{0, 0}, {(short) 65535, 1439}, {(short) 40000, 720}};
+
+        for (int i = 0; i < values.length; i++) {
+            short date = values[i][0];
+            short time = values[i][1];
+            setLong(SMALLDATETIME, ((long) date << 32) | (time & 0xFFFFFFFFL));
+            assertEquals(newDateTime(new Class[]{short.class, short.class},
+                    new Object[]{new Short(date), new Short(time)}), toObject().toString());
+        }
+    }
+
+    /**
+     * Check every getter of a held number against the object it stands for,
+     * then check the object itself.
+     */
+    private void assertNumber(Number expected) {
+        assertTrue(isNumber());
+        assertEquals(expected.intValue(), getInt());
+        assertEquals(expected.longValue(), getLong());
+        assertEquals(expected.floatValue(), getFloat(), 0f);
+        assertEquals(expected.doubleValue(), getDouble(), 0d);
+        assertEquals(expected.intValue() != 0, getBoolean());
+        assertEquals(expected.toString(), getString());
+
+        assertEquals(expected, toObject());
+        assertFalse(((Boolean) call("isHeld", new Class[]{int.class}, new Object[]{new Integer(0)})).booleanValue());
+    }
+
+    private String newDateTime(Class[] types, Object[] args) {
+        try {
+            return invokeConstructor(Class.forName("net.sourceforge.jtds.jdbc.DateTime"), types, args).toString();
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    private void setLong(byte kind, long value) {
+        call("setLong", new Class[]{int.class, byte.class, long.class},
+                new Object[]{new Integer(0), new Byte(kind), new Long(value)});
+    }
+
+    private void setDouble(byte kind, double value) {
+        call("setDouble", new Class[]{int.class, byte.class, double.class},
+                new Object[]{new Integer(0), new Byte(kind), new Double(value)});
+    }
+
+    private boolean isNumber() {
+        return ((Boolean) get("isNumber")).booleanValue();
+    }
+
+    private int getInt() {
+        return ((Integer) get("getInt")).intValue();
+    }
+
+    private long getLong() {
+        return ((Long) get("getLong")).longValue();
+    }
+
+    private float getFloat() {
+        return ((Float) get("getFloat")).floatValue();
+    }
+
+    private double getDouble() {
+        return ((Double) get("getDouble")).doubleValue();
+    }
+
+    private boolean getBoolean() {
+        return ((Boolean) get("getBoolean")).booleanValue();
+    }
+
+    private String getString() {
+        return (String) get("getString");
+    }
+
+    private Object toObject() {
+        Object[] row = new Object[1];
+        Object value = call("toObject", new Class[]{Object[].class, int.class},
+                new Object[]{row, new Integer(0)});
+        assertSame(value, row[0]);
+        return value;
+    }
+
+    /**
+     * Call a getter of the row buffer for its only column.
+     */
+    private Object get(String method) {
+        return call(method, new Class[]{int.class}, new Object[]{new Integer(0)});
+    }
+
+    private Object call(String method, Class[] types, Object[] args) {
+        return invokeInstanceMethod(buffer, method, types, args);
+    }
+}
@@ -0,0 +1,247 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.test;
+
+import java.io.File;
+
+/**
+ * Unit tests for the <code>SpillSegment</code> class, which holds the network
+ * packets a virtual socket could not keep in memory. Packets must be read
+ * back in the order they were written, whether they are still in the write
+ * buffer or already in the file.
+ */
+public class SpillSegmentUnitTest extends UnitTestBase {
+    /** The size of the segment's read and write buffers. */
+    private static final int BUFFER_SIZE = 65536;
+
+    /** The segment under test. */
+    private Object segment;
+    /** The number of the next packet to write. */
+    private int written;
+    /** The number of the next packet to read. */
+    private int read;
+
+    public SpillSegmentUnitTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        segment = invokeConstructor(Class.forName("net.sourceforge.jtds.jdbc.SpillSegment"),
+                new Class[]{File.class}, new Object[]{null});
+    }
+
+    protected void tearDown() throws Exception {
+        invokeInstanceMethod(segment, "close", new Class[0], new Object[0]);
+        super.tearDown();
+    }
+
+    /**
+     * More packets than fit in the write buffer, so it is written to the file
+     * while packets are still being added.
+     */
+    public void testWritesPastBuffer() {
+        for (int i = 0; i < 100; i++) {
+            write(4096);
+        }
+
+        assertTrue(getWriteBase() > 0);
+        assertTrue(getWriteBase() < 100 * 4096);
+
+        readAll(4096);
+    }
+
+    /**
+     * Packets read while the last of them are only in the write buffer, so
+     * the reader has to catch up with them.
+     */
+    public void testReadCatchesUpWithWrites() {
+        write(512);
+        write(100);
+        assertEquals(0, getWriteBase());
+
+        // Both packets are in the write buffer until the first is read
+        read(512);
+        assertEquals(612, getWriteBase());
+
+        write(2000);
+        read(100);
+        read(2000);
+
+        for (int i = 0; i < 50; i++) {
+            write(1000 + i * 10);
+
+            if (i % 3 == 0) {
+                read(1000 + (i / 3) * 10);
+            }
+        }
+
+        for (int i = 17; i < 50; i++) {
+            read(1000 + i * 10);
+        }
+
+        assertEquals(getWriteBase(), getReadEnd());
+    }
+
+    /**
+     * After a reset the file is written again from the start and is still
+     * longer than the packets written since, so the bytes past them must not
+     * be read as packets.
+     */
+    public void testResetReusesFile() {
+        for (int i = 0; i < 40; i++) {
+            write(4000);
+        }
+
+        readAll(4000);
+
+        File file = (File) invokeGetInstanceField(segment, "file");
+        long length = file.length();
+        assertTrue(length >= 40 * 4000 - BUFFER_SIZE);
+
+        invokeInstanceMethod(segment, "reset", new Class[0], new Object[0]);
+        assertEquals(0, getWriteBase());
+
+        write(300);
+        write(700);
+        read(300);
+        assertEquals(1000, getWriteBase());
+        assertEquals(length, file.length());
+
+        // The stale bytes after the packets are left in the file
+        assertEquals(1000, getReadEnd());
+        read(700);
+
+        write(50);
+        read(50);
+        assertEquals(getWriteBase(), getReadEnd());
+    }
+
+    /**
+     * A new buffer is returned when none is passed in or the one passed in is
+     * too small, otherwise the one passed in is used.
+     */
+    public void testReadBuffer() {
+        write(200);
+        write(200);
+        write(200);
+
+        byte[] small = new byte[100];
+        assertNotSame(small, readInto(small, 200));
+        assertNotNull(readInto(null, 200));
+
+        byte[] large = new byte[400];
+        assertSame(large, readInto(large, 200));
+    }
+
+    /**
+     * Closing the segment deletes its file.
+     */
+    public void testClose() {
+        write(100);
+        read(100);
+
+        File file = (File) invokeGetInstanceField(segment, "file");
+        assertTrue(file.exists());
+
+        invokeInstanceMethod(segment, "close", new Class[0], new Object[0]);
+        assertFalse(file.exists());
+    }
+
+    /**
+     * Build a packet whose header holds its length and whose data identifies
+     * it by its number.
+     */
+    private static byte[] packet(int number, int len) {
+        byte[] buffer = new byte[len];
+
+        buffer[0] = 4;
+        buffer[2] = (byte) (len >> 8);
+        buffer[3] = (byte) len;
+        buffer[6] = (byte) number;
+
+        for (int i = 8; i < len; i++) {
+            buffer[i] = (byte) (number * 31 + i);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Write the next packet, of the given length.
+     */
+    private void write(int len) {
+        // The segment only keeps the first len bytes of the buffer
+        byte[] buffer = new byte[len + 16];
+        System.arraycopy(packet(written++, len), 0, buffer, 0, len);
+
+        invokeInstanceMethod(segment, "write",
+                new Class[]{byte[].class, int.class},
+                new Object[]{buffer, new Integer(len)});
+    }
+
+    /**
+     * Read the next packet and check it is the one written with this number.
+     */
+    private void read(int len) {
+        readInto(null, len);
+    }
+
+    /**
+     * Read the next packet into a buffer and check it is the one written with
+     * this number.
+     */
+    private byte[] readInto(byte[] buffer, int len) {
+        byte[] expected = packet(read, len);
+        byte[] actual = (byte[]) invokeInstanceMethod(segment, "read",
+                new Class[]{byte[].class}, new Object[]{buffer});
+
+        assertTrue(actual.length >= len);
+
+        for (int i = 0; i < len; i++) {
+            assertEquals("packet " + read + " byte " + i, expected[i], actual[i]);
+        }
+
+        read++;
+
+        return actual;
+    }
+
+    /**
+     * Read all packets written, all of the given length.
+     */
+    private void readAll(int len) {
+        while (read < written) {
+            read(len);
+        }
+
+        assertEquals(getWriteBase(), getReadEnd());
+    }
+
+    private long getWriteBase() {
+        return ((Long) invokeGetInstanceField(segment, "writeBase")).longValue();
+    }
+
+    private long getReadEnd() {
+        return ((Long) invokeGetInstanceField(segment, "readEnd")).longValue();
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(SpillSegmentUnitTest.class);
+    }
+}
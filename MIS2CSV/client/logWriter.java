@@ -0,0 +1,434 @@
+/*
+ *    Copyright 2010 Schools Data Services Limited
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/**
+ * Automated IRIS Data Transfer Agent (AIDA)
+ * Writes the log file from a background thread
+ * Lines are queued in a ring buffer and written in batches through a file that is kept open,
+ * and the log is rotated to a single old log once it passes its maximum size
+ * @package AIDA
+ */
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+
+class logWriter implements Runnable
+{
+	/**
+	 * lines that report an error, which start with '!'
+	 */
+	public static final int levelError = 0;
+
+	/**
+	 * lines that report progress
+	 */
+	public static final int levelInfo = 1;
+
+	/**
+	 * detailed lines such as hashes and program output
+	 */
+	public static final int levelDebug = 2;
+
+	/**
+	 * the names of the levels, as set by log_level in the config file
+	 */
+	public static final String[] levelNames = {"error", "info", "debug"};
+
+	/**
+	 * the number of lines the ring buffer holds
+	 */
+	protected static final int bufferLines = 4096;
+
+	/**
+	 * how long the flusher waits for a line before checking if it has been closed, in milliseconds
+	 */
+	protected static final long flushInterval = 1000;
+
+	/**
+	 * the line ending written after each line
+	 */
+	protected static final String lineEnd = "\r\n";
+
+	/**
+	 * the log file
+	 */
+	protected File logFile;
+
+	/**
+	 * the file the log is rotated to
+	 */
+	protected File oldLogFile;
+
+	/**
+	 * the size the log is rotated at, in bytes
+	 */
+	protected long maxSize;
+
+	/**
+	 * the most detailed level written
+	 */
+	protected int level;
+
+	/**
+	 * the queued lines, a fixed size ring buffer
+	 */
+	protected ArrayBlockingQueue<String> queue = new ArrayBlockingQueue<String>(bufferLines);
+
+	/**
+	 * the number of lines queued
+	 */
+	protected AtomicLong added = new AtomicLong();
+
+	/**
+	 * the number of lines written, guarded by progress
+	 */
+	protected long written = 0;
+
+	/**
+	 * notified each time a batch of lines has been written
+	 */
+	protected final Object progress = new Object();
+
+	/**
+	 * if the writer has been closed
+	 */
+	protected volatile boolean closed = false;
+
+	/**
+	 * the background thread
+	 */
+	protected Thread flusher;
+
+	/**
+	 * the open log file
+	 */
+	protected BufferedWriter fileOut;
+
+	/**
+	 * the current size of the log file, in bytes
+	 */
+	protected long size;
+
+	/**
+	 * Constructor
+	 * @param logFile the log file
+	 * @param oldLogFile the file the log is rotated to
+	 * @param maxSize the size the log is rotated at, in bytes
+	 * @param level the most detailed level written
+	 */
+	public logWriter(File logFile, File oldLogFile, long maxSize, int level)
+	{
+		this.logFile = logFile;
+		this.oldLogFile = oldLogFile;
+		this.maxSize = maxSize;
+		this.level = level;
+	}
+
+	/**
+	 * Open the log, rotating it first if it is already over its maximum size, and start the background thread
+	 */
+	public void start() throws IOException
+	{
+		if(logFile.length() > maxSize) rotate();
+
+		open();
+
+		flusher = new Thread(this, "log-writer");
+		flusher.setDaemon(true);
+		flusher.start();
+
+		//lines queued when the JVM exits without going through close() must still be written
+		Runtime.getRuntime().addShutdownHook(new Thread("log-shutdown")
+		{
+			public void run()
+			{
+				logWriter.this.close();
+			}
+		});
+	}
+
+	/**
+	 * Check if lines of a level are written
+	 * @param lineLevel the level
+	 * @return if lines of that level are written
+	 */
+	public boolean isLogged(int lineLevel)
+	{
+		return lineLevel <= level;
+	}
+
+	/**
+	 * Queue a line to be written
+	 * If the ring buffer is full this waits for the flusher to make room rather than losing the line, until the writer is closed
+	 * @param lineLevel the level of the line
+	 * @param text the line
+	 * @return false if the writer has been closed and the line was not queued
+	 */
+	public boolean add(int lineLevel, String text)
+	{
+		if(!isLogged(lineLevel)) return true;
+
+		if(closed) return false;
+
+		try
+		{
+			while(!queue.offer(text, flushInterval, TimeUnit.MILLISECONDS))
+			{
+				if(closed) return false;
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+
+		added.incrementAndGet();
+
+		//the flusher may already have stopped, in which case the line is written here
+		if(closed) writeRemaining();
+
+		return true;
+	}
+
+	/**
+	 * Wait until every line queued so far has been written to the file
+	 */
+	public void flush()
+	{
+		long target = added.get();
+
+		synchronized(progress)
+		{
+			while(written < target && flusher != null && flusher.isAlive())
+			{
+				try
+				{
+					progress.wait(flushInterval);
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write any queued lines, stop the background thread and close the file
+	 */
+	public void close()
+	{
+		synchronized(progress)
+		{
+			if(closed) return;
+
+			closed = true;
+		}
+
+		//the flusher writes whatever is still queued before it stops
+		flusher.interrupt();
+
+		try
+		{
+			if(flusher != Thread.currentThread()) flusher.join(flushInterval*5);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		writeRemaining();
+	}
+
+	/**
+	 * Write the lines queued after the flusher took its last batch, once the writer has been closed
+	 */
+	protected synchronized void writeRemaining()
+	{
+		ArrayList<String> batch = new ArrayList<String>();
+
+		queue.drainTo(batch);
+
+		if(batch.isEmpty()) return;
+
+		write(batch);
+		closeFile();
+
+		synchronized(progress)
+		{
+			written += batch.size();
+			progress.notifyAll();
+		}
+	}
+
+	/**
+	 * The background thread, writing queued lines in batches
+	 * Lines are written as soon as they arrive, so under load each write takes whatever has queued since the last one
+	 */
+	public void run()
+	{
+		ArrayList<String> batch = new ArrayList<String>(bufferLines);
+		boolean running = true;
+
+		while(running)
+		{
+			try
+			{
+				String line = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+
+				if(line != null) batch.add(line);
+			}
+			catch(InterruptedException e)
+			{
+				running = false;
+			}
+
+			if(closed) running = false;
+
+			queue.drainTo(batch);
+
+			if(!batch.isEmpty())
+			{
+				synchronized(this)
+				{
+					write(batch);
+				}
+
+				synchronized(progress)
+				{
+					written += batch.size();
+					progress.notifyAll();
+				}
+
+				batch.clear();
+			}
+		}
+
+		synchronized(this)
+		{
+			closeFile();
+		}
+	}
+
+	/**
+	 * Write a batch of lines to the file, rotating it when it is full
+	 * @param batch the lines
+	 */
+	protected void write(ArrayList<String> batch)
+	{
+		for(int i=0; i<batch.size(); i++)
+		{
+			String line = batch.get(i);
+
+			try
+			{
+				if(fileOut == null) open();
+
+				fileOut.write(line);
+				fileOut.write(lineEnd);
+				size += line.length()+lineEnd.length();
+
+				if(size > maxSize)
+				{
+					closeFile();
+					rotate();
+				}
+			}
+			catch(IOException e)
+			{
+				System.out.println("Cannot write to IRIS log file - "+line);
+				closeFile();
+			}
+		}
+
+		try
+		{
+			if(fileOut != null) fileOut.flush();
+		}
+		catch(IOException e)
+		{
+			System.out.println("Cannot write to IRIS log file at "+logFile.getPath());
+			closeFile();
+		}
+	}
+
+	/**
+	 * Open the log file for appending
+	 */
+	protected void open() throws IOException
+	{
+		if(!logFile.exists()) logFile.createNewFile();
+
+		size = logFile.length();
+		fileOut = new BufferedWriter(new FileWriter(logFile, true), 16384);
+	}
+
+	/**
+	 * Close the log file
+	 */
+	protected void closeFile()
+	{
+		if(fileOut == null) return;
+
+		try
+		{
+			fileOut.flush();
+			fileOut.close();
+		}
+		catch(IOException e)
+		{
+			System.out.println("Cannot write to IRIS log file at "+logFile.getPath());
+		}
+
+		fileOut = null;
+	}
+
+	/**
+	 * Replace the old log with the current one
+	 */
+	protected void rotate()
+	{
+		if(oldLogFile.exists()) oldLogFile.delete();
+
+		logFile.renameTo(oldLogFile);
+	}
+
+	/**
+	 * Get a level from its name
+	 * @param name the level name
+	 * @param defaultLevel the level used if the name is not recognised
+	 * @return the level
+	 */
+	public static int parseLevel(String name, int defaultLevel)
+	{
+		for(int i=0; i<levelNames.length; i++)
+		{
+			if(levelNames[i].equalsIgnoreCase(name)) return i;
+		}
+
+		return defaultLevel;
+	}
+}
@@ -23,69 +23,209 @@
  */
 
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Iterator;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.FileNotFoundException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
 
 abstract class misReport implements reportAdapter
 {
 	String slash = File.separator;
 	HashMap<File, LinkedList<File>> duplicates = new HashMap<File, LinkedList<File>>();
 
+	/**
+	 * set when a query run by a worker has failed so the remaining queries are abandoned
+	 */
+	protected volatile boolean queryFailed = false;
+
+	/**
+	 * told about each report file once it has been completely written
+	 */
+	protected reportListener listener;
+
+	/**
+	 * the report files that have been passed to the listener
+	 */
+	protected HashSet<File> finishedReports = new HashSet<File>();
+
+	/**
+	 * the number of query parts still to be written for each report file
+	 */
+	protected HashMap<File, Integer> pendingParts = new HashMap<File, Integer>();
+
+	/**
+	 * if the jTDS driver has been registered with the driver manager
+	 */
+	protected static boolean driverRegistered = false;
+
+	/**
+	 * the number of runs between full extracts of a watermarked report unless full_every is set
+	 */
+	protected static final int defaultFullEvery = 7;
+
+	/**
+	 * the suffix of the file the rows newer than the watermark are written to before they are merged
+	 */
+	protected static final String deltaSuffix = ".delta";
+
 	/**
 	 * Concatenate files
 	 */
-	public void concatenate()
+	public synchronized void concatenate()
 	{
 		//merge files specified in duplicates hashmap
 		//duplicates are made when a report query is split to ease the load on the MIS
-		try
+		Iterator<File> it = duplicates.keySet().iterator();
+
+		while(it.hasNext())
 		{
-			Iterator it = duplicates.keySet().iterator();
+			concatenate(it.next());
+		}
+	}
 
-			while(it.hasNext())
-			{
-				File file = (File)it.next();
-				LinkedList<File> concFiles = duplicates.get(file);
+	/**
+	 * Concatenate the split parts of a single report onto it
+	 * @param file the report file
+	 * @return if the parts were concatenated
+	 */
+	public synchronized boolean concatenate(File file)
+	{
+		LinkedList<File> concFiles = duplicates.get(file);
 
-				if(!concFiles.isEmpty())
-				{
-					aida.logAdd("Concatenating files for "+file.getName());
+		try
+		{
+			if(concFiles != null && !concFiles.isEmpty())
+			{
+				aida.logAdd("Concatenating files for "+file.getName());
+	
+				FileWriter fileOut = new FileWriter(file, true);
 		
-					FileWriter fileOut = new FileWriter(file, true);
-			
-					BufferedReader bufRead;
-					File concFile;
+				BufferedReader bufRead;
+				File concFile;
 
+				try
+				{
 					//read all of the files to be concatenated into a single output file
 					while (!concFiles.isEmpty())
 					{
-						concFile = concFiles.removeFirst();
-			
+						concFile = concFiles.getFirst();
+
 						bufRead = new BufferedReader(new FileReader(concFile));
-			
-						while(bufRead.ready())
+
+						try
 						{
-							fileOut.write(bufRead.readLine()+"\r\n");
+							while(bufRead.ready())
+							{
+								fileOut.write(bufRead.readLine()+"\r\n");
+							}
 						}
-			
-						bufRead.close();
+						finally
+						{
+							bufRead.close();
+						}
+
+						//the part is not needed once it has been appended
+						concFiles.removeFirst();
+						concFile.delete();
 					}
-			
+
 					fileOut.flush();
+				}
+				finally
+				{
 					fileOut.close();
 				}
 			}
+
+			return true;
 		}
 		catch(IOException e)
 		{
 			aida.logAdd("!Files could not be concatenated");
 			aida.logAdd("!"+e.getMessage());
+
+			//the report is incomplete, so its remaining parts are of no use
+			while(concFiles != null && !concFiles.isEmpty())
+			{
+				concFiles.removeFirst().delete();
+			}
+
+			return false;
+		}
+	}
+
+	/**
+	 * Delete the split parts of every report that have not been concatenated onto it
+	 */
+	protected synchronized void deleteParts()
+	{
+		Iterator<LinkedList<File>> it = duplicates.values().iterator();
+
+		while(it.hasNext())
+		{
+			LinkedList<File> parts = it.next();
+
+			while(!parts.isEmpty())
+			{
+				parts.removeFirst().delete();
+			}
+		}
+	}
+
+	/**
+	 * Set the listener told about each report file once it has been completely written
+	 * @param listener the report listener
+	 */
+	public void setReportListener(reportListener listener)
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * Tell the report listener that a report file has been completely written
+	 * Each report is only passed on once
+	 * @param file the report file
+	 */
+	protected void reportFinished(File file)
+	{
+		synchronized(finishedReports)
+		{
+			if(!finishedReports.add(file)) return;
+		}
+
+		//outside of any lock as the listener may wait for room to take the report
+		if(listener != null && file.exists()) listener.reportFinished(file);
+	}
+
+	/**
+	 * Tell the report listener about every report file that has not been passed on yet
+	 */
+	protected void finishReports()
+	{
+		LinkedList<File> files;
+
+		synchronized(this)
+		{
+			files = new LinkedList<File>(duplicates.keySet());
+		}
+
+		while(!files.isEmpty())
+		{
+			reportFinished(files.removeFirst());
 		}
 	}
 
@@ -94,7 +234,7 @@ abstract class misReport implements reportAdapter
 	 * @param path the path to the file
 	 * @return the file name (which may have been changed)
 	 */
-	public String checkDuplicates(String path)
+	public synchronized String checkDuplicates(String path)
 	{
 		File file = new File(path);
 
@@ -108,8 +248,8 @@ abstract class misReport implements reportAdapter
 				LinkedList<File> newVal = duplicates.get(file);
 
 				//create new filename
+				//deleted by concatenate once it has been appended to the report
 				File newFile = File.createTempFile(file.getName().substring(0, file.getName().length()-4), ".csv", new File(aida.getConfigValue("aida_dir")));
-				newFile.deleteOnExit();
 	
 				newVal.add(newFile);
 	
@@ -132,4 +272,592 @@ abstract class misReport implements reportAdapter
 		//return the (possibly renamed) filename
 		return file.getAbsolutePath();
 	}
+
+	/**
+	 * Register the jTDS driver, once for as long as AIDA is running rather than for every connection
+	 */
+	protected static synchronized void registerDriver() throws SQLException
+	{
+		if(driverRegistered) return;
+
+		DriverManager.registerDriver(new net.sourceforge.jtds.jdbc.Driver());
+		driverRegistered = true;
+	}
+
+	/**
+	 * Open a database connection for a query worker
+	 * Adapters that run SQL queries override this
+	 * @return the database connection
+	 */
+	protected Connection openConnection()
+	{
+		return null;
+	}
+
+	/**
+	 * Close a database connection opened for a query worker
+	 * @param conn the database connection
+	 */
+	protected void closeConnection(Connection conn)
+	{
+	}
+
+	/**
+	 * Get the number of query workers to run
+	 * @param queries the number of queries to be run
+	 * @return the number of workers, set by report_parallelism in the config file
+	 */
+	protected int getParallelism(int queries)
+	{
+		int parallelism = 1;
+
+		if(!aida.getConfigValue("report_parallelism").equals(""))
+		{
+			try
+			{
+				parallelism = Integer.parseInt(aida.getConfigValue("report_parallelism"));
+			}
+			catch(NumberFormatException e)
+			{
+				aida.logAdd("!Invalid report_parallelism setting - running queries one at a time");
+			}
+		}
+
+		return Math.max(1, Math.min(parallelism, queries));
+	}
+
+	/**
+	 * Run report queries across a pool of workers, each with its own database connection
+	 * Split reports must already have been given their file names by checkDuplicates() so that they are
+	 * concatenated in report definition order whichever worker finishes first
+	 * @param queries the queries to run
+	 * @return if all of the queries ran successfully
+	 */
+	protected boolean runQueries(LinkedList<reportQuery> queries)
+	{
+		queryFailed = false;
+
+		if(queries.isEmpty()) return true;
+
+		int parallelism = getParallelism(queries.size());
+
+		if(parallelism > 1)
+		{
+			aida.logAdd("Running "+queries.size()+" queries across "+parallelism+" connections");
+		}
+
+		LinkedList<reportQuery> pending = new LinkedList<reportQuery>(queries);
+
+		//count the parts of each report so it can be passed on as soon as its last part is written
+		synchronized(pendingParts)
+		{
+			pendingParts.clear();
+
+			Iterator<reportQuery> it = pending.iterator();
+
+			while(it.hasNext())
+			{
+				File reportFile = it.next().reportFile;
+				Integer parts = pendingParts.get(reportFile);
+
+				pendingParts.put(reportFile, parts == null ? 1 : parts+1);
+			}
+		}
+
+		queryWorker[] workers = new queryWorker[parallelism];
+
+		for(int i=0; i<parallelism; i++)
+		{
+			workers[i] = new queryWorker(pending);
+			workers[i].setName("query-worker-"+(i+1));
+			workers[i].start();
+		}
+
+		boolean connected = false;
+
+		try
+		{
+			for(int i=0; i<parallelism; i++)
+			{
+				workers[i].join();
+				connected |= workers[i].connected;
+			}
+		}
+		catch(InterruptedException e)
+		{
+			aida.logAdd("!Report queries were interrupted");
+			queryFailed = true;
+			return false;
+		}
+
+		//queries are only left over if a worker stopped without picking them up
+		synchronized(pending)
+		{
+			if(!pending.isEmpty()) queryFailed = true;
+		}
+
+		//the reports are not concatenated after a failed run, so their parts would be left behind
+		if(!connected || queryFailed) deleteParts();
+
+		return connected && !queryFailed;
+	}
+
+	/**
+	 * Record that a query has been written, concatenating and passing on its report once all of its parts are written
+	 * @param job the query that has been written
+	 */
+	protected void queryFinished(reportQuery job)
+	{
+		synchronized(pendingParts)
+		{
+			Integer parts = pendingParts.get(job.reportFile);
+
+			if(parts != null && parts > 1)
+			{
+				pendingParts.put(job.reportFile, parts-1);
+				return;
+			}
+
+			pendingParts.remove(job.reportFile);
+		}
+
+		if(concatenate(job.reportFile)) reportFinished(job.reportFile);
+	}
+
+	/**
+	 * Run a query and write the results to its report file
+	 * @param conn the database connection
+	 * @param job the query to run
+	 */
+	protected void exportQuery(Connection conn, reportQuery job) throws SQLException, IOException
+	{
+		File destFile = job.destFile;
+
+		aida.logAdd("Creating "+destFile.getName());
+
+		if(!destFile.exists()) destFile.createNewFile();
+
+		destFile.setWritable(true, false);
+
+		long start = System.nanoTime();
+
+		try
+		{
+			if(job.watermarkColumn != null && !isSplit(job.reportFile))
+			{
+				exportWatermarked(conn, job);
+				return;
+			}
+
+			csvWriter fileOut = new csvWriter(destFile);
+
+			//run the query
+			Statement stmt = conn.createStatement();
+
+			try
+			{
+				//write the data to the file
+				aida.addMetric(runMetrics.scopeReport, job.reportFile.getName(), "rows", writeQuery(stmt, job.query, fileOut));
+			}
+			finally
+			{
+				stmt.close();
+				fileOut.close();
+			}
+		}
+		finally
+		{
+			//the parts of a split report add up to the whole report
+			aida.addMetric(runMetrics.scopeReport, job.reportFile.getName(), "query_ms", runMetrics.since(start));
+			aida.addMetric(runMetrics.scopeReport, job.reportFile.getName(), "bytes", destFile.length());
+		}
+	}
+
+	/**
+	 * Run a query and write its rows to a report file
+	 * @param stmt the statement to run the query on
+	 * @param query the query
+	 * @param fileOut the report writer
+	 * @return the number of rows written
+	 */
+	protected long writeQuery(Statement stmt, String query, csvWriter fileOut) throws SQLException, IOException
+	{
+		ResultSet rs = stmt.executeQuery(query);
+		long rows = fileOut.writeRows(rs);
+
+		rs.close();
+
+		return rows;
+	}
+
+	/**
+	 * Give a query the watermark options of its report definition
+	 * Reports with 'watermark=' naming a rowversion or modified date column in their results, and 'key=' columns,
+	 * only have rows newer than the last run extracted, which are merged into the previous report.
+	 * Every 'full_every=' runs (7 by default) the report is extracted in full so deleted rows are picked up
+	 * @param job the query
+	 * @param reportArray the report definition
+	 */
+	protected void setWatermark(reportQuery job, String[] reportArray)
+	{
+		String column = aida.getReportOption(reportArray, "watermark");
+
+		if(column.equals("")) return;
+
+		if(!column.matches("\\[?[A-Za-z_][A-Za-z0-9_ ]*\\]?"))
+		{
+			aida.logAdd("!Invalid watermark column for "+reportArray[0]+" - extracting it in full");
+			return;
+		}
+
+		try
+		{
+			job.keys = aida.parseKeyColumns(aida.getReportOption(reportArray, "key"));
+		}
+		catch(NumberFormatException e)
+		{
+		}
+
+		if(job.keys == null)
+		{
+			aida.logAdd("!"+reportArray[0]+" needs key columns to be extracted by watermark - extracting it in full");
+			return;
+		}
+
+		job.fullEvery = defaultFullEvery;
+
+		if(!aida.getReportOption(reportArray, "full_every").equals(""))
+		{
+			try
+			{
+				job.fullEvery = Math.max(1, Integer.parseInt(aida.getReportOption(reportArray, "full_every")));
+			}
+			catch(NumberFormatException e)
+			{
+				aida.logAdd("!Invalid full_every setting for "+reportArray[0]+" - using "+defaultFullEvery);
+			}
+		}
+
+		//bracketed so the outer query can name it whatever it is called
+		job.watermarkColumn = column.replace("[", "").replace("]", "").trim();
+	}
+
+	/**
+	 * Check if a report is made of several queries that are concatenated
+	 * @param reportFile the report file
+	 * @return if the report is split
+	 */
+	protected synchronized boolean isSplit(File reportFile)
+	{
+		LinkedList<File> parts = duplicates.get(reportFile);
+
+		return parts != null && !parts.isEmpty();
+	}
+
+	/**
+	 * Run a watermarked query, extracting only rows newer than the watermark of the previous report when it has one
+	 * The new watermark is written next to the report, so it only takes effect once the report becomes the previous report
+	 * @param conn the database connection
+	 * @param job the query to run
+	 */
+	protected void exportWatermarked(Connection conn, reportQuery job) throws SQLException, IOException
+	{
+		File prevFile = new File(aida.getConfigValue("aida_dir")+slash+aida.previousDir+slash+job.reportFile.getName());
+		watermark mark = prevFile.exists() ? watermark.read(prevFile, job.watermarkColumn) : null;
+
+		if(mark != null && mark.getDeltaRuns()+1 < job.fullEvery)
+		{
+			try
+			{
+				exportDelta(conn, job, prevFile, mark);
+
+				mark.setDeltaRuns(mark.getDeltaRuns()+1);
+				mark.write(job.reportFile);
+
+				return;
+			}
+			catch(SQLException e)
+			{
+				aida.logAdd("!Could not extract changes to "+job.reportFile.getName()+" - extracting it in full");
+				aida.logAdd("!"+e.getMessage());
+			}
+		}
+
+		mark = new watermark(job.watermarkColumn);
+
+		csvWriter fileOut = new csvWriter(job.destFile);
+		Statement stmt = conn.createStatement();
+
+		try
+		{
+			ResultSet rs = stmt.executeQuery(job.query);
+			aida.addMetric(runMetrics.scopeReport, job.reportFile.getName(), "rows", writeRows(rs, fileOut, mark));
+			rs.close();
+		}
+		finally
+		{
+			stmt.close();
+			fileOut.close();
+		}
+
+		mark.write(job.reportFile);
+	}
+
+	/**
+	 * Extract the rows newer than the watermark and merge them into the previous report by key
+	 * The query is wrapped so SQL Server can seek on an index of the watermark column rather than scan the table
+	 * @param conn the database connection
+	 * @param job the query to run
+	 * @param prevFile the previous report
+	 * @param mark the watermark of the previous report, raised to the newest row extracted
+	 */
+	protected void exportDelta(Connection conn, reportQuery job, File prevFile, watermark mark) throws SQLException, IOException
+	{
+		File deltaFile = new File(job.destFile.getPath()+deltaSuffix);
+
+		try
+		{
+			csvWriter deltaOut = new csvWriter(deltaFile);
+			PreparedStatement stmt = conn.prepareStatement("SELECT * FROM ("+job.query+") aida_delta WHERE ["+job.watermarkColumn+"] > ?");
+
+			try
+			{
+				mark.bind(stmt, 1);
+
+				ResultSet rs = stmt.executeQuery();
+				long rows = writeRows(rs, deltaOut, mark);
+				rs.close();
+
+				aida.logAdd(rows+" rows of "+job.reportFile.getName()+" have changed since the last run");
+				aida.addMetric(runMetrics.scopeReport, job.reportFile.getName(), "delta_rows", rows);
+			}
+			finally
+			{
+				stmt.close();
+				deltaOut.close();
+			}
+
+			mergeDelta(prevFile, deltaFile, job.keys, job.destFile);
+		}
+		finally
+		{
+			deltaFile.delete();
+		}
+	}
+
+	/**
+	 * Write the rows of a result set, raising a watermark to the highest value of its column
+	 * @param rs the result set
+	 * @param fileOut the report writer
+	 * @param mark the watermark
+	 * @return the number of rows written
+	 */
+	protected long writeRows(ResultSet rs, csvWriter fileOut, watermark mark) throws SQLException, IOException
+	{
+		ResultSetMetaData meta = rs.getMetaData();
+		int numCols = meta.getColumnCount();
+		int markCol = -1;
+
+		for(int i=1; i<=numCols; i++)
+		{
+			if(meta.getColumnLabel(i).equalsIgnoreCase(mark.getColumn())) markCol = i;
+		}
+
+		if(markCol < 0) throw new SQLException("Watermark column "+mark.getColumn()+" is not in the results");
+
+		long rows = 0;
+
+		while(rs.next())
+		{
+			fileOut.writeRow(rs, numCols);
+			mark.update(watermark.normalise(rs.getObject(markCol)));
+			rows++;
+		}
+
+		return rows;
+	}
+
+	/**
+	 * Merge changed rows into the previous report
+	 * Rows of the previous report are replaced by the changed row with the same key, and changed rows with new keys are added at the end.
+	 * Unchanged rows are written exactly as they were, so a report with no changes is identical to the previous one
+	 * @param prevFile the previous report
+	 * @param deltaFile the changed rows
+	 * @param keys the key column indexes
+	 * @param destFile the merged report
+	 */
+	protected void mergeDelta(File prevFile, File deltaFile, int[] keys, File destFile) throws IOException
+	{
+		LinkedHashMap<String, String> changed = new LinkedHashMap<String, String>();
+
+		CSVReader deltaRead = new CSVReader(new FileReader(deltaFile));
+
+		while(deltaRead.nextRow())
+		{
+			changed.put(deltaRead.getColumnsAsString(keys), deltaRead.getRowAsString());
+		}
+
+		deltaRead.close();
+
+		BufferedWriter fileOut = new BufferedWriter(new FileWriter(destFile), csvWriter.bufferSize);
+		CSVReader prevRead = new CSVReader(new FileReader(prevFile));
+
+		try
+		{
+			while(prevRead.nextRow())
+			{
+				String row = changed.remove(prevRead.getColumnsAsString(keys));
+
+				fileOut.write(row != null ? row : prevRead.getRowAsString());
+				fileOut.write(csvWriter.lineEnd);
+			}
+
+			Iterator<String> it = changed.values().iterator();
+
+			while(it.hasNext())
+			{
+				fileOut.write(it.next());
+				fileOut.write(csvWriter.lineEnd);
+			}
+		}
+		finally
+		{
+			prevRead.close();
+			fileOut.close();
+		}
+	}
+
+	/**
+	 * A report query waiting to be run
+	 */
+	static class reportQuery
+	{
+		/**
+		 * the report file named in the report definition
+		 */
+		File reportFile;
+
+		/**
+		 * the file the results are written to, which may be a split report part
+		 */
+		File destFile;
+
+		/**
+		 * the SQL query
+		 */
+		String query;
+
+		/**
+		 * the column the report is extracted by, or null to extract it in full
+		 */
+		String watermarkColumn;
+
+		/**
+		 * the key column indexes changed rows are merged by
+		 */
+		int[] keys;
+
+		/**
+		 * the number of runs between full extracts
+		 */
+		int fullEvery;
+
+		/**
+		 * Constructor
+		 * @param reportFile the report file named in the report definition
+		 * @param destFile the file the results are written to
+		 * @param query the SQL query
+		 */
+		reportQuery(File reportFile, File destFile, String query)
+		{
+			this.reportFile = reportFile;
+			this.destFile = destFile;
+			this.query = query;
+		}
+	}
+
+	/**
+	 * Runs queries from a shared list on its own database connection
+	 */
+	class queryWorker extends Thread
+	{
+		/**
+		 * the queries still to be run, shared by all workers
+		 */
+		protected LinkedList<reportQuery> pending;
+
+		/**
+		 * if this worker managed to connect to the database
+		 */
+		protected boolean connected = false;
+
+		/**
+		 * Constructor
+		 * @param pending the queries still to be run
+		 */
+		queryWorker(LinkedList<reportQuery> pending)
+		{
+			this.pending = pending;
+		}
+
+		/**
+		 * Take the next query to run
+		 * @return the query or null if there are none left or a query has failed
+		 */
+		protected reportQuery nextQuery()
+		{
+			synchronized(pending)
+			{
+				if(queryFailed || pending.isEmpty()) return null;
+
+				return pending.removeFirst();
+			}
+		}
+
+		public void run()
+		{
+			Connection conn = openConnection();
+
+			if(conn == null) return;
+
+			connected = true;
+
+			try
+			{
+				reportQuery job;
+
+				while((job = nextQuery()) != null)
+				{
+					try
+					{
+						exportQuery(conn, job);
+						queryFinished(job);
+					}
+					catch(SQLException e)
+					{
+						aida.logAdd("!Report could not be run");
+						aida.logAdd("!"+e.getMessage());
+						queryFailed = true;
+					}
+					catch(IOException e)
+					{
+						aida.logAdd("!Could not write report file");
+						aida.logAdd("!"+e.getMessage());
+						queryFailed = true;
+					}
+					//a driver or parsing bug must still stop the run rather than leave a report half written
+					catch(RuntimeException e)
+					{
+						aida.logAdd("!Report could not be run");
+						aida.logAdd("!"+e.toString());
+						queryFailed = true;
+					}
+				}
+			}
+			finally
+			{
+				closeConnection(conn);
+			}
+		}
+	}
 }
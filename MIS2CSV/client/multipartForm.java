@@ -0,0 +1,336 @@
+/*
+ *    Copyright 2010 Schools Data Services Limited
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/**
+ * Automated IRIS Data Transfer Agent (AIDA)
+ * A multipart/form-data form with a single file, streamed from disk rather than built in memory
+ * Parts are laid out as HTTPClient.Codecs.mpFormDataEncode() lays them out, so the server sees the same request
+ * The file part can be gzipped, for servers that accept compressed uploads, and can be a range of the file
+ * so large files can be sent in chunks
+ * @package AIDA
+ */
+
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLConnection;
+
+class multipartForm
+{
+	/**
+	 * the size of the chunks the file is streamed in, in bytes
+	 */
+	protected static final int chunkSize = 65536;
+
+	/**
+	 * the encoding of the part headers and form values
+	 */
+	protected static final String headerEncoding = "8859_1";
+
+	/**
+	 * the characters used for the random part of the boundary
+	 */
+	protected static final String boundaryChars = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+	/**
+	 * the suffix added to the name of a gzipped file
+	 */
+	public static final String gzipSuffix = ".gz";
+
+	/**
+	 * the content type of a gzipped file part
+	 */
+	protected static final String gzipContentType = "application/x-gzip";
+
+	/**
+	 * the boundary between parts
+	 */
+	protected String boundary;
+
+	/**
+	 * everything before the file contents
+	 */
+	protected byte[] head;
+
+	/**
+	 * everything after the file contents
+	 */
+	protected byte[] tail;
+
+	/**
+	 * the file sent in the form
+	 */
+	protected File file;
+
+	/**
+	 * if the file part is gzipped
+	 */
+	protected boolean compress;
+
+	/**
+	 * the position in the file the file part starts at
+	 */
+	protected long offset = 0;
+
+	/**
+	 * the number of bytes of the file sent, or -1 to send to the end of the file
+	 */
+	protected long rangeLength = -1;
+
+	/**
+	 * the gzipped file part, once it has been written
+	 */
+	protected File compressedFile;
+
+	/**
+	 * Constructor
+	 * @param parameters the form values
+	 * @param fieldName the name of the file field
+	 * @param file the file to send
+	 */
+	public multipartForm(HTTPClient.NVPair[] parameters, String fieldName, File file) throws UnsupportedEncodingException
+	{
+		this(parameters, fieldName, file, false);
+	}
+
+	/**
+	 * Constructor
+	 * A gzipped file is sent with '.gz' added to its name and an application/x-gzip content type
+	 * @param parameters the form values
+	 * @param fieldName the name of the file field
+	 * @param file the file to send
+	 * @param compress whether the file is gzipped as it is sent
+	 */
+	public multipartForm(HTTPClient.NVPair[] parameters, String fieldName, File file, boolean compress) throws UnsupportedEncodingException
+	{
+		this(parameters, fieldName, file, compress, 0, -1);
+	}
+
+	/**
+	 * Constructor
+	 * Only a range of the file is sent, gzipped on its own if compress is set
+	 * @param parameters the form values
+	 * @param fieldName the name of the file field
+	 * @param file the file to send
+	 * @param compress whether the file is gzipped as it is sent
+	 * @param offset the position in the file to start at
+	 * @param rangeLength the number of bytes to send, or -1 to send to the end of the file
+	 */
+	public multipartForm(HTTPClient.NVPair[] parameters, String fieldName, File file, boolean compress, long offset, long rangeLength) throws UnsupportedEncodingException
+	{
+		this.file = file;
+		this.compress = compress;
+		this.offset = offset;
+		this.rangeLength = rangeLength;
+
+		//the file is not scanned for the boundary as Codecs does, so it is long and random enough never to turn up in a report
+		Random random = new Random();
+		StringBuilder sb = new StringBuilder("----------AIDA");
+
+		for(int i=0; i<32; i++)
+		{
+			sb.append(boundaryChars.charAt(random.nextInt(boundaryChars.length())));
+		}
+
+		boundary = sb.toString();
+
+		StringBuilder header = new StringBuilder();
+
+		for(int i=0; i<parameters.length; i++)
+		{
+			if(parameters[i] == null) continue;
+
+			header.append("--").append(boundary).append("\r\n");
+			header.append("Content-Disposition: form-data; name=\"").append(parameters[i].getName()).append("\"\r\n\r\n");
+			header.append(parameters[i].getValue()).append("\r\n");
+		}
+
+		header.append("--").append(boundary).append("\r\n");
+		header.append("Content-Disposition: form-data; name=\"").append(fieldName).append("\"; filename=\"").append(getPartFileName()).append("\"");
+
+		String contentType = getPartContentType();
+
+		if(contentType != null) header.append("\r\nContent-Type: ").append(contentType);
+
+		header.append("\r\n\r\n");
+
+		head = header.toString().getBytes(headerEncoding);
+		tail = ("\r\n--"+boundary+"--\r\n").getBytes(headerEncoding);
+	}
+
+	/**
+	 * Get the file name sent in the file part
+	 * @return the file name
+	 */
+	protected String getPartFileName()
+	{
+		return compress ? file.getName()+gzipSuffix : file.getName();
+	}
+
+	/**
+	 * Get the content type of the file part
+	 * @return the content type or null if the part has none
+	 */
+	protected String getPartContentType()
+	{
+		return compress ? gzipContentType : URLConnection.guessContentTypeFromName(file.getName());
+	}
+
+	/**
+	 * Get the content type header value of the form
+	 * @return the content type, including the boundary
+	 */
+	public String getContentType()
+	{
+		return "multipart/form-data; boundary="+boundary;
+	}
+
+	/**
+	 * Get the length of the encoded form
+	 * @return the length in bytes
+	 */
+	public long getLength() throws IOException
+	{
+		return head.length+getBodyLength()+tail.length;
+	}
+
+	/**
+	 * Get the length of the file part body
+	 * @return the length in bytes
+	 */
+	protected long getBodyLength() throws IOException
+	{
+		if(!compress) return getRangeLength();
+
+		return getCompressedFile().length();
+	}
+
+	/**
+	 * Get the number of bytes of the file that are sent
+	 * @return the length in bytes
+	 */
+	protected long getRangeLength()
+	{
+		return rangeLength < 0 ? file.length()-offset : rangeLength;
+	}
+
+	/**
+	 * Get the gzipped file part, gzipping it the first time
+	 * It is gzipped once to a file next to the file being sent, so its length is known and it can still be streamed
+	 * from disk with a Content-Length rather than being buffered by HTTPClient for a chunked request
+	 * @return the gzipped file part
+	 */
+	protected File getCompressedFile() throws IOException
+	{
+		if(compressedFile == null)
+		{
+			File gzipFile = new File(file.getPath()+(rangeLength < 0 ? "" : "."+offset)+gzipSuffix);
+			GZIPOutputStream gzipOut = new GZIPOutputStream(new FileOutputStream(gzipFile), chunkSize);
+
+			try
+			{
+				copy(file, offset, getRangeLength(), gzipOut);
+				gzipOut.finish();
+			}
+			catch(IOException e)
+			{
+				gzipOut.close();
+				gzipFile.delete();
+				throw e;
+			}
+
+			gzipOut.close();
+
+			compressedFile = gzipFile;
+		}
+
+		return compressedFile;
+	}
+
+	/**
+	 * Write the encoded form, streaming the file from disk
+	 * @param out the stream to write to, which is not closed
+	 */
+	public void writeTo(OutputStream out) throws IOException
+	{
+		out.write(head);
+
+		if(compress) copy(getCompressedFile(), 0, getBodyLength(), out);
+		else copy(file, offset, getRangeLength(), out);
+
+		out.write(tail);
+	}
+
+	/**
+	 * Delete the gzipped file part, if one was written
+	 */
+	public void close()
+	{
+		if(compressedFile != null && compressedFile.exists() && !compressedFile.delete())
+		{
+			aida.logAdd("!"+compressedFile.getName()+" could not be deleted");
+		}
+
+		compressedFile = null;
+	}
+
+	/**
+	 * Copy a range of a file to a stream
+	 * @param source the file to copy from
+	 * @param start the position in the file to start at
+	 * @param length the number of bytes to copy
+	 * @param out the stream to write to
+	 */
+	protected static void copy(File source, long start, long length, OutputStream out) throws IOException
+	{
+		InputStream in = new FileInputStream(source);
+
+		try
+		{
+			byte[] buffer = new byte[chunkSize];
+			long remaining = length;
+			int read;
+
+			if(start > 0 && in.skip(start) != start)
+			{
+				throw new IOException("Could not read "+source.getName()+" from "+start);
+			}
+
+			while(remaining > 0 && (read = in.read(buffer, 0, (int)Math.min(buffer.length, remaining))) != -1)
+			{
+				out.write(buffer, 0, read);
+				remaining -= read;
+			}
+
+			if(remaining > 0)
+			{
+				throw new IOException(source.getName()+" is shorter than expected");
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
@@ -28,4 +28,6 @@ import java.util.LinkedList;
 interface reportAdapter
 {
 	public boolean runReport(LinkedList<String[]> reportDef, HashMap<String, String[]> overrideParameters, String currentDir);
+
+	public void setReportListener(reportListener listener);
 }
@@ -0,0 +1,304 @@
+/*
+ *    Copyright 2010 Schools Data Services Limited
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/**
+ * Automated IRIS Data Transfer Agent (AIDA)
+ * Diffs and uploads reports while the MIS adapter is still producing the rest
+ * Reports pass from the adapter to a diff stage and then to an upload stage, each stage running
+ * on its own thread with a bounded queue in front of it
+ * @package AIDA
+ */
+
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.io.File;
+
+class reportPipeline implements reportListener
+{
+	/**
+	 * the number of reports that can wait in front of each stage
+	 */
+	protected static final int queueSize = 8;
+
+	/**
+	 * passed down the pipeline after the last report
+	 */
+	protected static final File endOfReports = new File("");
+
+	/**
+	 * the agent running the diffs and uploads
+	 */
+	protected aida agent;
+
+	/**
+	 * whether changed reports are uploaded to the server
+	 */
+	protected boolean upload;
+
+	/**
+	 * reports waiting to be diffed
+	 */
+	protected BlockingQueue<File> diffQueue = new ArrayBlockingQueue<File>(queueSize);
+
+	/**
+	 * reports waiting to be uploaded
+	 */
+	protected BlockingQueue<File> uploadQueue = new ArrayBlockingQueue<File>(queueSize);
+
+	/**
+	 * the reports that have been through every stage
+	 */
+	protected LinkedList<File> completed = new LinkedList<File>();
+
+	/**
+	 * the reports the server has not confirmed receiving
+	 */
+	protected LinkedList<File> failedUploads = new LinkedList<File>();
+
+	/**
+	 * the number of reports diffed and the number that had changed
+	 */
+	protected int diffed = 0;
+	protected int changed = 0;
+
+	/**
+	 * the stage threads
+	 */
+	protected Thread diffStage;
+	protected Thread uploadStage;
+
+	/**
+	 * Constructor
+	 * @param agent the agent running the diffs and uploads
+	 * @param upload whether changed reports are uploaded to the server
+	 */
+	public reportPipeline(aida agent, boolean upload)
+	{
+		this.agent = agent;
+		this.upload = upload;
+	}
+
+	/**
+	 * Start the stage threads
+	 */
+	public void start()
+	{
+		diffStage = new Thread("diff-stage")
+		{
+			public void run()
+			{
+				runDiffStage();
+			}
+		};
+
+		diffStage.start();
+
+		if(upload)
+		{
+			uploadStage = new Thread("upload-stage")
+			{
+				public void run()
+				{
+					runUploadStage();
+				}
+			};
+
+			uploadStage.start();
+		}
+	}
+
+	/**
+	 * Take a report the adapter has finished writing
+	 * Waits while the diff stage has a full queue
+	 * @param reportFile the report file
+	 */
+	public void reportFinished(File reportFile)
+	{
+		put(diffQueue, reportFile);
+	}
+
+	/**
+	 * Wait for the reports already taken to go through every stage
+	 */
+	public void finish()
+	{
+		put(diffQueue, endOfReports);
+
+		try
+		{
+			diffStage.join();
+			if(uploadStage != null) uploadStage.join();
+		}
+		catch(InterruptedException e)
+		{
+			aida.logAdd("!Report pipeline was interrupted");
+		}
+
+		if(diffed == 0)
+		{
+			aida.logAdd("No reports generated");
+		}
+		else if(changed == 0)
+		{
+			aida.logAdd("Reports are identical to previous");
+		}
+	}
+
+	/**
+	 * Get the reports that have been through every stage
+	 * @return the report files
+	 */
+	public synchronized LinkedList<File> getCompletedReports()
+	{
+		return new LinkedList<File>(completed);
+	}
+
+	/**
+	 * Get the reports whose upload the server has not confirmed
+	 * @return the report files
+	 */
+	public synchronized LinkedList<File> getFailedUploads()
+	{
+		return new LinkedList<File>(failedUploads);
+	}
+
+	/**
+	 * Diff reports as they arrive, passing changed ones on to be uploaded
+	 */
+	protected void runDiffStage()
+	{
+		aida.logAdd("Comparing reports");
+
+		File reportFile;
+
+		while((reportFile = take(diffQueue)) != endOfReports)
+		{
+			try
+			{
+				diffed++;
+
+				if(agent.compareReport(reportFile))
+				{
+					changed++;
+
+					if(upload)
+					{
+						put(uploadQueue, reportFile);
+						continue;
+					}
+				}
+
+				completed(reportFile);
+			}
+			catch(RuntimeException e)
+			{
+				//keep taking reports so the adapter is never left waiting
+				aida.logAdd("!"+reportFile.getName()+" could not be compared");
+				aida.logAdd("!"+e);
+			}
+		}
+
+		if(upload) put(uploadQueue, endOfReports);
+	}
+
+	/**
+	 * Upload changed reports as they arrive
+	 */
+	protected void runUploadStage()
+	{
+		File reportFile;
+		boolean first = true;
+
+		while((reportFile = take(uploadQueue)) != endOfReports)
+		{
+			if(first)
+			{
+				aida.logAdd("Sending report files");
+				first = false;
+			}
+
+			try
+			{
+				//a report the server has not confirmed keeps its previous report, so its changes are sent again
+				if(agent.transmitFile(reportFile.getName())) completed(reportFile);
+				else failed(reportFile);
+			}
+			catch(RuntimeException e)
+			{
+				aida.logAdd("!"+reportFile.getName()+" could not be sent");
+				aida.logAdd("!"+e);
+				failed(reportFile);
+			}
+		}
+	}
+
+	/**
+	 * Record a report that has been through every stage
+	 * @param reportFile the report file
+	 */
+	protected synchronized void completed(File reportFile)
+	{
+		if(!completed.contains(reportFile)) completed.add(reportFile);
+	}
+
+	/**
+	 * Record a report whose upload the server has not confirmed
+	 * @param reportFile the report file
+	 */
+	protected synchronized void failed(File reportFile)
+	{
+		if(!failedUploads.contains(reportFile)) failedUploads.add(reportFile);
+	}
+
+	/**
+	 * Put a report on a queue, waiting for room
+	 * @param queue the queue
+	 * @param reportFile the report file
+	 */
+	protected void put(BlockingQueue<File> queue, File reportFile)
+	{
+		try
+		{
+			queue.put(reportFile);
+		}
+		catch(InterruptedException e)
+		{
+			aida.logAdd("!Report pipeline was interrupted");
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Take a report from a queue, waiting for one to arrive
+	 * @param queue the queue
+	 * @return the report file, or the end marker if interrupted
+	 */
+	protected File take(BlockingQueue<File> queue)
+	{
+		try
+		{
+			return queue.take();
+		}
+		catch(InterruptedException e)
+		{
+			aida.logAdd("!Report pipeline was interrupted");
+			return endOfReports;
+		}
+	}
+}
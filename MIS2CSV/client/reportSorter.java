@@ -0,0 +1,442 @@
+/*
+ *    Copyright 2010 Schools Data Services Limited
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/**
+ * Automated IRIS Data Transfer Agent (AIDA)
+ * External merge sort for report files that are too large to diff in memory
+ * @package AIDA
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+
+class reportSorter
+{
+	/**
+	 * the most runs that are merged at once
+	 */
+	protected static final int maxMergeRuns = 64;
+
+	/**
+	 * rough per line overhead of a String held in memory, in bytes
+	 */
+	protected static final int lineOverhead = 64;
+
+	/**
+	 * the folder sorted runs are written to
+	 */
+	protected File scratchDir;
+
+	/**
+	 * the memory budget for a single run, in bytes
+	 */
+	protected long memoryBudget;
+
+	/**
+	 * Constructor
+	 * @param scratchDir the folder sorted runs are written to
+	 * @param memoryBudget the memory budget in bytes
+	 */
+	public reportSorter(File scratchDir, long memoryBudget)
+	{
+		this.scratchDir = scratchDir;
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * the character separating a row key from the line when sorting by key
+	 */
+	public static final char keySeparator = '\u0000';
+
+	/**
+	 * Sort the lines of a report file
+	 * The file is read through the CSV reader in chunks that fit the memory budget, each chunk is sorted
+	 * and written to the scratch folder as a run and the runs are then merged
+	 * @param csvFile the report file to sort
+	 * @return a reader returning the report lines in sorted order
+	 */
+	public sortedReader sort(File csvFile) throws IOException
+	{
+		return sort(csvFile, null);
+	}
+
+	/**
+	 * Sort the lines of a report file by their key columns
+	 * Each line is returned prefixed by its key and the key separator, so lines with the same key are adjacent
+	 * @param csvFile the report file to sort
+	 * @param keys the key column indexes or null to sort on the whole line
+	 * @return a reader returning the report lines in sorted order
+	 */
+	public sortedReader sort(File csvFile, int[] keys) throws IOException
+	{
+		LinkedList<File> runs = new LinkedList<File>();
+
+		try
+		{
+			CSVReader reader = new CSVReader(new FileReader(csvFile));
+
+			ArrayList<String> lines = new ArrayList<String>();
+			long used = 0;
+
+			//closed whatever happens, as an open report could not be moved on Windows
+			try
+			{
+				while(reader.nextRow())
+				{
+					String line = encode(reader.getRowAsString());
+
+					if(keys != null) line = encode(reader.getColumnsAsString(keys))+keySeparator+line;
+
+					lines.add(line);
+					used += line.length()*2 + lineOverhead;
+
+					if(used >= memoryBudget)
+					{
+						runs.add(writeRun(lines));
+						lines.clear();
+						used = 0;
+					}
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+
+			if(!lines.isEmpty() || runs.isEmpty())
+			{
+				runs.add(writeRun(lines));
+				lines.clear();
+			}
+
+			//merge down until the remaining runs can all be read at once
+			while(runs.size() > maxMergeRuns)
+			{
+				LinkedList<File> group = new LinkedList<File>(runs.subList(0, maxMergeRuns));
+				File merged = File.createTempFile("run", ".srt", scratchDir);
+
+				//the group and the merged run stay in the list until the merge succeeds, so a failure deletes them all
+				runs.add(merged);
+				mergeRuns(group, merged);
+				runs.subList(0, maxMergeRuns).clear();
+			}
+
+			return new sortedReader(runs);
+		}
+		catch(IOException e)
+		{
+			deleteRuns(runs);
+			throw e;
+		}
+	}
+
+	/**
+	 * Escape the line breaks of quoted multi-line values so a line can be stored on one line of a run
+	 * Runs are sorted and merged on the encoded form
+	 * @param line the line to encode
+	 * @return the encoded line
+	 */
+	public static String encode(String line)
+	{
+		if(line.indexOf('\\') < 0 && line.indexOf('\n') < 0 && line.indexOf('\r') < 0) return line;
+
+		StringBuilder sb = new StringBuilder(line.length()+16);
+
+		for(int i=0; i<line.length(); i++)
+		{
+			char c = line.charAt(i);
+
+			if(c == '\\') sb.append("\\\\");
+			else if(c == '\n') sb.append("\\n");
+			else if(c == '\r') sb.append("\\r");
+			else sb.append(c);
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Reverse the escaping done by encode()
+	 * @param line the encoded line
+	 * @return the original line
+	 */
+	public static String decode(String line)
+	{
+		if(line.indexOf('\\') < 0) return line;
+
+		StringBuilder sb = new StringBuilder(line.length());
+
+		for(int i=0; i<line.length(); i++)
+		{
+			char c = line.charAt(i);
+
+			if(c == '\\' && i+1 < line.length())
+			{
+				char e = line.charAt(++i);
+
+				if(e == 'n') sb.append('\n');
+				else if(e == 'r') sb.append('\r');
+				else sb.append(e);
+			}
+			else sb.append(c);
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Sort lines and write them to a new run file
+	 * @param lines the lines to write
+	 * @return the run file
+	 */
+	protected File writeRun(ArrayList<String> lines) throws IOException
+	{
+		Collections.sort(lines);
+
+		File run = File.createTempFile("run", ".srt", scratchDir);
+
+		try
+		{
+			BufferedWriter fileOut = new BufferedWriter(new FileWriter(run));
+
+			try
+			{
+				for(int i=0; i<lines.size(); i++)
+				{
+					fileOut.write(lines.get(i));
+					fileOut.write("\n");
+				}
+
+				fileOut.flush();
+			}
+			finally
+			{
+				fileOut.close();
+			}
+		}
+		catch(IOException e)
+		{
+			run.delete();
+			throw e;
+		}
+
+		return run;
+	}
+
+	/**
+	 * Merge a group of runs into a single run
+	 * @param group the runs to merge, which are deleted once read
+	 * @param run the run file to write the merged lines to
+	 */
+	protected void mergeRuns(LinkedList<File> group, File run) throws IOException
+	{
+		sortedReader reader = new sortedReader(group);
+
+		try
+		{
+			BufferedWriter fileOut = new BufferedWriter(new FileWriter(run));
+
+			try
+			{
+				String line;
+
+				while((line = reader.readLine()) != null)
+				{
+					fileOut.write(line);
+					fileOut.write("\n");
+				}
+
+				fileOut.flush();
+			}
+			finally
+			{
+				fileOut.close();
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Delete run files
+	 * @param runs the runs to delete
+	 */
+	protected static void deleteRuns(LinkedList<File> runs)
+	{
+		while(!runs.isEmpty())
+		{
+			File run = runs.removeFirst();
+
+			if(run.exists() && !run.delete())
+			{
+				aida.logAdd("!"+run.getName()+" could not be deleted");
+			}
+		}
+	}
+
+	/**
+	 * Reads the lines of a set of sorted runs in merged order
+	 * Lines are returned in their encoded form and the run files are deleted when the reader is closed
+	 */
+	static class sortedReader
+	{
+		/**
+		 * the runs being read
+		 */
+		protected LinkedList<File> runs;
+
+		/**
+		 * the head line of each open run, ordered by line
+		 */
+		protected PriorityQueue<runHead> heads = new PriorityQueue<runHead>();
+
+		/**
+		 * Constructor
+		 * @param runs the sorted runs to read
+		 */
+		sortedReader(LinkedList<File> runs) throws IOException
+		{
+			this.runs = runs;
+
+			try
+			{
+				for(int i=0; i<runs.size(); i++)
+				{
+					runHead head = new runHead(new BufferedReader(new FileReader(runs.get(i))));
+
+					try
+					{
+						if(head.advance()) heads.add(head);
+					}
+					catch(IOException e)
+					{
+						head.close();
+						throw e;
+					}
+				}
+			}
+			catch(IOException e)
+			{
+				//the runs are left for the caller to delete
+				while(!heads.isEmpty())
+				{
+					heads.poll().close();
+				}
+
+				throw e;
+			}
+		}
+
+		/**
+		 * Read the next line in sorted order
+		 * @return the next encoded line or null if all runs have been read
+		 */
+		public String readLine() throws IOException
+		{
+			runHead head = heads.poll();
+
+			if(head == null) return null;
+
+			String line = head.line;
+
+			if(head.advance()) heads.add(head);
+
+			return line;
+		}
+
+		/**
+		 * Close the runs and delete them
+		 */
+		public void close()
+		{
+			while(!heads.isEmpty())
+			{
+				heads.poll().close();
+			}
+
+			deleteRuns(runs);
+		}
+	}
+
+	/**
+	 * The current line of an open run
+	 */
+	static class runHead implements Comparable<runHead>
+	{
+		/**
+		 * the run being read
+		 */
+		protected BufferedReader reader;
+
+		/**
+		 * the current line of the run
+		 */
+		protected String line;
+
+		/**
+		 * Constructor
+		 * @param reader the run being read
+		 */
+		runHead(BufferedReader reader)
+		{
+			this.reader = reader;
+		}
+
+		/**
+		 * Move to the next line of the run, closing it at the end
+		 * @return if there was another line
+		 */
+		boolean advance() throws IOException
+		{
+			line = reader.readLine();
+
+			if(line == null) close();
+
+			return line != null;
+		}
+
+		/**
+		 * Close the run
+		 */
+		void close()
+		{
+			try
+			{
+				reader.close();
+			}
+			catch(IOException e)
+			{
+			}
+		}
+
+		public int compareTo(runHead other)
+		{
+			return line.compareTo(other.line);
+		}
+	}
+}
@@ -0,0 +1,728 @@
+/*
+ *    Copyright 2010 Schools Data Services Limited
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/**
+ * Automated IRIS Data Transfer Agent (AIDA)
+ * Fingerprint index of the rows of a report file
+ * The index is a sidecar file holding a 64 bit hash and the byte offset of every row, sorted by hash,
+ * so a report can be diffed against the previous one without parsing the previous report again.
+ * The header records the length, modification time and MD5 hash of the report the index was built from,
+ * so an index is never used with a report that has been rewritten since.
+ * @package AIDA
+ */
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+
+class rowIndex
+{
+	/**
+	 * the file name suffix of index files
+	 */
+	public static final String suffix = ".idx";
+
+	/**
+	 * marks the start of an index file
+	 */
+	protected static final int magic = 0x41494458;
+
+	/**
+	 * the index file format version
+	 */
+	protected static final int formatVersion = 2;
+
+	/**
+	 * the length of the report MD5 hash in the header, in hex digits
+	 */
+	protected static final int hashLength = 32;
+
+	/**
+	 * the size of the index file header in bytes
+	 */
+	protected static final int headerSize = 28+hashLength;
+
+	/**
+	 * the size of an index entry in bytes
+	 */
+	protected static final int entrySize = 16;
+
+	/**
+	 * the index entries
+	 */
+	protected ByteBuffer entries;
+
+	/**
+	 * the number of rows in the index
+	 */
+	protected int count;
+
+	/**
+	 * the entries that have been matched to a row of the current report
+	 */
+	protected BitSet consumed;
+
+	/**
+	 * Constructor
+	 * @param entries the index entries
+	 * @param count the number of rows in the index
+	 */
+	protected rowIndex(ByteBuffer entries, int count)
+	{
+		this.entries = entries;
+		this.count = count;
+		consumed = new BitSet(count);
+	}
+
+	/**
+	 * Check if a file is an index file
+	 * @param file the file to check
+	 * @return if the file is an index file
+	 */
+	public static boolean isIndexFile(File file)
+	{
+		return file.getName().endsWith(suffix);
+	}
+
+	/**
+	 * Get the index file of a report
+	 * @param dataFile the report file
+	 * @return the index file
+	 */
+	public static File getIndexFile(File dataFile)
+	{
+		return new File(dataFile.getPath()+suffix);
+	}
+
+	/**
+	 * Open the index of a report
+	 * The entries are read into memory with a single channel read rather than mapped, as a mapped
+	 * file stays locked on Windows until it is garbage collected and could not be rotated
+	 * @param dataFile the report file
+	 * @param md5 the MD5 hash of the report
+	 * @return the index or null if there is no valid index for the report as it is now
+	 */
+	public static rowIndex open(File dataFile, String md5) throws IOException
+	{
+		RandomAccessFile raf = openIndexFile(dataFile, md5);
+
+		if(raf == null) return null;
+
+		try
+		{
+			int count = raf.readInt();
+
+			ByteBuffer entries = ByteBuffer.allocate(count*entrySize);
+			FileChannel channel = raf.getChannel();
+
+			channel.position(headerSize);
+
+			while(entries.hasRemaining() && channel.read(entries) >= 0);
+
+			if(entries.hasRemaining()) return null;
+
+			return new rowIndex(entries, count);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Check if a report has an up to date index
+	 * @param dataFile the report file
+	 * @param md5 the MD5 hash of the report
+	 * @return if the index is valid
+	 */
+	public static boolean isValid(File dataFile, String md5) throws IOException
+	{
+		RandomAccessFile raf = openIndexFile(dataFile, md5);
+
+		if(raf == null) return false;
+
+		raf.close();
+
+		return true;
+	}
+
+	/**
+	 * Get the number of rows in the index of a report without reading its entries
+	 * @param dataFile the report file
+	 * @param md5 the MD5 hash of the report
+	 * @return the number of rows or -1 if there is no valid index for the report as it is now
+	 */
+	public static int getSize(File dataFile, String md5) throws IOException
+	{
+		RandomAccessFile raf = openIndexFile(dataFile, md5);
+
+		if(raf == null) return -1;
+
+		try
+		{
+			return raf.readInt();
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Move the index of a report over to an identical copy of the report, rather than building it again
+	 * The copy has the same length and MD5 hash, so only the modified time in the index header is changed
+	 * @param dataFile the report file with a valid index
+	 * @param copyFile the identical copy
+	 * @param md5 the MD5 hash of both
+	 * @return if the index was moved
+	 */
+	public static boolean carryOver(File dataFile, File copyFile, String md5) throws IOException
+	{
+		if(dataFile.length() != copyFile.length()) return false;
+
+		RandomAccessFile raf = openIndexFile(dataFile, md5);
+
+		if(raf == null) return false;
+
+		raf.close();
+
+		File copyIndex = getIndexFile(copyFile);
+
+		copyIndex.delete();
+
+		if(!getIndexFile(dataFile).renameTo(copyIndex)) return false;
+
+		raf = new RandomAccessFile(copyIndex, "rw");
+
+		try
+		{
+			//after the magic number, format version and report length
+			raf.seek(16);
+			raf.writeLong(copyFile.lastModified());
+		}
+		finally
+		{
+			raf.close();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Open the index file of a report and check its header
+	 * @param dataFile the report file
+	 * @param md5 the MD5 hash of the report
+	 * @return the index file positioned at the row count or null if there is no valid index for the report as it is now
+	 */
+	protected static RandomAccessFile openIndexFile(File dataFile, String md5) throws IOException
+	{
+		File indexFile = getIndexFile(dataFile);
+
+		if(md5.length() == 0 || !indexFile.exists() || indexFile.length() < headerSize) return null;
+
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+
+		try
+		{
+			byte[] hash = new byte[hashLength];
+
+			//an index left over from a different version of the report is no use, even if the length is the same
+			if(raf.readInt() == magic && raf.readInt() == formatVersion && raf.readLong() == dataFile.length()
+				&& raf.readLong() == dataFile.lastModified() && raf.read(hash) == hashLength && Arrays.equals(hash, getHashBytes(md5)))
+			{
+				int count = raf.readInt();
+
+				if(count >= 0 && indexFile.length() == headerSize+(long)count*entrySize)
+				{
+					raf.seek(headerSize-4);
+					return raf;
+				}
+			}
+		}
+		catch(IOException e)
+		{
+		}
+
+		raf.close();
+
+		return null;
+	}
+
+	/**
+	 * Get the MD5 hash of a report as it is stored in the index header
+	 * @param md5 the MD5 hash in hex, without leading zeros
+	 * @return the hash in hex padded to its full length with leading zeros
+	 */
+	protected static byte[] getHashBytes(String md5)
+	{
+		StringBuilder padded = new StringBuilder(hashLength);
+
+		for(int i=md5.length(); i<hashLength; i++) padded.append('0');
+
+		padded.append(md5);
+
+		return padded.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Get the number of rows in the index
+	 * @return the number of rows
+	 */
+	public int size()
+	{
+		return count;
+	}
+
+	/**
+	 * Match a row of the current report to an unmatched row with the same hash
+	 * @param hash the row hash
+	 * @return if an unmatched row with the same hash was found
+	 */
+	public boolean consume(long hash)
+	{
+		//binary search for the first entry with this hash
+		int low = 0;
+		int high = count;
+
+		while(low < high)
+		{
+			int mid = (low+high) >>> 1;
+
+			if(entries.getLong(mid*entrySize) < hash) low = mid+1;
+			else high = mid;
+		}
+
+		for(int i=low; i<count && entries.getLong(i*entrySize) == hash; i++)
+		{
+			if(!consumed.get(i))
+			{
+				consumed.set(i);
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Get the offsets of the rows that have not been matched
+	 * @return the offsets in file order
+	 */
+	public long[] getUnconsumedOffsets()
+	{
+		long[] offsets = new long[count-consumed.cardinality()];
+		int n = 0;
+
+		for(int i=consumed.nextClearBit(0); i<count; i=consumed.nextClearBit(i+1))
+		{
+			offsets[n++] = entries.getLong(i*entrySize+8);
+		}
+
+		Arrays.sort(offsets);
+
+		return offsets;
+	}
+
+	/**
+	 * Build the index of a report by scanning it
+	 * @param dataFile the report file
+	 * @param md5 the MD5 hash of the report
+	 */
+	public static void build(File dataFile, String md5) throws IOException
+	{
+		indexBuilder builder = new indexBuilder();
+		rowScanner scanner = new rowScanner(new FileInputStream(dataFile));
+
+		try
+		{
+			while(scanner.next())
+			{
+				builder.add(scanner.hash, scanner.offset);
+			}
+		}
+		finally
+		{
+			scanner.close();
+		}
+
+		builder.write(dataFile, md5);
+	}
+
+	/**
+	 * Collects row hashes and offsets and writes them as an index file
+	 */
+	static class indexBuilder
+	{
+		/**
+		 * the row hashes
+		 */
+		protected long[] hashes = new long[1024];
+
+		/**
+		 * the row offsets
+		 */
+		protected long[] offsets = new long[1024];
+
+		/**
+		 * the number of rows collected
+		 */
+		protected int count = 0;
+
+		/**
+		 * Add a row
+		 * @param hash the row hash
+		 * @param offset the row offset
+		 */
+		void add(long hash, long offset)
+		{
+			if(count == hashes.length)
+			{
+				hashes = Arrays.copyOf(hashes, count*2);
+				offsets = Arrays.copyOf(offsets, count*2);
+			}
+
+			hashes[count] = hash;
+			offsets[count] = offset;
+			count++;
+		}
+
+		/**
+		 * Write the index of a report
+		 * The index is written to a temporary file first so a partly written index is never used
+		 * @param dataFile the report file the rows were read from
+		 * @param md5 the MD5 hash of the report
+		 */
+		void write(File dataFile, String md5) throws IOException
+		{
+			if(md5.length() == 0 || md5.length() > hashLength) throw new IOException(dataFile.getName()+" has no MD5 hash to index");
+
+			sort(0, count-1);
+
+			File indexFile = getIndexFile(dataFile);
+			File tmpFile = new File(dataFile.getPath()+".tmp"+suffix);
+
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536));
+
+			try
+			{
+				out.writeInt(magic);
+				out.writeInt(formatVersion);
+				out.writeLong(dataFile.length());
+				out.writeLong(dataFile.lastModified());
+				out.write(getHashBytes(md5));
+				out.writeInt(count);
+
+				for(int i=0; i<count; i++)
+				{
+					out.writeLong(hashes[i]);
+					out.writeLong(offsets[i]);
+				}
+
+				out.flush();
+			}
+			finally
+			{
+				out.close();
+			}
+
+			if(indexFile.exists()) indexFile.delete();
+
+			if(!tmpFile.renameTo(indexFile))
+			{
+				tmpFile.delete();
+				throw new IOException(indexFile.getName()+" could not be written");
+			}
+		}
+
+		/**
+		 * Sort the collected rows by hash
+		 * @param low the first row to sort
+		 * @param high the last row to sort
+		 */
+		protected void sort(int low, int high)
+		{
+			while(high-low > 16)
+			{
+				long pivot = hashes[(low+high) >>> 1];
+				int i = low;
+				int j = high;
+
+				while(i <= j)
+				{
+					while(hashes[i] < pivot) i++;
+					while(hashes[j] > pivot) j--;
+
+					if(i <= j) swap(i++, j--);
+				}
+
+				//recurse into the smaller half to keep the stack shallow
+				if(j-low < high-i)
+				{
+					sort(low, j);
+					low = i;
+				}
+				else
+				{
+					sort(i, high);
+					high = j;
+				}
+			}
+
+			for(int i=low+1; i<=high; i++)
+			{
+				for(int j=i; j>low && hashes[j-1] > hashes[j]; j--)
+				{
+					swap(j, j-1);
+				}
+			}
+		}
+
+		/**
+		 * Swap two rows
+		 */
+		protected void swap(int a, int b)
+		{
+			long hash = hashes[a];
+			hashes[a] = hashes[b];
+			hashes[b] = hash;
+
+			long offset = offsets[a];
+			offsets[a] = offsets[b];
+			offsets[b] = offset;
+		}
+	}
+
+	/**
+	 * Splits a report file into rows without parsing the columns
+	 * Rows end at a line break outside quotes, matching the way CSVReader joins multi-line values.
+	 * Blank lines and lines commented with # are skipped. Each row is hashed with 64 bit FNV-1a
+	 * over its bytes, not counting the line break.
+	 */
+	static class rowScanner
+	{
+		/**
+		 * the FNV-1a offset basis
+		 */
+		protected static final long fnvBasis = 0xcbf29ce484222325L;
+
+		/**
+		 * the FNV-1a prime
+		 */
+		protected static final long fnvPrime = 0x100000001b3L;
+
+		/**
+		 * the report being read
+		 */
+		protected InputStream in;
+
+		/**
+		 * the read buffer
+		 */
+		protected byte[] buf = new byte[65536];
+
+		/**
+		 * the position in the read buffer
+		 */
+		protected int pos = 0;
+
+		/**
+		 * the number of bytes in the read buffer
+		 */
+		protected int len = 0;
+
+		/**
+		 * the file offset of the start of the read buffer
+		 */
+		protected long bufOffset;
+
+		/**
+		 * the bytes of the current row
+		 */
+		public byte[] row = new byte[256];
+
+		/**
+		 * the length of the current row
+		 */
+		public int rowLength;
+
+		/**
+		 * the file offset of the current row
+		 */
+		public long offset;
+
+		/**
+		 * the hash of the current row
+		 */
+		public long hash;
+
+		/**
+		 * the report being read when rows are read by offset
+		 */
+		protected RandomAccessFile raf;
+
+		/**
+		 * Constructor
+		 * @param in the report being read
+		 */
+		rowScanner(InputStream in)
+		{
+			this.in = in;
+		}
+
+		/**
+		 * Constructor for reading rows by offset
+		 * @param raf the report being read
+		 */
+		rowScanner(final RandomAccessFile raf)
+		{
+			this.raf = raf;
+
+			in = new InputStream()
+			{
+				public int read() throws IOException
+				{
+					return raf.read();
+				}
+
+				public int read(byte[] b, int off, int len) throws IOException
+				{
+					return raf.read(b, off, len);
+				}
+			};
+		}
+
+		/**
+		 * Move to a row offset, reusing the read buffer if it already holds that part of the report
+		 * @param rowOffset the offset of the row
+		 */
+		void seek(long rowOffset) throws IOException
+		{
+			if(rowOffset >= bufOffset && rowOffset < bufOffset+len)
+			{
+				pos = (int)(rowOffset-bufOffset);
+			}
+			else
+			{
+				raf.seek(rowOffset);
+				bufOffset = rowOffset;
+				pos = 0;
+				len = 0;
+			}
+		}
+
+		/**
+		 * Move to the next row
+		 * @return if there was another row
+		 */
+		boolean next() throws IOException
+		{
+			while(true)
+			{
+				rowLength = 0;
+				offset = bufOffset+pos;
+
+				boolean inQuotes = false;
+				int b;
+
+				while((b = read()) >= 0)
+				{
+					if(b == '\n' && !inQuotes) break;
+
+					if(b == '"') inQuotes = !inQuotes;
+
+					if(rowLength == row.length) row = Arrays.copyOf(row, rowLength*2);
+
+					row[rowLength++] = (byte)b;
+				}
+
+				//the carriage return of a \r\n line break is not part of the row
+				if(rowLength > 0 && row[rowLength-1] == '\r') rowLength--;
+
+				if(rowLength > 0 && row[0] != '#')
+				{
+					hash = fnvBasis;
+
+					for(int i=0; i<rowLength; i++)
+					{
+						hash ^= row[i] & 0xff;
+						hash *= fnvPrime;
+					}
+
+					return true;
+				}
+
+				if(b < 0) return false;
+			}
+		}
+
+		/**
+		 * Read the next byte of the report
+		 * @return the byte or -1 at the end of the report
+		 */
+		protected int read() throws IOException
+		{
+			if(pos == len)
+			{
+				bufOffset += len;
+				pos = 0;
+				len = in.read(buf, 0, buf.length);
+
+				if(len <= 0)
+				{
+					len = 0;
+					return -1;
+				}
+			}
+
+			return buf[pos++] & 0xff;
+		}
+
+		/**
+		 * Convert the current row to a CSV string in the format returned by CSVReader.readNextAsString()
+		 * @return the CSV string or null if the row has no columns
+		 */
+		String toCSVString() throws IOException
+		{
+			CSVReader reader = new CSVReader(new StringReader(new String(row, 0, rowLength)));
+			String line = reader.readNextAsString();
+			reader.close();
+
+			return line;
+		}
+
+		/**
+		 * Close the report
+		 */
+		void close() throws IOException
+		{
+			if(raf != null) raf.close();
+			else in.close();
+		}
+	}
+}
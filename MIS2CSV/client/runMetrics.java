@@ -0,0 +1,227 @@
+/*
+ *    Copyright 2010 Schools Data Services Limited
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/**
+ * Automated IRIS Data Transfer Agent (AIDA)
+ * Timings and counters for a single run, written as a CSV file so runs can be compared across sites
+ * Each line is the run revision, the scope (run, phase or report), the name within the scope, the metric and its value
+ * @package AIDA
+ */
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.io.IOException;
+
+class runMetrics
+{
+	/**
+	 * metrics of the whole run
+	 */
+	public static final String scopeRun = "run";
+
+	/**
+	 * timings of the stages of a run, such as the handshake
+	 */
+	public static final String scopePhase = "phase";
+
+	/**
+	 * metrics of a single report
+	 */
+	public static final String scopeReport = "report";
+
+	/**
+	 * the file name prefix of metrics files
+	 */
+	public static final String filePrefix = "metrics_";
+
+	/**
+	 * the file name suffix of metrics files
+	 */
+	public static final String fileSuffix = ".csv";
+
+	/**
+	 * separates the parts of a metric key
+	 */
+	protected static final char keySeparator = '\t';
+
+	/**
+	 * the revision of the run
+	 */
+	protected String revision;
+
+	/**
+	 * the values, by scope, name and metric, in the order they were first recorded
+	 */
+	protected LinkedHashMap<String, long[]> values = new LinkedHashMap<String, long[]>();
+
+	/**
+	 * Constructor
+	 * @param revision the revision of the run
+	 */
+	public runMetrics(String revision)
+	{
+		this.revision = revision;
+	}
+
+	/**
+	 * Add to a counter or timing
+	 * @param scope run, phase or report
+	 * @param name the name within the scope, such as the report file name
+	 * @param metric the metric
+	 * @param value the amount to add
+	 */
+	public synchronized void add(String scope, String name, String metric, long value)
+	{
+		long[] total = values.get(getKey(scope, name, metric));
+
+		if(total == null) values.put(getKey(scope, name, metric), new long[] {value});
+		else total[0] += value;
+	}
+
+	/**
+	 * Set a value, replacing any earlier value
+	 * @param scope run, phase or report
+	 * @param name the name within the scope
+	 * @param metric the metric
+	 * @param value the value
+	 */
+	public synchronized void set(String scope, String name, String metric, long value)
+	{
+		values.put(getKey(scope, name, metric), new long[] {value});
+	}
+
+	/**
+	 * Get a value
+	 * @param scope run, phase or report
+	 * @param name the name within the scope
+	 * @param metric the metric
+	 * @return the value or 0 if it has not been recorded
+	 */
+	public synchronized long get(String scope, String name, String metric)
+	{
+		long[] value = values.get(getKey(scope, name, metric));
+
+		return value == null ? 0 : value[0];
+	}
+
+	/**
+	 * Get the milliseconds since a time taken from System.nanoTime()
+	 * @param start the start time in nanoseconds
+	 * @return the elapsed time in milliseconds
+	 */
+	public static long since(long start)
+	{
+		return (System.nanoTime()-start)/1000000;
+	}
+
+	/**
+	 * Get the metrics as CSV, in the same format as the reports
+	 * @return the CSV lines
+	 */
+	public String toCSV()
+	{
+		StringWriter out = new StringWriter();
+
+		try
+		{
+			write(out);
+		}
+		catch(IOException e)
+		{
+		}
+
+		return out.toString();
+	}
+
+	/**
+	 * Write the metrics to a file in a folder, deleting the oldest metrics files so only the newest are kept
+	 * @param dir the folder
+	 * @param keep the number of metrics files to keep
+	 * @return the metrics file
+	 */
+	public File save(File dir, int keep) throws IOException
+	{
+		if(!dir.exists()) dir.mkdirs();
+
+		File file = new File(dir, filePrefix+revision+fileSuffix);
+		Writer out = new FileWriter(file);
+
+		try
+		{
+			write(out);
+		}
+		finally
+		{
+			out.close();
+		}
+
+		//revisions are timestamps, so file names sort oldest first
+		File[] files = dir.listFiles();
+		Arrays.sort(files);
+
+		int found = 0;
+
+		for(int i=files.length-1; i>=0; i--)
+		{
+			String fileName = files[i].getName();
+
+			if(fileName.startsWith(filePrefix) && fileName.endsWith(fileSuffix) && ++found > keep) files[i].delete();
+		}
+
+		return file;
+	}
+
+	/**
+	 * Write the metrics as CSV
+	 * @param out the writer
+	 */
+	protected synchronized void write(Writer out) throws IOException
+	{
+		csvWriter csvOut = new csvWriter(out);
+
+		Iterator<Map.Entry<String, long[]>> it = values.entrySet().iterator();
+
+		while(it.hasNext())
+		{
+			Map.Entry<String, long[]> entry = it.next();
+			String[] key = entry.getKey().split(String.valueOf(keySeparator), 3);
+
+			csvOut.writeRow(new String[] {revision, key[0], key[1], key[2], String.valueOf(entry.getValue()[0])});
+		}
+
+		csvOut.flush();
+	}
+
+	/**
+	 * Get the key of a value
+	 * @param scope run, phase or report
+	 * @param name the name within the scope
+	 * @param metric the metric
+	 * @return the key
+	 */
+	protected static String getKey(String scope, String name, String metric)
+	{
+		return scope+keySeparator+name+keySeparator+metric;
+	}
+}
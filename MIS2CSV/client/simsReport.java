@@ -75,7 +75,7 @@ public class simsReport extends misReport
 							int exitVal = importer.waitFor();
 	
 							//log the process output stream
-							logStream(importer);
+							logStream(importer, exitVal);
 						}
 						else
 						{
@@ -83,7 +83,8 @@ public class simsReport extends misReport
 							aida.logAdd("!Report Definition could not be found");
 						}
 					}
-					else if(reportArray.length == 2)
+					//get the report file name and report name, followed by any options
+					else if(reportArray.length >= 2)
 					{
 
 						String fileName = reportArray[0];
@@ -151,7 +152,7 @@ public class simsReport extends misReport
 							}
 
 							//log the process output stream
-							logStream(reporter);
+							logStream(reporter, exitVal);
 						}
 						else
 						{
@@ -165,6 +166,7 @@ public class simsReport extends misReport
 				}
 
 				concatenate();
+				finishReports();
 
 				return true;
 			}
@@ -172,12 +174,14 @@ public class simsReport extends misReport
 			{
 				aida.logAdd("!SIMS application was interrupted");
 				aida.logAdd("!"+e.getMessage());
+				deleteParts();
 				return false;
 			}
 			catch(IOException e)
 			{
 				aida.logAdd("!SIMS Commander Reporter could not be run");
 				aida.logAdd("!"+e.getMessage());
+				deleteParts();
 				return false;
 			}
 		}
@@ -187,9 +191,11 @@ public class simsReport extends misReport
 
 	/**
 	 * Log the information returned from a process
+	 * The output is logged as errors if the process failed, as it usually says why
 	 * @param pr the process we want to log
+	 * @param exitVal the exit value of the process
 	 */
-	public void logStream(Process pr)
+	public void logStream(Process pr, int exitVal)
 	{
 		try
 		{
@@ -199,7 +205,7 @@ public class simsReport extends misReport
 	
 			while(line != null)
 			{
-				if(!line.trim().equals("")) aida.logAdd(line);
+				if(!line.trim().equals("")) aida.logAdd(exitVal == 0 ? line : "!"+line);
 				line = bufRead.readLine();
 			}
 	
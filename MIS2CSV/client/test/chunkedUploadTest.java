@@ -0,0 +1,354 @@
+/*
+ *    Copyright 2010 Schools Data Services Limited
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/**
+ * Automated IRIS Data Transfer Agent (AIDA)
+ * Tests chunked report uploads against a stub IRIS server on a local port
+ * The stub server takes chunks in order and answers with the offset it expects next, and can be told to
+ * fail every chunk from an offset onwards to stand in for a link that drops part way through an upload
+ * @package AIDA
+ */
+
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+public class chunkedUploadTest extends TestCase
+{
+	/**
+	 * the encoding the stub server reads the form in, which keeps every byte as it is
+	 */
+	protected static final String formEncoding = "ISO-8859-1";
+
+	/**
+	 * the stub IRIS server
+	 */
+	protected HttpServer server;
+
+	/**
+	 * the bytes of the upload the stub server has accepted
+	 */
+	protected ByteArrayOutputStream received;
+
+	/**
+	 * the offset of the first chunk of each request, in the order they arrived
+	 */
+	protected StringBuffer offsets;
+
+	/**
+	 * chunks at or after this offset are refused, or -1 to accept every chunk
+	 */
+	protected volatile long failFrom;
+
+	/**
+	 * the IRIS folder of the test
+	 */
+	protected File irisDir;
+
+	/**
+	 * the agent under test
+	 */
+	protected aida agent;
+
+	public chunkedUploadTest(String name)
+	{
+		super(name);
+	}
+
+	protected void setUp() throws Exception
+	{
+		received = new ByteArrayOutputStream();
+		offsets = new StringBuffer();
+		failFrom = -1;
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler()
+		{
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				receiveChunk(exchange);
+			}
+		});
+		server.start();
+
+		irisDir = File.createTempFile("aida", "test");
+		irisDir.delete();
+		irisDir.mkdirs();
+
+		File configFile = new File(irisDir, "aida.ini");
+		FileWriter configOut = new FileWriter(configFile);
+		configOut.write("aida_dir = "+irisDir.getPath()+"\r\n");
+		configOut.close();
+
+		aida.configFile = configFile.getPath();
+		agent = new aida();
+
+		aida.setConfigValue("aida_dir", irisDir.getPath());
+		aida.setConfigValue("server_url", "http://127.0.0.1:"+server.getAddress().getPort()+"/");
+		aida.setConfigValue("upload_chunk_size", "1");
+		aida.setConfigValue("upload_retries", "1");
+
+		agent.chunkedUploads = true;
+
+		agent.checkDir(irisDir.getPath()+aida.slash+agent.getCurrentDir());
+		agent.checkDir(irisDir.getPath()+aida.slash+agent.getPreviousDir());
+		agent.checkDir(irisDir.getPath()+aida.slash+agent.getTransmitDir());
+	}
+
+	protected void tearDown() throws Exception
+	{
+		agent.closeConnection();
+		server.stop(0);
+		deleteAll(irisDir);
+	}
+
+	/**
+	 * An upload is sent in chunks that the server puts back together
+	 */
+	public void testChunkedUpload() throws Exception
+	{
+		byte[] changes = writeChanges("students.csv", 5000);
+
+		assertTrue(agent.transmitFile("students.csv"));
+		assertTrue(Arrays.equals(changes, received.toByteArray()));
+		assertEquals("0,1024,2048,3072,4096,", offsets.toString());
+		assertFalse(new File(irisDir, agent.uploadJournalFile).exists());
+	}
+
+	/**
+	 * Gzipped chunks are each gzipped once, and the gzipped copies are deleted once they are sent
+	 */
+	public void testCompressedChunkedUpload() throws Exception
+	{
+		byte[] changes = writeChanges("students.csv", 5000);
+
+		agent.compressUploads = true;
+
+		assertTrue(agent.transmitFile("students.csv"));
+		assertTrue(Arrays.equals(changes, received.toByteArray()));
+		assertEquals(1, getFile(agent.getTransmitDir(), "").list().length);
+	}
+
+	/**
+	 * An upload that stops part way through carries on from the last acknowledged chunk
+	 */
+	public void testStoppedUploadResumes() throws Exception
+	{
+		byte[] changes = writeChanges("students.csv", 5000);
+
+		failFrom = 2048;
+
+		assertFalse(agent.transmitFile("students.csv"));
+		assertEquals(2048, received.size());
+
+		failFrom = -1;
+		offsets.setLength(0);
+
+		assertTrue(agent.transmitFile("students.csv"));
+		assertTrue(Arrays.equals(changes, received.toByteArray()));
+		assertTrue(offsets.toString().startsWith("2048,"));
+	}
+
+	/**
+	 * The changes of a stopped upload are sent before the next run's diffs, and the report they were diffed
+	 * from only becomes the previous report once the server has all of them
+	 */
+	public void testStoppedUploadIsSentBeforeNextRun() throws Exception
+	{
+		writeFile(agent.getPreviousDir(), "students.csv", "1,old\r\n");
+		writeFile(agent.getCurrentDir(), "students.csv", "1,new\r\n");
+		byte[] changes = writeChanges("students.csv", 5000);
+
+		failFrom = 3072;
+
+		assertFalse(agent.transmitFile("students.csv"));
+
+		failFrom = -1;
+
+		agent.resumeUploads();
+
+		assertTrue(Arrays.equals(changes, received.toByteArray()));
+		assertFalse(getFile(agent.getTransmitDir(), "students.csv").exists());
+		assertFalse(getFile(agent.getCurrentDir(), "students.csv").exists());
+		assertEquals("1,new\r\n", readFile(getFile(agent.getPreviousDir(), "students.csv")));
+	}
+
+	/**
+	 * A stopped upload that still cannot be finished leaves the previous report alone, so the changes are diffed again
+	 */
+	public void testUnfinishedUploadKeepsPreviousReport() throws Exception
+	{
+		writeFile(agent.getPreviousDir(), "students.csv", "1,old\r\n");
+		writeFile(agent.getCurrentDir(), "students.csv", "1,new\r\n");
+		writeChanges("students.csv", 5000);
+
+		failFrom = 1024;
+
+		assertFalse(agent.transmitFile("students.csv"));
+
+		agent.resumeUploads();
+
+		assertFalse(getFile(agent.getTransmitDir(), "students.csv").exists());
+		assertEquals("1,new\r\n", readFile(getFile(agent.getCurrentDir(), "students.csv")));
+		assertEquals("1,old\r\n", readFile(getFile(agent.getPreviousDir(), "students.csv")));
+	}
+
+	/**
+	 * Changes left behind without any acknowledged chunks are not sent on their own
+	 */
+	public void testUnacknowledgedChangesAreDropped() throws Exception
+	{
+		writeChanges("students.csv", 5000);
+
+		agent.resumeUploads();
+
+		assertEquals(0, received.size());
+		assertFalse(getFile(agent.getTransmitDir(), "students.csv").exists());
+	}
+
+	/**
+	 * Stub IRIS server handler for receiveChunk requests
+	 * @param exchange the request
+	 */
+	protected void receiveChunk(HttpExchange exchange) throws IOException
+	{
+		String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+		String boundary = "--"+contentType.substring(contentType.indexOf("boundary=")+9);
+		String form = new String(readAll(exchange.getRequestBody()), formEncoding);
+
+		long offset = Long.parseLong(getFormValue(form, boundary, "offset"));
+		byte[] chunk = getFormValue(form, boundary, "file_upload").getBytes(formEncoding);
+
+		if(form.indexOf(multipartForm.gzipSuffix+"\"") >= 0)
+		{
+			chunk = readAll(new GZIPInputStream(new ByteArrayInputStream(chunk)));
+		}
+
+		synchronized(this)
+		{
+			offsets.append(offset).append(',');
+
+			if(failFrom >= 0 && offset >= failFrom)
+			{
+				exchange.sendResponseHeaders(500, -1);
+				exchange.close();
+				return;
+			}
+
+			//chunks from further on than the server has are ignored, and it asks for the one it expects
+			if(offset == received.size()) received.write(chunk);
+
+			exchange.getResponseHeaders().add("Authenticated", "true");
+			exchange.getResponseHeaders().add("Chunk Offset", String.valueOf(received.size()));
+		}
+
+		exchange.sendResponseHeaders(200, -1);
+		exchange.close();
+	}
+
+	/**
+	 * Get a value from a multipart form
+	 * @param form the form, read as ISO-8859-1
+	 * @param boundary the boundary between parts
+	 * @param name the field name
+	 * @return the value
+	 */
+	protected static String getFormValue(String form, String boundary, String name)
+	{
+		int start = form.indexOf("name=\""+name+"\"");
+
+		assertTrue("form has no "+name, start >= 0);
+
+		start = form.indexOf("\r\n\r\n", start)+4;
+
+		return form.substring(start, form.indexOf("\r\n"+boundary, start));
+	}
+
+	/**
+	 * Write changes waiting to be sent to the transmit folder
+	 * @param fileName the report file name
+	 * @param length the number of bytes
+	 * @return the changes
+	 */
+	protected byte[] writeChanges(String fileName, int length) throws IOException
+	{
+		byte[] changes = new byte[length];
+
+		for(int i=0; i<length; i++) changes[i] = (byte)(i%80 == 79 ? '\n' : 'a'+i%26);
+
+		OutputStream out = new FileOutputStream(getFile(agent.getTransmitDir(), fileName));
+		out.write(changes);
+		out.close();
+
+		return changes;
+	}
+
+	protected void writeFile(String dir, String fileName, String text) throws IOException
+	{
+		FileWriter out = new FileWriter(getFile(dir, fileName));
+		out.write(text);
+		out.close();
+	}
+
+	protected File getFile(String dir, String fileName)
+	{
+		return new File(irisDir.getPath()+aida.slash+dir+aida.slash+fileName);
+	}
+
+	protected static String readFile(File file) throws IOException
+	{
+		return new String(readAll(new FileInputStream(file)), formEncoding);
+	}
+
+	protected static byte[] readAll(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int len;
+
+		while((len = in.read(buf)) > 0) bytes.write(buf, 0, len);
+
+		in.close();
+
+		return bytes.toByteArray();
+	}
+
+	protected static void deleteAll(File file)
+	{
+		File[] files = file.listFiles();
+
+		for(int i=0; files != null && i<files.length; i++) deleteAll(files[i]);
+
+		file.delete();
+	}
+}
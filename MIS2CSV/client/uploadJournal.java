@@ -0,0 +1,228 @@
+/*
+ *    Copyright 2010 Schools Data Services Limited
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/**
+ * Automated IRIS Data Transfer Agent (AIDA)
+ * Records how much of each chunked upload the server has acknowledged, so an interrupted upload
+ * can carry on from the last acknowledged chunk on the next run rather than starting again
+ * @package AIDA
+ */
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+
+class uploadJournal
+{
+	/**
+	 * separates the fields of a journal line
+	 */
+	protected static final char fieldSeparator = '\t';
+
+	/**
+	 * the file the journal is kept in
+	 */
+	protected File journalFile;
+
+	/**
+	 * the uploads in progress, by report file name
+	 */
+	protected HashMap<String, journalEntry> entries = new HashMap<String, journalEntry>();
+
+	/**
+	 * Constructor
+	 * Entries are loaded from the journal file if it exists
+	 * @param journalFile the file the journal is kept in
+	 */
+	public uploadJournal(File journalFile)
+	{
+		this.journalFile = journalFile;
+
+		if(journalFile.exists()) load();
+	}
+
+	/**
+	 * Get the number of bytes of an upload the server has acknowledged
+	 * @param fileName the report file name
+	 * @param uploadId the hash of the file being uploaded
+	 * @param length the length of the file being uploaded
+	 * @return the acknowledged offset, or 0 if there is no unfinished upload of the same file
+	 */
+	public synchronized long getOffset(String fileName, String uploadId, long length)
+	{
+		journalEntry entry = entries.get(fileName);
+
+		if(entry != null && entry.uploadId.equals(uploadId) && entry.length == length) return entry.offset;
+
+		return 0;
+	}
+
+	/**
+	 * Check if the server has acknowledged part of an upload that has not finished
+	 * @param fileName the report file name
+	 * @param uploadId the hash of the file being uploaded
+	 * @param length the length of the file being uploaded
+	 * @return if the upload can be resumed
+	 */
+	public synchronized boolean isUnfinished(String fileName, String uploadId, long length)
+	{
+		return getOffset(fileName, uploadId, length) > 0;
+	}
+
+	/**
+	 * Record that the server has acknowledged an upload up to an offset, saving the journal
+	 * @param fileName the report file name
+	 * @param uploadId the hash of the file being uploaded
+	 * @param length the length of the file being uploaded
+	 * @param offset the acknowledged offset
+	 */
+	public synchronized void acknowledged(String fileName, String uploadId, long length, long offset)
+	{
+		entries.put(fileName, new journalEntry(uploadId, length, offset));
+		save();
+	}
+
+	/**
+	 * Forget an upload once it is finished, saving the journal
+	 * @param fileName the report file name
+	 */
+	public synchronized void finished(String fileName)
+	{
+		if(entries.remove(fileName) != null) save();
+	}
+
+	/**
+	 * Save the journal, deleting the file when no uploads are in progress
+	 * The journal is written to a temporary file first so an interruption never leaves it half written
+	 */
+	protected void save()
+	{
+		if(entries.isEmpty())
+		{
+			journalFile.delete();
+			return;
+		}
+
+		File tempFile = new File(journalFile.getPath()+".tmp");
+
+		try
+		{
+			BufferedWriter fileOut = new BufferedWriter(new FileWriter(tempFile));
+
+			Iterator<String> it = entries.keySet().iterator();
+
+			while(it.hasNext())
+			{
+				String fileName = it.next();
+				journalEntry entry = entries.get(fileName);
+
+				fileOut.write(entry.uploadId+fieldSeparator+entry.length+fieldSeparator+entry.offset+fieldSeparator+fileName+"\r\n");
+			}
+
+			fileOut.flush();
+			fileOut.close();
+
+			journalFile.delete();
+
+			if(!tempFile.renameTo(journalFile))
+			{
+				aida.logAdd("!Could not save "+journalFile.getName());
+			}
+		}
+		catch(IOException e)
+		{
+			aida.logAdd("!Could not save "+journalFile.getName());
+			aida.logAdd("!"+e.getMessage());
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Read the entries from the journal file
+	 * Lines are the upload id, file length, acknowledged offset and file name separated by tabs
+	 */
+	protected void load()
+	{
+		try
+		{
+			BufferedReader bufRead = new BufferedReader(new FileReader(journalFile));
+			String line;
+
+			while((line = bufRead.readLine()) != null)
+			{
+				String[] fields = line.split(String.valueOf(fieldSeparator), 4);
+
+				if(fields.length != 4) continue;
+
+				try
+				{
+					entries.put(fields[3], new journalEntry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+				}
+				catch(NumberFormatException e)
+				{
+				}
+			}
+
+			bufRead.close();
+		}
+		catch(IOException e)
+		{
+			aida.logAdd("!Could not read "+journalFile.getName());
+			entries.clear();
+		}
+	}
+
+	/**
+	 * The progress of an upload
+	 */
+	static class journalEntry
+	{
+		/**
+		 * the hash of the file being uploaded
+		 */
+		String uploadId;
+
+		/**
+		 * the length of the file being uploaded
+		 */
+		long length;
+
+		/**
+		 * the number of bytes the server has acknowledged
+		 */
+		long offset;
+
+		/**
+		 * Constructor
+		 * @param uploadId the hash of the file being uploaded
+		 * @param length the length of the file being uploaded
+		 * @param offset the number of bytes the server has acknowledged
+		 */
+		journalEntry(String uploadId, long length, long offset)
+		{
+			this.uploadId = uploadId;
+			this.length = length;
+			this.offset = offset;
+		}
+	}
+}
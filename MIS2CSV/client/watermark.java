@@ -0,0 +1,353 @@
+/*
+ *    Copyright 2010 Schools Data Services Limited
+ *
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/**
+ * Automated IRIS Data Transfer Agent (AIDA)
+ * The high-water mark of a report extracted by a rowversion or modified date column
+ * It is kept in a file next to the report and moved with it, so the mark always belongs to the report
+ * in the previous folder that newer rows are merged into
+ * @package AIDA
+ */
+
+import java.util.Properties;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+class watermark
+{
+	/**
+	 * the file name suffix of watermark files
+	 */
+	public static final String suffix = ".wm";
+
+	/**
+	 * a binary value, such as a rowversion
+	 */
+	protected static final String typeBinary = "binary";
+
+	/**
+	 * a date and time
+	 */
+	protected static final String typeTimestamp = "timestamp";
+
+	/**
+	 * a number
+	 */
+	protected static final String typeNumber = "number";
+
+	/**
+	 * any other value, compared as a string
+	 */
+	protected static final String typeString = "string";
+
+	/**
+	 * the column the report is extracted by
+	 */
+	protected String column;
+
+	/**
+	 * the highest value of the column seen, or null if no rows have been seen
+	 */
+	protected Object value;
+
+	/**
+	 * the number of runs since the report was last extracted in full
+	 */
+	protected int deltaRuns = 0;
+
+	/**
+	 * Constructor
+	 * @param column the column the report is extracted by
+	 */
+	public watermark(String column)
+	{
+		this.column = column;
+	}
+
+	/**
+	 * Check if a file is a watermark file
+	 * @param file the file to check
+	 * @return if the file is a watermark file
+	 */
+	public static boolean isWatermarkFile(File file)
+	{
+		return file.getName().endsWith(suffix);
+	}
+
+	/**
+	 * Get the watermark file of a report
+	 * @param dataFile the report file
+	 * @return the watermark file
+	 */
+	public static File getWatermarkFile(File dataFile)
+	{
+		return new File(dataFile.getPath()+suffix);
+	}
+
+	/**
+	 * Read the watermark of a report
+	 * @param dataFile the report file
+	 * @param column the column the report is now extracted by
+	 * @return the watermark or null if there is none, it is unreadable or it was made for a different column
+	 */
+	public static watermark read(File dataFile, String column)
+	{
+		File file = getWatermarkFile(dataFile);
+
+		if(!file.exists()) return null;
+
+		Properties props = new Properties();
+
+		try
+		{
+			InputStream in = new FileInputStream(file);
+
+			try
+			{
+				props.load(in);
+			}
+			finally
+			{
+				in.close();
+			}
+
+			if(!column.equals(props.getProperty("column"))) return null;
+
+			watermark mark = new watermark(column);
+			mark.deltaRuns = Integer.parseInt(props.getProperty("delta_runs", "0"));
+			mark.value = parseValue(props.getProperty("type", ""), props.getProperty("value"));
+
+			return mark.value == null ? null : mark;
+		}
+		catch(IOException e)
+		{
+			aida.logAdd("!Could not read "+file.getName());
+		}
+		catch(IllegalArgumentException e)
+		{
+			aida.logAdd("!Invalid watermark in "+file.getName());
+		}
+
+		return null;
+	}
+
+	/**
+	 * Write the watermark next to a report
+	 * Nothing is written if no rows have been seen, so the next run extracts the report in full
+	 * @param dataFile the report file
+	 */
+	public void write(File dataFile) throws IOException
+	{
+		File file = getWatermarkFile(dataFile);
+
+		if(value == null)
+		{
+			file.delete();
+			return;
+		}
+
+		Properties props = new Properties();
+		props.setProperty("column", column);
+		props.setProperty("type", getType());
+		props.setProperty("value", formatValue());
+		props.setProperty("delta_runs", String.valueOf(deltaRuns));
+
+		OutputStream out = new FileOutputStream(file);
+
+		try
+		{
+			props.store(out, "AIDA report watermark");
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Raise the watermark to a column value if it is higher
+	 * @param columnValue the value of the column in a row
+	 */
+	public void update(Object columnValue)
+	{
+		if(columnValue == null) return;
+
+		if(value == null || compare(columnValue, value) > 0) value = columnValue;
+	}
+
+	/**
+	 * Set a statement parameter to the watermark value
+	 * @param stmt the statement
+	 * @param index the parameter index
+	 */
+	public void bind(PreparedStatement stmt, int index) throws SQLException
+	{
+		if(value instanceof byte[]) stmt.setBytes(index, (byte[])value);
+		else if(value instanceof Timestamp) stmt.setTimestamp(index, (Timestamp)value);
+		else if(value instanceof BigDecimal) stmt.setBigDecimal(index, (BigDecimal)value);
+		else stmt.setString(index, value.toString());
+	}
+
+	/**
+	 * Get the column the report is extracted by
+	 * @return the column name
+	 */
+	public String getColumn()
+	{
+		return column;
+	}
+
+	/**
+	 * Get the number of runs since the report was last extracted in full
+	 * @return the number of runs
+	 */
+	public int getDeltaRuns()
+	{
+		return deltaRuns;
+	}
+
+	/**
+	 * Set the number of runs since the report was last extracted in full
+	 * @param deltaRuns the number of runs
+	 */
+	public void setDeltaRuns(int deltaRuns)
+	{
+		this.deltaRuns = deltaRuns;
+	}
+
+	/**
+	 * Convert a column value into one of the types a watermark is kept as
+	 * @param columnValue the value read from the result set
+	 * @return the value as a byte array, timestamp, decimal or string
+	 */
+	public static Object normalise(Object columnValue)
+	{
+		if(columnValue == null || columnValue instanceof byte[] || columnValue instanceof Timestamp || columnValue instanceof BigDecimal) return columnValue;
+
+		if(columnValue instanceof java.util.Date) return new Timestamp(((java.util.Date)columnValue).getTime());
+
+		if(columnValue instanceof Number) return new BigDecimal(columnValue.toString());
+
+		return columnValue.toString();
+	}
+
+	/**
+	 * Compare two watermark values of the same type
+	 * Binary values are compared as unsigned big-endian numbers, as SQL Server compares rowversions
+	 * @param a the first value
+	 * @param b the second value
+	 * @return less than, equal to or greater than zero as a is less than, equal to or greater than b
+	 */
+	@SuppressWarnings("unchecked")
+	protected static int compare(Object a, Object b)
+	{
+		if(a instanceof byte[] && b instanceof byte[])
+		{
+			byte[] x = (byte[])a;
+			byte[] y = (byte[])b;
+
+			if(x.length != y.length) return x.length-y.length;
+
+			for(int i=0; i<x.length; i++)
+			{
+				if(x[i] != y[i]) return (x[i] & 0xff)-(y[i] & 0xff);
+			}
+
+			return 0;
+		}
+
+		if(a.getClass() == b.getClass() && a instanceof Comparable) return ((Comparable<Object>)a).compareTo(b);
+
+		return a.toString().compareTo(b.toString());
+	}
+
+	/**
+	 * Get the name of the type of the value
+	 * @return the type name
+	 */
+	protected String getType()
+	{
+		if(value instanceof byte[]) return typeBinary;
+		if(value instanceof Timestamp) return typeTimestamp;
+		if(value instanceof BigDecimal) return typeNumber;
+
+		return typeString;
+	}
+
+	/**
+	 * Format the value for the watermark file
+	 * @return the formatted value
+	 */
+	protected String formatValue()
+	{
+		if(value instanceof byte[])
+		{
+			byte[] bytes = (byte[])value;
+			StringBuilder hex = new StringBuilder(bytes.length*2);
+
+			for(int i=0; i<bytes.length; i++)
+			{
+				hex.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+				hex.append(Character.forDigit(bytes[i] & 0xf, 16));
+			}
+
+			return hex.toString();
+		}
+
+		return value.toString();
+	}
+
+	/**
+	 * Parse a value read from a watermark file
+	 * @param type the type name
+	 * @param text the formatted value
+	 * @return the value or null if there is none
+	 * @throws IllegalArgumentException if the value cannot be parsed
+	 */
+	protected static Object parseValue(String type, String text)
+	{
+		if(text == null) return null;
+
+		if(type.equals(typeBinary))
+		{
+			if(text.length()%2 != 0) throw new IllegalArgumentException(text);
+
+			byte[] bytes = new byte[text.length()/2];
+
+			for(int i=0; i<bytes.length; i++)
+			{
+				bytes[i] = (byte)Integer.parseInt(text.substring(i*2, i*2+2), 16);
+			}
+
+			return bytes;
+		}
+
+		if(type.equals(typeTimestamp)) return Timestamp.valueOf(text);
+		if(type.equals(typeNumber)) return new BigDecimal(text);
+
+		return text;
+	}
+}